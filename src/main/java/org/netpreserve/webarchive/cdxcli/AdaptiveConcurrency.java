@@ -0,0 +1,348 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of active workers and adjusts the limit while running to maximize throughput.
+ * <p>
+ * Workers call {@link #acquire()} before and {@link #release()} after processing a file. A controller thread samples
+ * the number of bytes processed and the CPU time used by the process at a fixed interval, and moves the limit by hill
+ * climbing: as long as a change improves throughput, it continues in the same direction. When throughput drops, for
+ * example because more concurrent readers make the disks seek, it turns around. The limit is not raised when the
+ * CPUs are saturated, since more workers would then only compete for the same cores.
+ * <p>
+ * A lowered limit takes effect when workers finish their current file, workers are never interrupted. Until then
+ * more workers than the limit are running, so samples are skipped until the number of active workers is down to the
+ * limit for a whole interval. Each sample is attributed to the average number of workers active during the interval,
+ * and samples where that differs from the limit are not used to move it.
+ */
+public class AdaptiveConcurrency {
+
+    /**
+     * Relative change in throughput considered significant.
+     */
+    static final double TOLERANCE = 0.05;
+
+    /**
+     * CPU utilization considered saturated.
+     */
+    static final double CPU_SATURATED = 0.9;
+
+    /**
+     * Number of intervals with unchanged throughput before trying more workers again.
+     */
+    static final int PROBE_INTERVALS = 3;
+
+    private final int maxWorkers;
+
+    private final LongSupplier progress;
+
+    private final long intervalMillis;
+
+    private final PrintStream log;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private int limit;
+
+    private int active;
+
+    private int waiting;
+
+    /**
+     * True after the limit was lowered below the number of active workers, until a whole interval ran at the limit.
+     */
+    private boolean draining;
+
+    /**
+     * The sum over time of the number of active workers, in nanoseconds.
+     */
+    private long activeNanos;
+
+    private long activeSince = System.nanoTime();
+
+    private int direction = 1;
+
+    private int holds;
+
+    private double lastThroughput = -1.0;
+
+    private Thread controller;
+
+    private volatile boolean stopped;
+
+    /**
+     * Create a controller.
+     * <p>
+     * @param initialWorkers the number of workers allowed to start with
+     * @param maxWorkers the max number of workers. This should be the size of the thread pool running the workers
+     * @param progress supplier of the total number of bytes processed so far
+     * @param intervalMillis the time between each adjustment
+     * @param log the stream to log decisions to
+     */
+    public AdaptiveConcurrency(int initialWorkers, int maxWorkers, LongSupplier progress, long intervalMillis,
+            PrintStream log) {
+        if (maxWorkers < 1) {
+            throw new IllegalArgumentException("Number of workers must be at least one");
+        }
+        this.maxWorkers = maxWorkers;
+        this.limit = Math.max(1, Math.min(initialWorkers, maxWorkers));
+        this.progress = progress;
+        this.intervalMillis = intervalMillis;
+        this.log = log;
+    }
+
+    /**
+     * Wait until a worker is allowed to start.
+     * <p>
+     * @throws InterruptedException is thrown if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                while (active >= limit) {
+                    available.await();
+                }
+            } finally {
+                waiting--;
+            }
+            countActive();
+            active++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Signal that a worker has finished.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            countActive();
+            active--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the current number of workers allowed.
+     * <p>
+     * @return the limit
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start the controller thread.
+     */
+    public void start() {
+        log.println("Adaptive concurrency: starting with " + getLimit() + " of max " + maxWorkers + " workers");
+        controller = new Thread(this::control, "adaptive-concurrency");
+        controller.setDaemon(true);
+        controller.start();
+    }
+
+    /**
+     * Stop the controller thread.
+     */
+    public void stop() {
+        stopped = true;
+        if (controller != null) {
+            controller.interrupt();
+            try {
+                controller.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            controller = null;
+        }
+    }
+
+    /**
+     * The loop run by the controller thread.
+     */
+    private void control() {
+        long lastTime = System.nanoTime();
+        long lastBytes = progress.getAsLong();
+        long lastCpu = processCpuTime();
+        long lastActive = activeNanos();
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        while (!stopped) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            long time = System.nanoTime();
+            long bytes = progress.getAsLong();
+            long cpu = processCpuTime();
+            long activeTime = activeNanos();
+            double seconds = (time - lastTime) / 1e9;
+            double throughput = (bytes - lastBytes) / seconds;
+            double cpuLoad = cpu < 0 || lastCpu < 0 ? -1.0 : (cpu - lastCpu) / (time - lastTime) / processors;
+            double workers = (double) (activeTime - lastActive) / (time - lastTime);
+            lastTime = time;
+            lastBytes = bytes;
+            lastCpu = cpu;
+            lastActive = activeTime;
+
+            adjust(throughput, cpuLoad, workers);
+        }
+    }
+
+    /**
+     * Decide on a new limit from the measurements of the last interval.
+     * <p>
+     * @param throughput bytes processed per second
+     * @param cpuLoad the fraction of all CPUs used by the process or a negative value if not known
+     * @param workers the average number of active workers during the interval
+     */
+    void adjust(double throughput, double cpuLoad, double workers) {
+        lock.lock();
+        try {
+            if (active > limit) {
+                // Workers started before the limit was lowered are still running
+                draining = true;
+                return;
+            }
+            if (draining) {
+                // Part of the interval ran with more workers than the limit
+                draining = false;
+                return;
+            }
+            if (waiting == 0 && active < limit) {
+                // Not enough work left to fill the current limit, so the measurement says nothing about the limit
+                return;
+            }
+            if (Math.abs(workers - limit) > 0.5) {
+                // The interval did not run at the limit most of the time
+                return;
+            }
+
+            boolean cpuSaturated = cpuLoad >= CPU_SATURATED;
+            int move;
+            String reason;
+            if (lastThroughput < 0) {
+                move = direction;
+                reason = "first measurement";
+            } else if (throughput > lastThroughput * (1 + TOLERANCE)) {
+                move = direction;
+                reason = "throughput increased";
+            } else if (throughput < lastThroughput * (1 - TOLERANCE)) {
+                direction = -direction;
+                move = direction;
+                reason = "throughput decreased";
+            } else if (cpuSaturated) {
+                direction = -1;
+                move = direction;
+                reason = "throughput unchanged, CPU saturated";
+            } else if (++holds < PROBE_INTERVALS) {
+                move = 0;
+                reason = "throughput unchanged";
+            } else {
+                direction = 1;
+                move = direction;
+                reason = "probing";
+            }
+            if (move > 0 && cpuSaturated) {
+                move = 0;
+                reason = "CPU saturated";
+            }
+            if (move != 0) {
+                holds = 0;
+            }
+
+            int step = Math.max(1, limit / 4);
+            int newLimit = Math.max(1, Math.min(maxWorkers, limit + move * step));
+
+            log.printf("Adaptive concurrency: %d -> %d workers (%s, %.1f MB/s, %.1f MB/s per worker, CPU %s)%n",
+                    limit, newLimit, reason, throughput / (1024 * 1024), throughput / workers / (1024 * 1024),
+                    cpuLoad < 0 ? "unknown" : Math.round(cpuLoad * 100) + "%");
+
+            lastThroughput = throughput;
+            if (newLimit > limit) {
+                available.signalAll();
+            }
+            if (newLimit < active) {
+                draining = true;
+            }
+            limit = newLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add the time since the last change of the number of active workers to the active time. Must be called with the
+     * lock held, before changing the number of active workers.
+     */
+    private void countActive() {
+        long now = System.nanoTime();
+        activeNanos += active * (now - activeSince);
+        activeSince = now;
+    }
+
+    /**
+     * Get the sum over time of the number of active workers.
+     * <p>
+     * @return the active time in nanoseconds
+     */
+    private long activeNanos() {
+        lock.lock();
+        try {
+            countActive();
+            return activeNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the CPU time used by the process.
+     * <p>
+     * @return the CPU time in nanoseconds or -1 if not supported by the JVM
+     */
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1L;
+    }
+
+}
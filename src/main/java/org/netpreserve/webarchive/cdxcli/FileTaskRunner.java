@@ -0,0 +1,352 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a task for each input file on a bounded number of threads.
+ * <p>
+ * Failures are isolated to the file that caused them. The error is reported on standard error and the remaining
+ * files are processed. When all files are done, an exception is thrown if any of them failed. Records a failed file
+ * wrote to a shared output before failing are not removed by the runner; the caller decides what to do with the
+ * output. An {@link Error} is counted as a failure too, but is rethrown instead of reported, since the state of the
+ * process can not be trusted after it.
+ * <p>
+ * With {@link #runOrdered(List, FileFunction, ResultConsumer)} the results of the files are handed over in input
+ * order, while the files are still processed in parallel.
+ * <p>
+ * With an {@link AdaptiveConcurrency} set, the number of threads is the upper limit and the controller decides how
+ * many files are actually processed at the same time.
+ */
+public class FileTaskRunner {
+
+    /**
+     * Processing of one input file.
+     */
+    @FunctionalInterface
+    public interface FileTask {
+
+        /**
+         * Process an input file.
+         * <p>
+         * @param input the name of the input file
+         * @throws Exception is thrown if the file could not be processed
+         */
+        void process(String input) throws Exception;
+
+    }
+
+    /**
+     * Processing of one input file producing a result.
+     * <p>
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    public interface FileFunction<T> {
+
+        /**
+         * Process an input file.
+         * <p>
+         * @param input the name of the input file
+         * @return the result of the processing
+         * @throws Exception is thrown if the file could not be processed
+         */
+        T process(String input) throws Exception;
+
+    }
+
+    /**
+     * Receives results in input order.
+     * <p>
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    public interface ResultConsumer<T> {
+
+        /**
+         * Consume a result.
+         * <p>
+         * @param result the result
+         * @throws IOException is thrown if the result could not be consumed. This aborts processing of all files.
+         */
+        void accept(T result) throws IOException;
+
+    }
+
+    private final int threads;
+
+    private final boolean printStacktrace;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * The first error thrown by a task, rethrown when all tasks are done.
+     */
+    private final AtomicReference<Error> error = new AtomicReference<>();
+
+    private AdaptiveConcurrency adaptive;
+
+    /**
+     * Create a runner.
+     * <p>
+     * @param threads the max number of files processed in parallel
+     * @param printStacktrace true if stack traces should be printed for failed files
+     */
+    public FileTaskRunner(int threads, boolean printStacktrace) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least one");
+        }
+        this.threads = threads;
+        this.printStacktrace = printStacktrace;
+    }
+
+    /**
+     * Let the number of files processed in parallel be adjusted while running.
+     * <p>
+     * The number of threads given to the constructor is then the upper limit.
+     * <p>
+     * @param adaptive the controller deciding how many files are processed in parallel
+     */
+    public void setAdaptiveConcurrency(AdaptiveConcurrency adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Process all inputs and wait for them to finish.
+     * <p>
+     * @param inputs the names of the input files
+     * @param task the processing to do for each file
+     * @throws UncheckedIOException is thrown if processing of one or more files failed
+     * @throws Error is rethrown if processing of a file threw an error
+     */
+    public void run(List<String> inputs, FileTask task) {
+        int poolSize = Math.min(threads, inputs.size());
+        if (poolSize <= 1) {
+            for (String input : inputs) {
+                runTask(input, task);
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+            startAdaptive();
+            try {
+                for (String input : inputs) {
+                    executor.execute(() -> runTask(input, limited(task)));
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // Keep waiting until all files are processed
+                }
+            } catch (InterruptedException ex) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted while processing files"));
+            } finally {
+                stopAdaptive();
+            }
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+        if (failures.get() > 0) {
+            throw new UncheckedIOException(new IOException(
+                    "Processing failed for " + failures.get() + " of " + inputs.size() + " input files"));
+        }
+    }
+
+    /**
+     * Process all inputs and hand the results to a consumer in input order.
+     * <p>
+     * The consumer is called on the calling thread. At most twice the number of threads files are processed or
+     * waiting to be consumed at any time, which bounds the number of results kept. Each result is closed after it is
+     * consumed. Results of failed files are skipped.
+     * <p>
+     * @param <T> the type of the results
+     * @param inputs the names of the input files
+     * @param task the processing to do for each file
+     * @param consumer the consumer of the results
+     * @throws IOException is thrown if the consumer failed
+     * @throws UncheckedIOException is thrown if processing of one or more files failed
+     */
+    public <T extends Closeable> void runOrdered(List<String> inputs, FileFunction<T> task,
+            ResultConsumer<T> consumer) throws IOException {
+        int poolSize = Math.max(1, Math.min(threads, inputs.size()));
+        int window = 2 * poolSize;
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        Deque<Future<T>> pending = new ArrayDeque<>();
+        Deque<String> pendingInputs = new ArrayDeque<>();
+        FileFunction<T> limitedTask = limitedFunction(task);
+        startAdaptive();
+        try {
+            for (String input : inputs) {
+                if (pending.size() >= window) {
+                    consumeNext(pending, pendingInputs, consumer);
+                }
+                pending.add(executor.submit(() -> limitedTask.process(input)));
+                pendingInputs.add(input);
+            }
+            while (!pending.isEmpty()) {
+                consumeNext(pending, pendingInputs, consumer);
+            }
+        } finally {
+            stopAdaptive();
+            executor.shutdownNow();
+            if (!pending.isEmpty()) {
+                discard(executor, pending);
+            }
+        }
+
+        if (failures.get() > 0) {
+            throw new UncheckedIOException(new IOException(
+                    "Processing failed for " + failures.get() + " of " + inputs.size() + " input files"));
+        }
+    }
+
+    private <T extends Closeable> void consumeNext(Deque<Future<T>> pending, Deque<String> pendingInputs,
+            ResultConsumer<T> consumer) throws IOException {
+        String input = pendingInputs.poll();
+        T result;
+        try {
+            result = pending.peek().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing files");
+        } catch (ExecutionException ex) {
+            pending.poll();
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            reportFailure(input, (Exception) ex.getCause());
+            return;
+        }
+
+        pending.poll();
+        try {
+            consumer.accept(result);
+        } finally {
+            result.close();
+        }
+    }
+
+    /**
+     * Close the results which will never be consumed because processing was aborted.
+     */
+    private <T extends Closeable> void discard(ExecutorService executor, Deque<Future<T>> pending) {
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Future<T> future : pending) {
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    future.get().close();
+                } catch (InterruptedException | ExecutionException | IOException ex) {
+                    // Nothing more to do, the result is abandoned anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Wrap a task so that it waits for the adaptive concurrency limit before processing a file.
+     */
+    private FileTask limited(FileTask task) {
+        if (adaptive == null) {
+            return task;
+        }
+        return (input) -> {
+            adaptive.acquire();
+            try {
+                task.process(input);
+            } finally {
+                adaptive.release();
+            }
+        };
+    }
+
+    /**
+     * Wrap a function so that it waits for the adaptive concurrency limit before processing a file.
+     */
+    private <T> FileFunction<T> limitedFunction(FileFunction<T> task) {
+        if (adaptive == null) {
+            return task;
+        }
+        return (input) -> {
+            adaptive.acquire();
+            try {
+                return task.process(input);
+            } finally {
+                adaptive.release();
+            }
+        };
+    }
+
+    private void startAdaptive() {
+        if (adaptive != null) {
+            adaptive.start();
+        }
+    }
+
+    private void stopAdaptive() {
+        if (adaptive != null) {
+            adaptive.stop();
+        }
+    }
+
+    private void runTask(String input, FileTask task) {
+        try {
+            task.process(input);
+        } catch (Exception ex) {
+            reportFailure(input, ex);
+        } catch (Error err) {
+            // Without this, an error would end the pool thread silently and the run would look successful
+            failures.incrementAndGet();
+            error.compareAndSet(null, err);
+            System.err.println("Failed processing '" + input + "': " + err);
+            throw err;
+        }
+    }
+
+    private void reportFailure(String input, Exception ex) {
+        failures.incrementAndGet();
+        String message = ex instanceof UncheckedIOException ? ex.getCause().getLocalizedMessage()
+                : ex.getLocalizedMessage();
+        System.err.println("Failed processing '" + input + "': " + message);
+        if (printStacktrace) {
+            ex.printStackTrace();
+        }
+    }
+
+}
@@ -34,4 +34,9 @@ public class MainParameters {
 
     @Parameter(names = {"-w", "--workdir"}, description = "Directory for creating temporary files.")
     String workDir;
+
+    public boolean isPrintStacktrace() {
+        return printStacktrace;
+    }
+
 }
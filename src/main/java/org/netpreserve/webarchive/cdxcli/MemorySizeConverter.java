@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli;
+
+import java.util.Locale;
+
+import com.beust.jcommander.IStringConverter;
+import com.beust.jcommander.ParameterException;
+
+/**
+ * Converts a memory size like 512k, 100m or 2g into a number of bytes.
+ * <p>
+ * A value without suffix is taken as bytes.
+ */
+public class MemorySizeConverter implements IStringConverter<Long> {
+
+    @Override
+    public Long convert(String value) {
+        String size = value.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1L;
+        if (size.endsWith("k")) {
+            multiplier = 1024L;
+        } else if (size.endsWith("m")) {
+            multiplier = 1024L * 1024L;
+        } else if (size.endsWith("g")) {
+            multiplier = 1024L * 1024L * 1024L;
+        }
+        if (multiplier > 1L) {
+            size = size.substring(0, size.length() - 1);
+        }
+
+        try {
+            long bytes = Long.parseLong(size) * multiplier;
+            if (bytes <= 0) {
+                throw new ParameterException("Memory size must be positive: '" + value + "'");
+            }
+            return bytes;
+        } catch (NumberFormatException ex) {
+            throw new ParameterException("Illegal memory size '" + value + "'. Use a number optionally followed by "
+                    + "k, m or g");
+        }
+    }
+
+}
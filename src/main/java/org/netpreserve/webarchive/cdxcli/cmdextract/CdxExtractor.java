@@ -23,7 +23,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jwat.arc.ArcHeader;
 import org.jwat.arc.ArcReader;
@@ -33,13 +46,12 @@ import org.jwat.arc.ArcRecordBase;
 import org.jwat.archive.FileIdent;
 import org.jwat.common.HttpHeader;
 import org.jwat.common.UriProfile;
-import org.jwat.gzip.GzipEntry;
-import org.jwat.gzip.GzipReader;
 import org.jwat.warc.WarcConstants;
 import org.jwat.warc.WarcHeader;
 import org.jwat.warc.WarcReader;
 import org.jwat.warc.WarcReaderFactory;
 import org.jwat.warc.WarcRecord;
+import org.netpreserve.commons.cdx.CdxRecord;
 import org.netpreserve.commons.cdx.FieldName;
 import org.netpreserve.commons.cdx.json.NumberValue;
 import org.netpreserve.commons.cdx.json.StringValue;
@@ -59,12 +71,81 @@ public class CdxExtractor {
     /**
      * Enable block digest calculation/validation.
      */
-    private final boolean blockDigestEnabled = true;
+    private boolean blockDigestEnabled = true;
 
     /**
      * Enable payload digest calculation/validation.
      */
-    private final boolean payloadDigestEnabled = true;
+    private boolean payloadDigestEnabled = true;
+
+    /**
+     * Skip payloads instead of reading them.
+     */
+    private boolean fast = false;
+
+    /**
+     * How payload digests of WARC records are obtained.
+     */
+    private DigestPolicy digestPolicy = DigestPolicy.COMPUTE;
+
+    /**
+     * Fraction of WARC records getting their payload digest verified when the policy is VERIFY_SAMPLED.
+     */
+    private double digestSampleRate = 0.01;
+
+    /**
+     * Number of payload digests computed for verification.
+     */
+    private final AtomicLong verifiedDigests = new AtomicLong();
+
+    /**
+     * Number of verified payload digests not matching the WARC-Payload-Digest header.
+     */
+    private final AtomicLong digestMismatches = new AtomicLong();
+
+    /**
+     * Number of bytes read from input files.
+     */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * Values shared between records.
+     */
+    private final RecordValues recordValues = new RecordValues();
+
+    /**
+     * Cache of parsed URIs or null if URIs are parsed for every record.
+     */
+    private UriCache uriCache;
+
+    /**
+     * Cache of the last parsed record date.
+     */
+    private final TimestampCache timestampCache = new TimestampCache();
+
+    /**
+     * The fields of the record currently read by each thread.
+     */
+    private final ThreadLocal<RecordFields> recordFields = ThreadLocal.withInitial(RecordFields::new);
+
+    /**
+     * How uncompressed files are read.
+     */
+    private InputMode inputMode = InputMode.STREAM;
+
+    /**
+     * Number of buffers read ahead of the parser or zero for no read ahead.
+     */
+    private int readAheadDepth = 0;
+
+    private int readAheadBufferSize;
+
+    private final PrefetchingInputStream.Statistics readAheadStatistics = new PrefetchingInputStream.Statistics();
+
+    /**
+     * Filter deciding which records to index, or null to use the default.
+     */
+    private RecordFilter recordFilter;
 
     /**
      * Max record header size.
@@ -76,23 +157,262 @@ public class CdxExtractor {
      */
     private final int payloadHeaderMaxSize = 32768;
 
+    /**
+     * Number of byte ranges of a compressed file processed in parallel. A value of one disables splitting.
+     */
+    private int splitThreads = 1;
+
+    /**
+     * Approximate size of each byte range when splitting compressed files.
+     */
+    private long splitSize = 64L * 1024 * 1024;
+
+    /**
+     * Executor for processing byte ranges of compressed files.
+     */
+    private ExecutorService splitExecutor;
+
+    /**
+     * Executor running one gzip member scanner for each compressed file being split.
+     */
+    private ExecutorService scanExecutor;
+
+    /**
+     * Marks the end of the ranges of a file being split.
+     */
+    private static final Future<List<CdxRecord>> END_OF_RANGES =
+            CompletableFuture.completedFuture(Collections.emptyList());
+
+    /**
+     * Executor running the stages of pipelined extraction.
+     */
+    private ExecutorService pipelineExecutor;
+
+    /**
+     * Statistics for the queues between the stages of pipelined extraction.
+     */
+    private final StageQueue.Statistics[] pipelineStatistics = {
+        new StageQueue.Statistics("inflate->parse"),
+        new StageQueue.Statistics("parse->digest"),
+        new StageQueue.Statistics("digest->write")
+    };
+
+    /**
+     * Enable parallel processing of byte ranges within one compressed file.
+     * <p>
+     * Compressed files larger than {@code splitSize} are cut into byte ranges at gzip member boundaries. The ranges
+     * are processed in parallel, but records are written to the output in the same order as when processing the file
+     * serially.
+     * <p>
+     * The range boundaries are found by a scanner thread per file, which inflates the whole file once more. The
+     * scanner produces ranges at the speed of inflating alone, which limits the speedup regardless of the number of
+     * threads.
+     * <p>
+     * @param threads the number of ranges processed in parallel. A value of one disables splitting
+     * @param splitSize the approximate size in bytes of each range
+     */
+    public void setSplitting(int threads, long splitSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of split threads must be at least one");
+        }
+        if (splitSize < 1) {
+            throw new IllegalArgumentException("Split size must be positive");
+        }
+        this.splitThreads = threads;
+        this.splitSize = splitSize;
+        if (threads > 1) {
+            this.splitExecutor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "split-reader");
+                t.setDaemon(true);
+                return t;
+            });
+            this.scanExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "split-scanner");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Enable header only extraction.
+     * <p>
+     * In fast mode only the record header and the http header are parsed. Payloads are skipped without computing
+     * digests. For uncompressed files the skip is a seek in the file instead of a read. Records will only get a
+     * payload digest if the WARC record has a WARC-Payload-Digest header.
+     * <p>
+     * @param fast true to enable fast mode
+     */
+    public void setFast(boolean fast) {
+        this.fast = fast;
+        this.blockDigestEnabled = !fast;
+        this.payloadDigestEnabled = !fast;
+    }
+
+    /**
+     * Set how payload digests of WARC records are obtained.
+     * <p>
+     * Unless the policy is COMPUTE, the payload digest is taken from the WARC-Payload-Digest header if present. With
+     * VERIFY_SAMPLED a fraction of the records will also get their digest computed and compared to the header. If
+     * they differ, a warning is printed and the computed value is used. ARC files have no digest headers, so ARC
+     * records always get their digest computed unless fast mode is enabled.
+     * <p>
+     * @param digestPolicy the policy
+     * @param sampleRate fraction of records to verify when policy is VERIFY_SAMPLED
+     */
+    public void setDigestPolicy(DigestPolicy digestPolicy, double sampleRate) {
+        if (sampleRate < 0.0 || sampleRate > 1.0) {
+            throw new IllegalArgumentException("Digest sample rate must be between 0 and 1");
+        }
+        this.digestPolicy = digestPolicy;
+        this.digestSampleRate = sampleRate;
+    }
+
+    /**
+     * Set a filter deciding which records to index.
+     * <p>
+     * The filter is applied to the record and http headers before the payload is read. To avoid digesting payloads
+     * of records which are filtered out, the readers do not compute digests when a filter is set. Instead the
+     * payload digest is computed for the accepted records only.
+     * <p>
+     * @param recordFilter the filter or null to index all records except warcinfo and metadata
+     */
+    public void setRecordFilter(RecordFilter recordFilter) {
+        this.recordFilter = recordFilter;
+    }
+
+    /**
+     * Set how uncompressed input files are read.
+     * <p>
+     * Compressed files are always read as a stream since every byte has to be inflated anyway.
+     * <p>
+     * @param inputMode the input mode
+     */
+    public void setInputMode(InputMode inputMode) {
+        this.inputMode = inputMode;
+    }
+
+    /**
+     * Read input files sequentially in a separate thread per file, ahead of the parser.
+     * <p>
+     * Useful for storage with high latency, like network file systems, where the parser would otherwise wait for
+     * every buffer refill.
+     * <p>
+     * @param depth the number of buffers to keep filled or zero to read in the parsing thread
+     * @param bufferSize the size of each buffer
+     */
+    public void setReadAhead(int depth, int bufferSize) {
+        this.readAheadDepth = depth;
+        this.readAheadBufferSize = bufferSize;
+    }
+
+    /**
+     * Set the number of parsed URIs to keep for reuse.
+     * <p>
+     * @param size the max number of URIs in the cache or zero to parse the URI of every record
+     */
+    public void setUriCacheSize(int size) {
+        this.uriCache = size > 0 ? new UriCache(size) : null;
+    }
+
+    /**
+     * Enable pipelined extraction.
+     * <p>
+     * Decompression, parsing, digesting and formatting/writing of one file are run by separate threads connected by
+     * bounded queues. This lets a single file use several cores. Splitting takes precedence over pipelining for
+     * compressed files large enough to be split.
+     * <p>
+     * @param pipelined true to enable pipelined extraction
+     */
+    public void setPipelined(boolean pipelined) {
+        if (pipelined && pipelineExecutor == null) {
+            pipelineExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "pipeline-stage");
+                t.setDaemon(true);
+                return t;
+            });
+        } else if (!pipelined && pipelineExecutor != null) {
+            pipelineExecutor.shutdown();
+            pipelineExecutor = null;
+        }
+    }
+
+    /**
+     * Print statistics collected while extracting.
+     * <p>
+     * @param out the stream to print to
+     */
+    public void printStatistics(PrintStream out) {
+        if (digestPolicy == DigestPolicy.VERIFY_SAMPLED && !fast) {
+            out.println("Verified payload digests: " + verifiedDigests.get()
+                    + ", mismatches: " + digestMismatches.get());
+        }
+        if (recordFilter != null) {
+            out.println("Records filtered out: " + recordFilter.getFiltered());
+        }
+        if (uriCache != null) {
+            uriCache.printStatistics(out);
+        }
+        if (readAheadDepth > 0) {
+            readAheadStatistics.print(out);
+        }
+        if (pipelineExecutor != null) {
+            out.println("Pipeline queues:");
+            for (StageQueue.Statistics statistics : pipelineStatistics) {
+                statistics.print(out);
+            }
+        }
+    }
+
+    /**
+     * Release resources used by the extractor.
+     */
+    public void shutdown() {
+        if (splitExecutor != null) {
+            splitExecutor.shutdown();
+            scanExecutor.shutdown();
+        }
+        if (pipelineExecutor != null) {
+            pipelineExecutor.shutdown();
+        }
+    }
+
     public void process(File inFile, FileIdent fileIdent, Output out) {
         String fileName = inFile.getName();
 
+        if (splitExecutor != null && inFile.length() > splitSize
+                && (fileIdent.streamId == FileIdent.FILEID_ARC_GZ || fileIdent.streamId == FileIdent.FILEID_WARC_GZ)) {
+            try {
+                processSplit(inFile, fileIdent.streamId == FileIdent.FILEID_ARC_GZ, out);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return;
+        }
+
+        if (pipelineExecutor != null) {
+            try {
+                new ExtractionPipeline(this, pipelineExecutor, pipelineStatistics).run(inFile, fileIdent, out);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return;
+        }
+
         if (fileIdent.streamId == FileIdent.FILEID_ARC
                 || fileIdent.streamId == FileIdent.FILEID_ARC_GZ) {
 
             if (fileIdent.streamId == FileIdent.FILEID_ARC_GZ) {
-                try (InputStream input = new BufferedInputStream(new FileInputStream(inFile), 1024 * 512);
+                try (InputStream input = openFile(inFile);
                         ArcReader arcReader = ArcReaderFactory.getReaderUncompressed();) {
 
                     configureArcReader(arcReader);
-                    processArcGzipStream(arcReader, input, fileName, out);
+                    processArcGzipStream(arcReader, input, 0L, fileName, out);
                 } catch (IOException ex) {
                     throw new UncheckedIOException(ex);
                 }
             } else {
-                try (InputStream input = new BufferedInputStream(new FileInputStream(inFile), 1024 * 512);
+                try (InputStream input = openUncompressed(inFile);
                         ArcReader arcReader = ArcReaderFactory.getReaderUncompressed(input);) {
 
                     configureArcReader(arcReader);
@@ -105,16 +425,16 @@ public class CdxExtractor {
                 || fileIdent.streamId == FileIdent.FILEID_WARC_GZ) {
 
             if (fileIdent.streamId == FileIdent.FILEID_WARC_GZ) {
-                try (InputStream input = new BufferedInputStream(new FileInputStream(inFile), 1024 * 512);
+                try (InputStream input = openFile(inFile);
                         WarcReader warcReader = WarcReaderFactory.getReaderUncompressed();) {
 
                     configureWarcReader(warcReader);
-                    processWarcGzipStream(warcReader, input, fileName, out);
+                    processWarcGzipStream(warcReader, input, 0L, fileName, out);
                 } catch (IOException ex) {
                     throw new UncheckedIOException(ex);
                 }
             } else {
-                try (InputStream input = new BufferedInputStream(new FileInputStream(inFile), 1024 * 512);
+                try (InputStream input = openUncompressed(inFile);
                         WarcReader warcReader = WarcReaderFactory.getReaderUncompressed(input);) {
 
                     configureWarcReader(warcReader);
@@ -126,39 +446,254 @@ public class CdxExtractor {
         }
     }
 
+    /**
+     * Open an uncompressed file for reading.
+     * <p>
+     * How the file is read depends on the input mode. With positional reads or memory mapping, skipping payloads does
+     * not read them. In fast mode a smaller buffer is used for positional reads to avoid reading bytes which are
+     * skipped anyway.
+     * <p>
+     * @param inFile the file to open
+     * @return the input stream
+     * @throws IOException is thrown if the file could not be opened
+     */
+    InputStream openUncompressed(File inFile) throws IOException {
+        switch (inputMode) {
+            case MMAP:
+                return new MappedFileInputStream(inFile, bytesRead);
+            case CHANNEL:
+                return new BufferedInputStream(new CountingInputStream(new FileRangeInputStream(inFile), bytesRead),
+                        fast ? 1024 * 32 : 1024 * 512);
+            default:
+                if (fast) {
+                    return new BufferedInputStream(
+                            new CountingInputStream(new FileRangeInputStream(inFile), bytesRead), 1024 * 32);
+                } else {
+                    return openFile(inFile);
+                }
+        }
+    }
+
+    /**
+     * Open a file for sequential reading.
+     * <p>
+     * If read ahead is enabled, the file is read by a separate thread.
+     * <p>
+     * @param inFile the file to open
+     * @return the input stream
+     * @throws IOException is thrown if the file could not be opened
+     */
+    InputStream openFile(File inFile) throws IOException {
+        if (readAheadDepth > 0) {
+            return new PrefetchingInputStream(inFile, readAheadDepth, readAheadBufferSize, bytesRead,
+                    readAheadStatistics);
+        }
+        return new BufferedInputStream(new CountingInputStream(new FileInputStream(inFile), bytesRead), 1024 * 512);
+    }
+
+    /**
+     * Get the number of bytes read from input files so far.
+     * <p>
+     * The counter is updated while files are read, so it can be used to measure throughput during extraction.
+     * <p>
+     * @return the number of bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Process a compressed file by splitting it into byte ranges which are processed in parallel.
+     * <p>
+     * The ranges are found by a scanner thread and submitted while the ranges found before are processed. The
+     * calling thread only writes the records of each range, in file order, once the range is processed. About
+     * {@code 2 * splitThreads} ranges are in progress at any time.
+     * <p>
+     * @param inFile the file to process
+     * @param isArc true if the file is an ARC file, false if it is a WARC file
+     * @param out the output to write records to
+     * @throws IOException is thrown if the file could not be read
+     */
+    private void processSplit(File inFile, boolean isArc, Output out) throws IOException {
+        BlockingQueue<Future<List<CdxRecord>>> ranges = new ArrayBlockingQueue<>(2 * splitThreads);
+        Future<Void> scan = scanExecutor.submit(() -> scanRanges(inFile, isArc, ranges));
+        boolean complete = false;
+        try {
+            while (true) {
+                Future<List<CdxRecord>> range;
+                try {
+                    range = ranges.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ex);
+                }
+                if (range == END_OF_RANGES) {
+                    break;
+                }
+                for (CdxRecord record : getResult(range)) {
+                    out.write(record);
+                }
+            }
+            getResult(scan);
+            complete = true;
+        } finally {
+            if (!complete) {
+                scan.cancel(true);
+                for (Future<List<CdxRecord>> range : ranges) {
+                    range.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the byte ranges of a compressed file and submit them for processing. Run by the scanner thread.
+     * <p>
+     * The submitted ranges are put on a queue in file order, followed by {@link #END_OF_RANGES} unless the scanner
+     * is cancelled.
+     * <p>
+     * @param inFile the file to process
+     * @param isArc true if the file is an ARC file, false if it is a WARC file
+     * @param ranges the queue receiving the future result of each range
+     * @return null
+     * @throws IOException is thrown if the file could not be read
+     */
+    private Void scanRanges(File inFile, boolean isArc, BlockingQueue<Future<List<CdxRecord>>> ranges)
+            throws IOException {
+        try {
+            try (GzipMemberScanner scanner = new GzipMemberScanner(inFile, splitSize);) {
+                long start = 0;
+                long end;
+                while ((end = scanner.nextSplitPoint()) >= 0) {
+                    long rangeStart = start;
+                    long rangeEnd = end;
+                    ranges.put(splitExecutor.submit(() -> processRange(inFile, isArc, rangeStart, rangeEnd)));
+                    start = end;
+                }
+            } catch (IOException | RuntimeException ex) {
+                ranges.put(END_OF_RANGES);
+                throw ex;
+            }
+            ranges.put(END_OF_RANGES);
+        } catch (InterruptedException ex) {
+            // Cancelled by the writing thread, which does not take any more ranges
+        }
+        return null;
+    }
+
+    /**
+     * Wait for a task processing a file or a part of it.
+     * <p>
+     * @param <T> the type of the result
+     * @param task the future result of the task
+     * @return the result
+     * @throws IOException is thrown if the task failed
+     */
+    private static <T> T getResult(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Process one byte range of a compressed file.
+     * <p>
+     * @param inFile the file to process
+     * @param isArc true if the file is an ARC file, false if it is a WARC file
+     * @param start the offset of the first gzip member in the range
+     * @param end the offset after the last gzip member in the range
+     * @return the records found in the range
+     * @throws IOException is thrown if the file could not be read
+     */
+    private List<CdxRecord> processRange(File inFile, boolean isArc, long start, long end) throws IOException {
+        String fileName = inFile.getName();
+        RecordBuffer buffer = new RecordBuffer();
+
+        try (InputStream input = new BufferedInputStream(
+                new CountingInputStream(new FileRangeInputStream(inFile, start, end), bytesRead), 1024 * 512);) {
+            if (isArc) {
+                try (ArcReader arcReader = ArcReaderFactory.getReaderUncompressed();) {
+                    configureArcReader(arcReader);
+                    if (start > 0) {
+                        primeArcReader(arcReader, inFile);
+                    }
+                    processArcGzipStream(arcReader, input, start, fileName, buffer);
+                }
+            } else {
+                try (WarcReader warcReader = WarcReaderFactory.getReaderUncompressed();) {
+                    configureWarcReader(warcReader);
+                    processWarcGzipStream(warcReader, input, start, fileName, buffer);
+                }
+            }
+        }
+        return buffer.records;
+    }
+
+    /**
+     * Let an ARC reader parse the version block of a file.
+     * <p>
+     * Used when a reader starts in the middle of a file so that it knows the record format.
+     * <p>
+     * @param arcReader the reader to prime
+     * @param inFile the file to read the version block from
+     * @throws IOException is thrown if the file could not be read
+     */
+    private void primeArcReader(ArcReader arcReader, File inFile) throws IOException {
+        try (InputStream input = new BufferedInputStream(new FileRangeInputStream(inFile), 8192);
+                GzipMemberReader gzipReader = new GzipMemberReader(input, 0L);) {
+            if (gzipReader.nextMember()) {
+                try (InputStream in = gzipReader.getInputStream();) {
+                    ArcRecordBase arcRecord = arcReader.getNextRecordFrom(in, gzipReader.getStartOffset());
+                    if (arcRecord != null) {
+                        arcRecord.close();
+                    }
+                }
+            }
+        }
+    }
+
     private void processArcStream(ArcReader arcReader, String fileName, Output out)
             throws IOException {
 
         long offset = 0;
         ArcRecordBase arcRecord;
         while ((arcRecord = arcReader.getNextRecord()) != null) {
-            UnconnectedCdxRecord currentRecord = readArcRecord(arcRecord, fileName);
-            if (currentRecord != null) {
-                currentRecord.set(FieldName.RECORD_LENGTH, NumberValue.valueOf(arcRecord.getConsumed()));
+            RecordFields fields = recordFields.get();
+            if (readArcFields(arcRecord, fileName, null, fields)) {
+                fields.recordLength = arcRecord.getConsumed();
                 offset += arcRecord.getConsumed();
 
-                out.write(currentRecord);
+                write(fields, out);
             }
         }
     }
 
-    private void processArcGzipStream(ArcReader arcReader, InputStream input, String fileName, Output out)
-            throws IOException {
+    private void processArcGzipStream(ArcReader arcReader, InputStream input, long baseOffset, String fileName,
+            Output out) throws IOException {
 
-        try (GzipReader gzipReader = new GzipReader(input);) {
-            GzipEntry gzipEntry;
-            while ((gzipEntry = gzipReader.getNextEntry()) != null) {
-                try (InputStream in = gzipEntry.getInputStream();) {
+        try (GzipMemberReader gzipReader = new GzipMemberReader(input, baseOffset);) {
+            while (gzipReader.nextMember()) {
+                try (InputStream in = gzipReader.getInputStream();) {
                     ArcRecordBase arcRecord;
-                    while ((arcRecord = arcReader.getNextRecordFrom(in, gzipEntry.getStartOffset()))
-                            != null) {
+                    while ((arcRecord = arcReader.getNextRecordFrom(in, gzipReader.getStartOffset())) != null) {
 
-                        UnconnectedCdxRecord currentRecord = readArcRecord(arcRecord, fileName);
-                        if (currentRecord != null) {
-                            gzipEntry.close();
-                            currentRecord.set(FieldName.RECORD_LENGTH, NumberValue.valueOf(gzipEntry.consumed));
+                        RecordFields fields = recordFields.get();
+                        if (readArcFields(arcRecord, fileName, null, fields)) {
+                            gzipReader.closeMember();
+                            fields.recordLength = gzipReader.getConsumed();
 
-                            out.write(currentRecord);
+                            write(fields, out);
                         }
                     }
                 }
@@ -171,31 +706,29 @@ public class CdxExtractor {
 
         WarcRecord warcRecord;
         while ((warcRecord = warcReader.getNextRecord()) != null) {
-            UnconnectedCdxRecord currentRecord = readWarcRecord(warcRecord, fileName);
-            if (currentRecord != null) {
-                currentRecord.set(FieldName.RECORD_LENGTH, NumberValue.valueOf(warcRecord.getConsumed()));
+            RecordFields fields = recordFields.get();
+            if (readWarcFields(warcRecord, fileName, null, fields)) {
+                fields.recordLength = warcRecord.getConsumed();
 
-                out.write(currentRecord);
+                write(fields, out);
             }
         }
     }
 
-    private void processWarcGzipStream(WarcReader warcReader, InputStream input, String fileName, Output out)
-            throws IOException {
-        try (GzipReader gzipReader = new GzipReader(input);) {
-            GzipEntry gzipEntry;
-            while ((gzipEntry = gzipReader.getNextEntry()) != null) {
-                try (InputStream in = gzipEntry.getInputStream();) {
+    private void processWarcGzipStream(WarcReader warcReader, InputStream input, long baseOffset, String fileName,
+            Output out) throws IOException {
+        try (GzipMemberReader gzipReader = new GzipMemberReader(input, baseOffset);) {
+            while (gzipReader.nextMember()) {
+                try (InputStream in = gzipReader.getInputStream();) {
                     WarcRecord warcRecord;
-                    while ((warcRecord = warcReader.getNextRecordFrom(in, gzipEntry.getStartOffset()))
-                            != null) {
+                    while ((warcRecord = warcReader.getNextRecordFrom(in, gzipReader.getStartOffset())) != null) {
 
-                        UnconnectedCdxRecord currentRecord = readWarcRecord(warcRecord, fileName);
-                        if (currentRecord != null) {
-                            gzipEntry.close();
-                            currentRecord.set(FieldName.RECORD_LENGTH, NumberValue.valueOf(gzipEntry.consumed));
+                        RecordFields fields = recordFields.get();
+                        if (readWarcFields(warcRecord, fileName, null, fields)) {
+                            gzipReader.closeMember();
+                            fields.recordLength = gzipReader.getConsumed();
 
-                            out.write(currentRecord);
+                            write(fields, out);
                         }
                     }
                 }
@@ -203,99 +736,375 @@ public class CdxExtractor {
         }
     }
 
-    private UnconnectedCdxRecord readArcRecord(ArcRecordBase arcRecord, String fileName) throws IOException {
-        if (arcRecord.recordType != ArcRecord.RT_ARC_RECORD) {
+    /**
+     * Write the fields of a record to an output.
+     * <p>
+     * Outputs which can write lines from the fields get them directly. Other outputs, and records such an output can
+     * not write from the fields, get a CDX record created from the fields.
+     * <p>
+     * @param fields the fields of the record
+     * @param out the output to write to
+     */
+    private void write(RecordFields fields, Output out) {
+        if (!(out instanceof FieldsOutput) || !((FieldsOutput) out).writeFields(fields)) {
+            out.write(toCdxRecord(fields));
+        }
+    }
+
+    /**
+     * Create a CDX record from an ARC record.
+     * <p>
+     * @param arcRecord the ARC record
+     * @param fileName the name of the file the record is read from
+     * @param deferred if not null, the payload is captured into this object instead of being digested by the reader
+     * @return the CDX record or null if the record should not be indexed
+     * @throws IOException is thrown if the record could not be read
+     */
+    UnconnectedCdxRecord readArcRecord(ArcRecordBase arcRecord, String fileName, DeferredDigest deferred)
+            throws IOException {
+        RecordFields fields = recordFields.get();
+        if (!readArcFields(arcRecord, fileName, deferred, fields)) {
             return null;
         }
+        return toCdxRecord(fields);
+    }
 
-        UnconnectedCdxRecord currentRecord = new UnconnectedCdxRecord();
-        currentRecord.set(FieldName.FILENAME, StringValue.valueOf(fileName));
+    /**
+     * Read the fields of an ARC record.
+     * <p>
+     * @param arcRecord the ARC record
+     * @param fileName the name of the file the record is read from
+     * @param deferred if not null, the payload is captured into this object instead of being digested by the reader
+     * @param fields the object to read the fields into. All fields are overwritten.
+     * @return false if the record should not be indexed
+     * @throws IOException is thrown if the record could not be read
+     */
+    boolean readArcFields(ArcRecordBase arcRecord, String fileName, DeferredDigest deferred, RecordFields fields)
+            throws IOException {
+        if (arcRecord.recordType != ArcRecord.RT_ARC_RECORD) {
+            return false;
+        }
+        if (recordFilter != null && !acceptArcRecord(arcRecord)) {
+            return false;
+        }
+
+        fields.clear();
+        fields.fileName = fileName;
 
         ArcHeader arcHeader = arcRecord.header;
-        currentRecord.set(FieldName.TIMESTAMP, TimestampValue.valueOf(arcHeader.archiveDateStr));
-        currentRecord.set(FieldName.ORIGINAL_URI, UriValue.valueOf(arcHeader.urlStr));
-        currentRecord.set(FieldName.RECORD_TYPE, StringValue.valueOf("response"));
-        currentRecord.set(FieldName.OFFSET, NumberValue.valueOf(arcRecord.getStartOffset()));
+        fields.timestamp = timestampCache.get(arcHeader.archiveDateStr);
+        fields.uri = uriValue(arcHeader.urlStr);
+        fields.recordType = "response";
+        fields.offset = arcRecord.getStartOffset();
 
         String mimeType = arcHeader.contentTypeStr;
         long length = arcHeader.archiveLength;
+        String payloadDigest = null;
         if (arcRecord.getHttpHeader() != null) {
             HttpHeader httpHeader = arcRecord.getHttpHeader();
             if (httpHeader.isValid()) {
                 length = httpHeader.getPayloadLength();
+                if (deferred != null && !fast) {
+                    deferred.capture(httpHeader.getPayloadInputStream(), length, null, arcRecord.getStartOffset());
+                } else if (recordFilter != null && payloadDigestEnabled) {
+                    payloadDigest = PayloadDigester.digest(httpHeader.getPayloadInputStream());
+                }
             }
             mimeType = httpHeader.contentType;
-            currentRecord.set(FieldName.RESPONSE_CODE, NumberValue
-                    .valueOf(httpHeader.getProtocolStatusCode()));
+            fields.hasHttpHeader = true;
+            fields.statusCode = httpHeader.getProtocolStatusCode();
         }
 
-        currentRecord.set(FieldName.CONTENT_TYPE, StringValue.valueOf(mimeType));
-        currentRecord.set(FieldName.CONTENT_LENGTH, NumberValue.valueOf(arcHeader.archiveLength));
-        currentRecord.set(FieldName.PAYLOAD_LENGTH, NumberValue.valueOf(length));
+        fields.mimeType = mimeType;
+        fields.contentLength = arcHeader.archiveLength;
+        fields.payloadLength = length;
         arcRecord.close();
-//        currentRecord.set(FieldName.DIGEST, StringValue.valueOf(arcRecord.computedBlockDigest.digestString));
 
         if (arcRecord.computedPayloadDigest != null) {
-            currentRecord.set(FieldName.PAYLOAD_DIGEST,
-                    StringValue.valueOf(arcRecord.computedPayloadDigest.digestString));
+            payloadDigest = arcRecord.computedPayloadDigest.digestString;
         }
-        return currentRecord;
+        fields.payloadDigest = payloadDigest;
+        return true;
     }
 
-    private UnconnectedCdxRecord readWarcRecord(WarcRecord warcRecord, String fileName) throws IOException {
-        if (warcRecord.header.warcTypeIdx == WarcConstants.RT_IDX_WARCINFO
-                || warcRecord.header.warcTypeIdx == WarcConstants.RT_IDX_METADATA) {
+    /**
+     * Create a CDX record from a WARC record.
+     * <p>
+     * @param warcRecord the WARC record
+     * @param fileName the name of the file the record is read from
+     * @param deferred if not null, payloads which should be digested are captured into this object instead of being
+     * digested while reading
+     * @return the CDX record or null if the record should not be indexed
+     * @throws IOException is thrown if the record could not be read
+     */
+    UnconnectedCdxRecord readWarcRecord(WarcRecord warcRecord, String fileName, DeferredDigest deferred)
+            throws IOException {
+        RecordFields fields = recordFields.get();
+        if (!readWarcFields(warcRecord, fileName, deferred, fields)) {
             return null;
         }
+        return toCdxRecord(fields);
+    }
 
-        UnconnectedCdxRecord currentRecord = new UnconnectedCdxRecord();
-        currentRecord.set(FieldName.FILENAME, StringValue.valueOf(fileName));
+    /**
+     * Read the fields of a WARC record.
+     * <p>
+     * @param warcRecord the WARC record
+     * @param fileName the name of the file the record is read from
+     * @param deferred if not null, payloads which should be digested are captured into this object instead of being
+     * digested while reading
+     * @param fields the object to read the fields into. All fields are overwritten.
+     * @return false if the record should not be indexed
+     * @throws IOException is thrown if the record could not be read
+     */
+    boolean readWarcFields(WarcRecord warcRecord, String fileName, DeferredDigest deferred, RecordFields fields)
+            throws IOException {
+        if (recordFilter == null) {
+            if (warcRecord.header.warcTypeIdx == WarcConstants.RT_IDX_WARCINFO
+                    || warcRecord.header.warcTypeIdx == WarcConstants.RT_IDX_METADATA) {
+                return false;
+            }
+        } else if (!acceptWarcRecord(warcRecord)) {
+            return false;
+        }
+
+        fields.clear();
+        fields.warc = true;
+        fields.fileName = fileName;
 
         WarcHeader warcHeader = warcRecord.header;
-        currentRecord.set(FieldName.RECORD_ID, StringValue.valueOf(warcHeader.warcRecordIdStr));
-        currentRecord.set(FieldName.TIMESTAMP, TimestampValue.valueOf(warcHeader.warcDateStr));
-        currentRecord.set(FieldName.ORIGINAL_URI, UriValue.valueOf(warcHeader.warcTargetUriStr));
-        currentRecord.set(FieldName.RECORD_TYPE, StringValue.valueOf(warcHeader.warcTypeStr));
-        currentRecord.set(FieldName.OFFSET, NumberValue.valueOf(warcRecord.getStartOffset()));
+        fields.recordId = warcHeader.warcRecordIdStr;
+        fields.timestamp = timestampCache.get(warcHeader.warcDateStr);
+        fields.uri = uriValue(warcHeader.warcTargetUriStr);
+        fields.recordType = warcHeader.warcTypeStr;
+        fields.offset = warcRecord.getStartOffset();
 
         String mimeType = warcHeader.contentTypeStr;
         long length = warcHeader.contentLength;
+        String sampledDigest = null;
+        String computedDigest = null;
         if (warcRecord.getHttpHeader() != null) {
             HttpHeader httpHeader = warcRecord.getHttpHeader();
             if (httpHeader.isValid()) {
                 length = httpHeader.getPayloadLength();
+                boolean sampled = isDigestSampled(warcHeader);
+                if (deferred != null && (sampled || isWarcDigestComputed())) {
+                    deferred.capture(httpHeader.getPayloadInputStream(), length, sampled ? warcHeader : null,
+                            warcRecord.getStartOffset());
+                } else if (sampled) {
+                    sampledDigest = PayloadDigester.digest(httpHeader.getPayloadInputStream());
+                } else if (recordFilter != null && isWarcDigestComputed()) {
+                    computedDigest = PayloadDigester.digest(httpHeader.getPayloadInputStream());
+                }
             }
             mimeType = httpHeader.contentType;
-            currentRecord.set(FieldName.RESPONSE_CODE, NumberValue
-                    .valueOf(httpHeader.getProtocolStatusCode()));
+            fields.hasHttpHeader = true;
+            fields.statusCode = httpHeader.getProtocolStatusCode();
         }
 
-        currentRecord.set(FieldName.CONTENT_TYPE, StringValue.valueOf(mimeType));
-        currentRecord.set(FieldName.CONTENT_LENGTH, NumberValue.valueOf(warcHeader.contentLength));
-        currentRecord.set(FieldName.PAYLOAD_LENGTH, NumberValue.valueOf(length));
+        fields.mimeType = mimeType;
+        fields.contentLength = warcHeader.contentLength;
+        fields.payloadLength = length;
         warcRecord.close();
-//        currentRecord.set(FieldName.DIGEST, StringValue.valueOf(warcRecord.computedBlockDigest.digestString));
 
+        String payloadDigest = null;
         if (warcRecord.computedPayloadDigest != null) {
-            currentRecord.set(FieldName.PAYLOAD_DIGEST,
-                    StringValue.valueOf(warcRecord.computedPayloadDigest.digestString));
+            payloadDigest = warcRecord.computedPayloadDigest.digestString;
+        } else if (computedDigest != null) {
+            payloadDigest = computedDigest;
+        } else if (sampledDigest != null) {
+            payloadDigest = verifyPayloadDigest(warcHeader, warcRecord.getStartOffset(), sampledDigest);
+        } else if (!isWarcDigestComputed() && (deferred == null || !deferred.isCaptured())) {
+            payloadDigest = PayloadDigester.fromHeader(warcHeader.warcPayloadDigest);
         }
+        fields.payloadDigest = payloadDigest;
 
         if (warcRecord.header.warcTypeIdx == WarcConstants.RT_IDX_REVISIT) {
-            currentRecord.set(FieldName.REVISIT_ORIGINAL_ID, StringValue.valueOf(warcHeader.warcRefersToStr));
-            currentRecord.set(FieldName.REVISIT_ORIGINAL_URI, UriValue.valueOf(warcHeader.warcRefersToTargetUriStr));
-            currentRecord.set(FieldName.REVISIT_ORIGINAL_DATE, TimestampValue.valueOf(warcHeader.warcRefersToDateStr));
+            fields.revisit = true;
+            fields.refersTo = warcHeader.warcRefersToStr;
+            fields.refersToUri = uriValue(warcHeader.warcRefersToTargetUriStr);
+            fields.refersToDate = warcHeader.warcRefersToDateStr;
         }
+        return true;
+    }
 
+    /**
+     * Create a CDX record from the fields of a record.
+     * <p>
+     * @param fields the fields
+     * @return the CDX record
+     */
+    UnconnectedCdxRecord toCdxRecord(RecordFields fields) {
+        UnconnectedCdxRecord currentRecord = new UnconnectedCdxRecord();
+        currentRecord.set(FieldName.FILENAME, recordValues.string(fields.fileName));
+        if (fields.warc) {
+            currentRecord.set(FieldName.RECORD_ID, StringValue.valueOf(fields.recordId));
+        }
+        currentRecord.set(FieldName.TIMESTAMP, fields.timestamp);
+        currentRecord.set(FieldName.ORIGINAL_URI, fields.uri);
+        currentRecord.set(FieldName.RECORD_TYPE, recordValues.string(fields.recordType));
+        currentRecord.set(FieldName.OFFSET, NumberValue.valueOf(fields.offset));
+        if (fields.hasHttpHeader) {
+            currentRecord.set(FieldName.RESPONSE_CODE, recordValues.statusCode(fields.statusCode));
+        }
+        currentRecord.set(FieldName.CONTENT_TYPE, recordValues.string(fields.mimeType));
+        currentRecord.set(FieldName.CONTENT_LENGTH, NumberValue.valueOf(fields.contentLength));
+        currentRecord.set(FieldName.PAYLOAD_LENGTH, NumberValue.valueOf(fields.payloadLength));
+//        currentRecord.set(FieldName.DIGEST, StringValue.valueOf(warcRecord.computedBlockDigest.digestString));
+        if (fields.payloadDigest != null) {
+            currentRecord.set(FieldName.PAYLOAD_DIGEST, StringValue.valueOf(fields.payloadDigest));
+        }
+        if (fields.revisit) {
+            currentRecord.set(FieldName.REVISIT_ORIGINAL_ID, StringValue.valueOf(fields.refersTo));
+            currentRecord.set(FieldName.REVISIT_ORIGINAL_URI, fields.refersToUri);
+            currentRecord.set(FieldName.REVISIT_ORIGINAL_DATE, TimestampValue.valueOf(fields.refersToDate));
+        }
+        if (fields.recordLength >= 0) {
+            currentRecord.set(FieldName.RECORD_LENGTH, NumberValue.valueOf(fields.recordLength));
+        }
         return currentRecord;
     }
 
+    /**
+     * Parse a URI, using the cache if enabled.
+     * <p>
+     * @param uri the URI as found in the record header
+     * @return the parsed value
+     */
+    private UriValue uriValue(String uri) {
+        if (uriCache != null) {
+            return uriCache.get(uri);
+        }
+        return UriValue.valueOf(uri);
+    }
+
+    /**
+     * Apply the record filter to an ARC record.
+     * <p>
+     * @param arcRecord the record
+     * @return true if the record should be indexed
+     */
+    private boolean acceptArcRecord(ArcRecordBase arcRecord) {
+        if (!recordFilter.acceptType("response")) {
+            return false;
+        }
+        if (!recordFilter.hasContentFilter()) {
+            return true;
+        }
+        HttpHeader httpHeader = arcRecord.getHttpHeader();
+        if (httpHeader != null) {
+            return recordFilter.acceptContent(httpHeader.contentType,
+                    String.valueOf(httpHeader.getProtocolStatusCode()));
+        }
+        return recordFilter.acceptContent(arcRecord.header.contentTypeStr, null);
+    }
+
+    /**
+     * Apply the record filter to a WARC record.
+     * <p>
+     * @param warcRecord the record
+     * @return true if the record should be indexed
+     */
+    private boolean acceptWarcRecord(WarcRecord warcRecord) {
+        if (!recordFilter.acceptType(warcRecord.header.warcTypeStr)) {
+            return false;
+        }
+        if (!recordFilter.hasContentFilter()) {
+            return true;
+        }
+        HttpHeader httpHeader = warcRecord.getHttpHeader();
+        if (httpHeader != null) {
+            return recordFilter.acceptContent(httpHeader.contentType,
+                    String.valueOf(httpHeader.getProtocolStatusCode()));
+        }
+        return recordFilter.acceptContent(warcRecord.header.contentTypeStr, null);
+    }
+
+    /**
+     * Check if the readers should compute digests while reading.
+     * <p>
+     * @return false if digests are computed for accepted records only
+     */
+    private boolean digestsInReader() {
+        return recordFilter == null;
+    }
+
+    /**
+     * Check if JWAT computes digests for WARC records.
+     * <p>
+     * @return true if digests are computed while reading WARC records
+     */
+    private boolean isWarcDigestComputed() {
+        return payloadDigestEnabled && digestPolicy == DigestPolicy.COMPUTE;
+    }
+
+    /**
+     * Decide if a WARC record should get its payload digest verified.
+     * <p>
+     * Revisit records are never sampled since their digest header refers to the payload of the revisited record.
+     * <p>
+     * @param warcHeader the header of the record
+     * @return true if the digest should be computed and compared to the header
+     */
+    private boolean isDigestSampled(WarcHeader warcHeader) {
+        return !fast && digestPolicy == DigestPolicy.VERIFY_SAMPLED
+                && warcHeader.warcTypeIdx != WarcConstants.RT_IDX_REVISIT
+                && ThreadLocalRandom.current().nextDouble() < digestSampleRate;
+    }
+
+    /**
+     * Compare a computed payload digest with the WARC-Payload-Digest header.
+     * <p>
+     * @param warcHeader the header of the record the digest was computed for
+     * @param offset the offset of the record
+     * @param computedDigest the computed digest
+     * @return the computed digest
+     */
+    private String verifyPayloadDigest(WarcHeader warcHeader, long offset, String computedDigest) {
+        verifiedDigests.incrementAndGet();
+        String headerDigest = PayloadDigester.fromHeader(warcHeader.warcPayloadDigest);
+        if (headerDigest != null && !headerDigest.equals(computedDigest)) {
+            digestMismatches.incrementAndGet();
+            System.err.println("Payload digest mismatch for record " + warcHeader.warcRecordIdStr
+                    + " at offset " + offset + ": header has " + headerDigest
+                    + ", computed " + computedDigest);
+        }
+        return computedDigest;
+    }
+
+    /**
+     * Compute a deferred payload digest and add it to the record.
+     * <p>
+     * @param record the record to add the digest to
+     * @param deferred the captured payload
+     */
+    void completeDigest(UnconnectedCdxRecord record, DeferredDigest deferred) {
+        if (!deferred.isCaptured()) {
+            return;
+        }
+        String payloadDigest = deferred.computeDigest();
+        if (deferred.getVerifyHeader() != null) {
+            payloadDigest = verifyPayloadDigest(deferred.getVerifyHeader(), deferred.getOffset(), payloadDigest);
+        }
+        record.set(FieldName.PAYLOAD_DIGEST, StringValue.valueOf(payloadDigest));
+    }
+
     private void configureArcReader(ArcReader arcReader) {
+        configureArcReader(arcReader, digestsInReader());
+    }
+
+    /**
+     * Configure an ARC reader.
+     * <p>
+     * @param arcReader the reader to configure
+     * @param digestsInReader false if digests are computed outside of the reader
+     */
+    void configureArcReader(ArcReader arcReader, boolean digestsInReader) {
         arcReader.setUriProfile(uriProfile);
-        arcReader.setBlockDigestEnabled(blockDigestEnabled);
+        arcReader.setBlockDigestEnabled(blockDigestEnabled && digestsInReader);
         arcReader.setBlockDigestAlgorithm("SHA1");
         arcReader.setBlockDigestEncoding("base32");
-        arcReader.setPayloadDigestEnabled(payloadDigestEnabled);
+        arcReader.setPayloadDigestEnabled(payloadDigestEnabled && digestsInReader);
         arcReader.setPayloadDigestAlgorithm("SHA1");
         arcReader.setPayloadDigestEncoding("base32");
         arcReader.setRecordHeaderMaxSize(recordHeaderMaxSize);
@@ -303,15 +1112,43 @@ public class CdxExtractor {
     }
 
     private void configureWarcReader(WarcReader warcReader) {
+        configureWarcReader(warcReader, digestsInReader());
+    }
+
+    /**
+     * Configure a WARC reader.
+     * <p>
+     * @param warcReader the reader to configure
+     * @param digestsInReader false if digests are computed outside of the reader
+     */
+    void configureWarcReader(WarcReader warcReader, boolean digestsInReader) {
         warcReader.setWarcTargetUriProfile(uriProfile);
-        warcReader.setBlockDigestEnabled(blockDigestEnabled);
+        warcReader.setBlockDigestEnabled(blockDigestEnabled && digestPolicy == DigestPolicy.COMPUTE && digestsInReader);
         warcReader.setBlockDigestAlgorithm("SHA1");
         warcReader.setBlockDigestEncoding("base32");
-        warcReader.setPayloadDigestEnabled(payloadDigestEnabled);
+        warcReader.setPayloadDigestEnabled(isWarcDigestComputed() && digestsInReader);
         warcReader.setPayloadDigestAlgorithm("SHA1");
         warcReader.setPayloadDigestEncoding("base32");
         warcReader.setRecordHeaderMaxSize(recordHeaderMaxSize);
         warcReader.setPayloadHeaderMaxSize(payloadHeaderMaxSize);
     }
 
+    /**
+     * Output collecting the records of one byte range.
+     */
+    private static class RecordBuffer implements Output {
+
+        private final List<CdxRecord> records = new ArrayList<>();
+
+        @Override
+        public void write(CdxRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
 }
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.netpreserve.commons.cdx.CdxFormat;
+import org.netpreserve.commons.cdx.FieldName;
+import org.netpreserve.commons.cdx.cdxrecord.CdxLineFormat;
+import org.netpreserve.commons.cdx.cdxrecord.CdxjLineFormat;
+import org.netpreserve.commons.cdx.cdxrecord.UnconnectedCdxRecord;
+import org.netpreserve.commons.cdx.json.TimestampValue;
+
+/**
+ * Writes CDX lines directly from extracted record fields.
+ * <p>
+ * The line is built in a reusable char buffer, which is also the emitter's char sequence, and no values or strings
+ * are created per record. The output is the same as {@link org.netpreserve.commons.cdx.formatter.CdxRecordFormatter}
+ * produces for the record.
+ * <p>
+ * The record key is canonicalized by the CDX library, so the key of a URI and date is computed once from a CDX
+ * record and cached. Records repeating the URI of a recent record or the date of the previous record reuse the cached
+ * parts of the key.
+ * <p>
+ * In CDXJ, values which are not plain ASCII or need escaping, missing values and revisit records are left to the
+ * formatter: {@link #emit(RecordFields)} returns false for them.
+ * <p>
+ * An emitter is not thread safe.
+ */
+final class CdxLineEmitter implements CharSequence {
+
+    private static final char NULL_VALUE = '-';
+
+    /**
+     * Max number of URIs whose canonicalized key is cached.
+     */
+    static final int KEY_CACHE_SIZE = 1024;
+
+    private final boolean cdx11;
+
+    private final boolean cdxj;
+
+    private final JsonNames names;
+
+    private final Map<String, String> uriKeys = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > KEY_CACHE_SIZE;
+        }
+
+    };
+
+    private TimestampValue lastTimestamp;
+
+    private String lastTimestampKey;
+
+    private char[] buf = new char[1024];
+
+    private int length;
+
+    private byte[] encoded = new byte[3 * 1024];
+
+    /**
+     * Create an emitter.
+     * <p>
+     * @param format the format to write, must be supported
+     * @throws IllegalArgumentException is thrown if the format is not supported
+     */
+    CdxLineEmitter(CdxFormat format) {
+        if (!supports(format)) {
+            throw new IllegalArgumentException("Format not supported: " + format);
+        }
+        this.cdx11 = format == CdxLineFormat.CDX11LINE;
+        this.cdxj = format == CdxjLineFormat.DEFAULT_CDXJLINE;
+        this.names = cdxj ? new JsonNames() : null;
+    }
+
+    /**
+     * Check if lines of a format can be written by an emitter.
+     * <p>
+     * @param format the format
+     * @return true if the format is cdx9, cdx11 or the default CDXJ format
+     */
+    static boolean supports(CdxFormat format) {
+        return format == CdxLineFormat.CDX09LINE || format == CdxLineFormat.CDX11LINE
+                || format == CdxjLineFormat.DEFAULT_CDXJLINE;
+    }
+
+    /**
+     * Write the line for a record into the buffer, replacing the previous line. The line has no line terminator.
+     * <p>
+     * Fields are 'N b a m s k r M S V g' for cdx11 and 'N b a m s k r V g' for cdx9. CDXJ lines have the key, the
+     * record type and a JSON block with the fields in the order they are added to the CDX record by the extractor.
+     * <p>
+     * @param fields the fields of the record
+     * @return true if the line was written, false if the record must be formatted as a CDX record instead. Always
+     * true for cdx9 and cdx11.
+     */
+    boolean emit(RecordFields fields) {
+        length = 0;
+        String uri = fields.uri == null ? null : fields.uri.toString();
+        if (cdxj) {
+            return emitCdxj(fields, uri);
+        }
+
+        appendKey(fields, uri);
+        appendField(uri);
+        appendField(fields.mimeType);
+        appendStatusField(fields.hasHttpHeader ? fields.statusCode : null);
+        appendField(fields.payloadDigest);
+        // Redirect
+        appendField(null);
+        if (cdx11) {
+            // Robot flags
+            appendField(null);
+            appendNumberField(fields.recordLength);
+        }
+        appendNumberField(fields.offset);
+        appendField(fields.fileName);
+        return true;
+    }
+
+    private boolean emitCdxj(RecordFields fields, String uri) {
+        if (fields.revisit || uri == null || fields.recordType == null || fields.mimeType == null
+                || (fields.warc && fields.recordId == null)
+                || (fields.hasHttpHeader && !isPlainStatusCode(fields.statusCode))) {
+            return false;
+        }
+
+        appendKey(fields, uri);
+        append(' ');
+        if (!appendPlain(fields.recordType)) {
+            return false;
+        }
+        append(' ');
+        append('{');
+        if (!appendJsonString(names.fileName, fields.fileName, true)) {
+            return false;
+        }
+        if (fields.warc && !appendJsonString(names.recordId, fields.recordId, false)) {
+            return false;
+        }
+        if (!appendJsonString(names.uri, uri, false)) {
+            return false;
+        }
+        appendJsonNumber(names.offset, fields.offset);
+        if (fields.hasHttpHeader) {
+            appendJsonName(names.status, false);
+            appendPlain(fields.statusCode);
+        }
+        if (!appendJsonString(names.contentType, fields.mimeType, false)) {
+            return false;
+        }
+        appendJsonNumber(names.contentLength, fields.contentLength);
+        appendJsonNumber(names.payloadLength, fields.payloadLength);
+        if (fields.payloadDigest != null && !appendJsonString(names.payloadDigest, fields.payloadDigest, false)) {
+            return false;
+        }
+        if (fields.recordLength >= 0) {
+            appendJsonNumber(names.recordLength, fields.recordLength);
+        }
+        append('}');
+        return true;
+    }
+
+    /**
+     * Write the line followed by a newline to a stream, encoded as UTF-8.
+     * <p>
+     * @param out the stream to write to
+     * @throws IOException is thrown if the line could not be written
+     */
+    void writeUtf8(OutputStream out) throws IOException {
+        if (encoded.length < 3 * length + 1) {
+            encoded = new byte[Math.max(3 * length + 1, encoded.length * 2)];
+        }
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = buf[i];
+            if (c < 0x80) {
+                encoded[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                encoded[pos++] = (byte) (0xc0 | (c >> 6));
+                encoded[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(buf[i + 1])) {
+                int cp = Character.toCodePoint(c, buf[++i]);
+                encoded[pos++] = (byte) (0xf0 | (cp >> 18));
+                encoded[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                encoded[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                encoded[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, encoded as '?' like String.getBytes does
+                encoded[pos++] = '?';
+            } else {
+                encoded[pos++] = (byte) (0xe0 | (c >> 12));
+                encoded[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                encoded[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        encoded[pos++] = '\n';
+        out.write(encoded, 0, pos);
+    }
+
+    /**
+     * Get the buffer holding the line.
+     * <p>
+     * @return the buffer, valid up to {@link #length()}
+     */
+    char[] getChars() {
+        return buf;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return buf[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(buf, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, length);
+    }
+
+    /**
+     * Append the record key, which is the canonicalized URI and the timestamp separated by a space.
+     * <p>
+     * @param fields the fields of the record
+     * @param uri the URI of the record as a string, or null if the record has no URI
+     */
+    private void appendKey(RecordFields fields, String uri) {
+        String uriKey = uri == null ? null : uriKeys.get(uri);
+        if (uriKey == null || fields.timestamp == null || fields.timestamp != lastTimestamp) {
+            UnconnectedCdxRecord keyRecord = new UnconnectedCdxRecord();
+            keyRecord.set(FieldName.ORIGINAL_URI, fields.uri);
+            keyRecord.set(FieldName.TIMESTAMP, fields.timestamp);
+            String key = keyRecord.getKey().toString();
+            int split = key.lastIndexOf(' ');
+            if (uri == null || fields.timestamp == null || split < 0) {
+                appendString(key);
+                return;
+            }
+            uriKey = key.substring(0, split);
+            uriKeys.put(uri, uriKey);
+            lastTimestamp = fields.timestamp;
+            lastTimestampKey = key.substring(split + 1);
+        }
+        appendString(uriKey);
+        append(' ');
+        appendString(lastTimestampKey);
+    }
+
+    private void appendField(String value) {
+        append(' ');
+        if (value == null) {
+            append(NULL_VALUE);
+        } else {
+            appendString(value);
+        }
+    }
+
+    /**
+     * Append the status code. The formatter writes it as a number, so leading zeros are dropped.
+     * <p>
+     * @param code the status code as found in the http header
+     */
+    private void appendStatusField(String code) {
+        if (code == null || code.isEmpty() || code.length() > 9) {
+            appendField(code);
+            return;
+        }
+        long value = 0;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                appendField(code);
+                return;
+            }
+            value = value * 10 + c - '0';
+        }
+        appendNumberField(value);
+    }
+
+    private void appendNumberField(long value) {
+        append(' ');
+        if (value < 0) {
+            append(NULL_VALUE);
+            return;
+        }
+        appendNumber(value);
+    }
+
+    private void appendNumber(long value) {
+        if (value < 0) {
+            appendString(Long.toString(value));
+            return;
+        }
+        ensureCapacity(length + 20);
+        int start = length;
+        do {
+            buf[length++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // Digits were written least significant first
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char c = buf[i];
+            buf[i] = buf[j];
+            buf[j] = c;
+        }
+    }
+
+    private void appendJsonName(String name, boolean first) {
+        if (!first) {
+            append(',');
+        }
+        append('"');
+        appendString(name);
+        append('"');
+        append(':');
+    }
+
+    /**
+     * Append a JSON member with a string value.
+     * <p>
+     * @param name the name of the member
+     * @param value the value
+     * @param first true for the first member of the object
+     * @return false if the value is not plain ASCII without characters needing escaping
+     */
+    private boolean appendJsonString(String name, String value, boolean first) {
+        appendJsonName(name, first);
+        append('"');
+        if (!appendPlain(value)) {
+            return false;
+        }
+        append('"');
+        return true;
+    }
+
+    private void appendJsonNumber(String name, long value) {
+        appendJsonName(name, false);
+        appendNumber(value);
+    }
+
+    /**
+     * Append a string which is written the same in JSON and in the line, i.e. printable ASCII except quote and
+     * backslash.
+     * <p>
+     * @param value the string
+     * @return false if the string has other characters, the line is then incomplete
+     */
+    private boolean appendPlain(String value) {
+        int len = value.length();
+        ensureCapacity(length + len);
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c >= 0x7f || c == '"' || c == '\\') {
+                return false;
+            }
+            buf[length++] = c;
+        }
+        return true;
+    }
+
+    /**
+     * Check if a status code is written the same by the formatter as in the http header.
+     * <p>
+     * @param code the status code
+     * @return true for three digits not starting with zero
+     */
+    private static boolean isPlainStatusCode(String code) {
+        if (code == null || code.length() != 3 || code.charAt(0) == '0') {
+            return false;
+        }
+        for (int i = 0; i < 3; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendString(String value) {
+        int len = value.length();
+        ensureCapacity(length + len);
+        value.getChars(0, len, buf, length);
+        length += len;
+    }
+
+    private void append(char c) {
+        ensureCapacity(length + 1);
+        buf[length++] = c;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+        }
+    }
+
+    /**
+     * The names of the fields in the CDXJ JSON block, as defined by the CDX library.
+     */
+    private static final class JsonNames {
+
+        private final String fileName = FieldName.FILENAME.getName();
+
+        private final String recordId = FieldName.RECORD_ID.getName();
+
+        private final String uri = FieldName.ORIGINAL_URI.getName();
+
+        private final String offset = FieldName.OFFSET.getName();
+
+        private final String status = FieldName.RESPONSE_CODE.getName();
+
+        private final String contentType = FieldName.CONTENT_TYPE.getName();
+
+        private final String contentLength = FieldName.CONTENT_LENGTH.getName();
+
+        private final String payloadLength = FieldName.PAYLOAD_LENGTH.getName();
+
+        private final String payloadDigest = FieldName.PAYLOAD_DIGEST.getName();
+
+        private final String recordLength = FieldName.RECORD_LENGTH.getName();
+
+    }
+
+}
@@ -15,30 +15,43 @@
  */
 package org.netpreserve.webarchive.cdxcli.cmdextract;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
 import org.jwat.archive.FileIdent;
 import org.netpreserve.commons.cdx.CdxFormat;
 import org.netpreserve.commons.cdx.cdxrecord.CdxjLineFormat;
 import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
+import org.netpreserve.webarchive.cdxcli.AdaptiveConcurrency;
 import org.netpreserve.webarchive.cdxcli.Command;
+import org.netpreserve.webarchive.cdxcli.FileTaskRunner;
+import org.netpreserve.webarchive.cdxcli.FormatConverter;
 import org.netpreserve.webarchive.cdxcli.MainParameters;
+import org.netpreserve.webarchive.cdxcli.MemorySizeConverter;
+import org.netpreserve.webarchive.cdxcli.sort.ExternalSorter;
+import org.netpreserve.webarchive.cdxcli.sort.PartitionedWriter;
+import org.netpreserve.webarchive.cdxcli.zipnum.ZipNumWriter;
 
 /**
  * Command for extracting cdx records from ARC and WARC files.
@@ -46,20 +59,44 @@ import org.netpreserve.webarchive.cdxcli.MainParameters;
 @Parameters(commandNames = "extract", commandDescription = "Extract cdx file from ARC/WARC files")
 public class CommandExtract implements Command {
 
-    @Parameter(names = {"-f", "--format"}, description = "One of cdxj, cdx9 or cdx11.")
+    /**
+     * Inputs are only listed one by one when there are not more than this many.
+     */
+    private static final int MAX_LISTED_INPUTS = 100;
+
+    @Parameter(names = {"-f", "--format"}, description = "One of cdxj, cdx9 or cdx11. Several formats separated by "
+               + "comma are extracted in one pass over the input. Then -o must be a directory, and formats having the "
+               + "same file suffix get the format name as suffix.")
+    List<String> formatNames;
+
+    /**
+     * The formats to extract, from -f.
+     */
+    List<CdxFormat> formats;
+
+    /**
+     * The first format to extract.
+     */
     CdxFormat format = CdxjLineFormat.DEFAULT_CDXJLINE;
 
     @Parameter(names = {"-s", "--sort"}, description = "Sort file after extracting")
     boolean sort = false;
 
-    @Parameter(names = {"-c", "--concatenate"}, description = "Concatenate output into one file")
+    @Parameter(names = {"-c", "--concatenate"}, description = "Concatenate output into one file. If an input file "
+               + "fails, the other files are still extracted and the command fails at the end. The records of the "
+               + "failed file written before the failure are left in the output")
     boolean concatenate = false;
 
-    @Parameter(names = {"-i", "--input"}, required = true, variableArity = true, description = "Input file. "
+    @Parameter(names = {"-i", "--input"}, variableArity = true, description = "Input file or directory. "
                + "Multiple values can be separated by comma, space or the parameter can be repeated. "
-               + "Separation by space means that shell expansion will work.")
+               + "Separation by space means that shell expansion will work. Directories are searched recursively "
+               + "for (W)ARC files.")
     List<String> inputFileNames;
 
+    @Parameter(names = {"--input-list"}, description = "File listing input files or directories, one per line. "
+               + "Use '-' to read the list from standard in. Can be combined with -i.")
+    String inputListFileName;
+
     @Parameter(names = {"-o", "--output"}, description = "Destination. If not given, standard out is used. "
                + "If -c is given, the output will be treated as a file name. "
                + "If output is a directory, result is written to '<output>/out.<suffix>'. "
@@ -67,29 +104,297 @@ public class CommandExtract implements Command {
                + "except for the suffix.")
     String outputFileName;
 
-    @Parameter(names = {"-t", "--tempfiles"}, description = "The number of temporary files used for sorting. "
+    @Parameter(names = {"-t", "--tempfiles"}, description = "The number of temporary files used when sorting in "
+               + "one thread. Sorting in several threads, into partitions or with --sort-memory, --compress-tmp, "
+               + "--incremental or --checkpoint-interval is sized by memory and ignores this. "
                + "Only applicable when parameter -s is set")
     int scratchfileCount = 10;
 
-    @Parameter(names = {"-h", "--heapsize"}, description = "The number of lines in the heap when sorting. "
-               + "The amount of memory used is dependent on average cdx line length. "
-               + "Only applicable when parameter -s is set")
+    @Parameter(names = {"-h", "--heapsize"}, description = "The number of lines in the heap when sorting in one "
+               + "thread. The amount of memory used is dependent on average cdx line length. Ignored whenever -t is "
+               + "ignored. Only applicable when parameter -s is set")
     int heapSize = 100;
 
+    @Parameter(names = {"--sort-memory"}, converter = MemorySizeConverter.class, description = "The amount of "
+               + "memory used for sorting, e.g. 512m or 2g. Sorted runs are sized by memory instead of number of "
+               + "lines and the number of temporary files is chosen automatically, so -t and -h are ignored. "
+               + "Defaults to a quarter of the max heap size when the sort is sized by memory. "
+               + "Only applicable when parameter -s is set")
+    Long sortMemory;
+
+    @Parameter(names = {"--compress-tmp"}, description = "Compress the temporary files used for sorting. Saves "
+               + "scratch disk bandwidth at the cost of some CPU. Statistics for the temporary files are printed "
+               + "after sorting. Only applicable when parameter -s is set")
+    boolean compressTmp = false;
+
+    @Parameter(names = {"--zipnum"}, description = "Write the sorted output in ZipNum layout: blocks of lines "
+               + "compressed as separate gzip members in '<output>-NN.gz', a summary '<output>.idx' with the first "
+               + "key, shard, offset and length of each block and '<output>.loc' with the path of each shard. "
+               + "Only applicable when parameters -s, -c and -o are set")
+    boolean zipnum = false;
+
+    @Parameter(names = {"--zipnum-lines"}, description = "The number of lines in each block. "
+               + "Only applicable when parameter --zipnum is set")
+    int zipnumLines = 3000;
+
+    @Parameter(names = {"--zipnum-shards"}, description = "The number of shards, each covering a range of keys. "
+               + "Only applicable when parameter --zipnum is set")
+    int zipnumShards = 1;
+
+    @Parameter(names = {"--partitions"}, description = "Divide the sorted output into this many files, each "
+               + "covering a range of SURTs, named '<output>-NN.<suffix>'. The ranges are estimated from a sample of "
+               + "the sorted runs unless --split-points is given. The split points used are written to "
+               + "'<output>.splits'. Only applicable when parameters -s, -c and -o are set")
+    int partitions = 0;
+
+    @Parameter(names = {"--split-points"}, description = "File with one SURT per line where a new partition "
+               + "starts, e.g. the '.splits' file of an earlier run. Gives one more partition than there are lines. "
+               + "Only applicable when parameters -s, -c and -o are set")
+    String splitPointsFileName;
+
+    @Parameter(names = {"--split"}, description = "The number of threads used for processing one compressed (W)ARC "
+               + "file. Files are split into byte ranges at gzip member boundaries and the ranges are processed "
+               + "in parallel. Output is the same as when processing the file with one thread. The boundaries are "
+               + "found by an extra thread which inflates the whole file once more, so the speedup is limited by "
+               + "how fast one thread can inflate the file.")
+    int splitThreads = 1;
+
+    @Parameter(names = {"--split-size"}, description = "The approximate size in megabytes of each byte range. "
+               + "Only applicable when parameter --split is set")
+    int splitSize = 64;
+
+    @Parameter(names = {"--fast"}, description = "Only parse record and http headers. Payloads are skipped without "
+               + "computing digests, so the output will only contain payload digests found in WARC headers.")
+    boolean fast = false;
+
+    @Parameter(names = {"--digest"}, converter = DigestPolicyConverter.class, description = "How payload digests "
+               + "for WARC records are obtained. One of compute, trust-header (use WARC-Payload-Digest header) or "
+               + "verify-sampled (use header, but compute and compare for a sample of the records).")
+    DigestPolicy digestPolicy = DigestPolicy.COMPUTE;
+
+    @Parameter(names = {"--digest-sample"}, description = "Fraction of records to verify. "
+               + "Only applicable when parameter --digest is verify-sampled")
+    double digestSampleRate = 0.01;
+
+    @Parameter(names = {"--include-types"}, description = "Record types to index, e.g. response,revisit. "
+               + "Default is all types except warcinfo and metadata.")
+    List<String> includeTypes;
+
+    @Parameter(names = {"--exclude-types"}, description = "Record types not to index, e.g. request,resource.")
+    List<String> excludeTypes;
+
+    @Parameter(names = {"--include-mime"}, description = "Only index records with a content type starting with one "
+               + "of these values, e.g. text/html,image/.")
+    List<String> includeMime;
+
+    @Parameter(names = {"--include-status"}, description = "Only index records with one of these status codes or "
+               + "status code classes, e.g. 200,3xx. Records without a status code are not indexed.")
+    List<String> includeStatus;
+
+    @Parameter(names = {"--input-mode"}, converter = InputModeConverter.class, description = "How uncompressed "
+               + "(W)ARC files are read. One of stream, channel (large positional reads) or mmap (memory mapped "
+               + "windows). With channel and mmap, payloads skipped in --fast mode are never read from disk.")
+    InputMode inputMode = InputMode.STREAM;
+
+    @Parameter(names = {"--read-ahead"}, description = "Read each input file in a separate thread keeping this many "
+               + "buffers filled ahead of the parser. Hides latency of network storage. The time the parser waited "
+               + "for data is printed at the end. Zero reads in the parsing thread. Not used for --split ranges, for "
+               + "uncompressed files in --fast mode or with --input-mode channel and mmap.")
+    int readAhead = 0;
+
+    @Parameter(names = {"--read-ahead-buffer"}, converter = MemorySizeConverter.class, description = "The size of "
+               + "each read ahead buffer, e.g. 4m. Only applicable when parameter --read-ahead is set")
+    Long readAheadBuffer = 4L * 1024 * 1024;
+
+    @Parameter(names = {"--uri-cache"}, description = "The number of parsed URIs kept for reuse by records with the "
+               + "same URI, like the request and response of a capture. Hits and misses are printed at the end. "
+               + "Zero disables the cache.")
+    int uriCacheSize = 10000;
+
+    @Parameter(names = {"--pipeline"}, description = "Run decompression, parsing, digesting and writing of each file "
+               + "in separate threads. Queue statistics for the stages are printed at the end.")
+    boolean pipelined = false;
+
+    @Parameter(names = {"--threads"}, description = "The max number of input files processed in parallel. "
+               + "Files are processed largest first, except when writing to standard out without -s where the "
+               + "records are written in input order. A file that fails is reported and the others are processed "
+               + "before the command fails.")
+    int threads = 16;
+
+    @Parameter(names = {"--adaptive"}, description = "Adjust the number of files processed in parallel while running "
+               + "to get the most bytes per second. Starts with one file per processor and stays between one and the "
+               + "value of --threads. Each adjustment is printed to standard error.")
+    boolean adaptive = false;
+
+    @Parameter(names = {"--adaptive-interval"}, description = "Seconds between each adjustment. "
+               + "Only applicable when parameter --adaptive is set")
+    int adaptiveInterval = 10;
+
+    @Parameter(names = {"--incremental"}, description = "Only extract input files which are new or changed since the "
+               + "last run and merge their records into the existing output. Processed files are recorded in a "
+               + "manifest next to the output, '<output>.manifest'. Records from changed files replace the old ones. "
+               + "Only applicable when parameters -s, -c and -o are set")
+    boolean incremental = false;
+
+    @Parameter(names = {"--manifest-hash"}, description = "Record a quick hash of each input file in the manifest. A "
+               + "file with a new modification time, but the same size and hash is then considered unchanged. "
+               + "Only applicable when parameter --incremental is set")
+    boolean manifestHash = false;
+
+    @Parameter(names = {"--checkpoint-interval"}, description = "Save a checkpoint every this many minutes, so that "
+               + "an interrupted extraction can be continued with --resume. Sorted runs are kept in "
+               + "'<output>.checkpoint' until the output is complete. A file being extracted when the process stops "
+               + "is extracted again. All inputs must have different file names. "
+               + "Only applicable when parameters -s, -c and -o are set")
+    int checkpointInterval = 0;
+
+    @Parameter(names = {"--resume"}, description = "Continue an interrupted extraction from its last checkpoint. "
+               + "Must be given the same inputs and options as the interrupted run.")
+    boolean resume = false;
+
     final CdxExtractor cdxExtractor = new CdxExtractor();
 
+    /**
+     * The manifest of processed files when extracting incrementally.
+     */
+    ProcessedFiles manifest;
+
+    /**
+     * Split points read from --split-points, or null.
+     */
+    List<String> splitPoints;
+
+    /**
+     * An existing sorted output to merge the new records into, or null.
+     */
+    Path mergeInput;
+
+    /**
+     * Filter for the lines of the existing output.
+     */
+    ExternalSorter.LineFilter mergeFilter;
+
+    /**
+     * Checkpoint for the extraction, or null if checkpoints are not enabled.
+     */
+    ExtractionCheckpoint checkpoint;
+
+    /**
+     * The input files collected from -i and --input-list.
+     */
+    List<String> inputs;
+
     @Override
     public void exec(MainParameters mp) throws Exception {
+        formats = new ArrayList<>();
+        if (formatNames == null) {
+            formats.add(format);
+        } else {
+            for (String name : formatNames) {
+                formats.add(new FormatConverter().convert(name.trim()));
+            }
+            format = formats.get(0);
+        }
+        if (formats.size() > 1 && (outputFileName == null || !Files.isDirectory(Paths.get(outputFileName)))) {
+            throw new ParameterException("When extracting several formats, -o must be a directory");
+        }
+        if (formats.size() > 1 && (incremental || checkpointInterval > 0 || resume)) {
+            throw new ParameterException("Several formats can not be combined with --incremental, "
+                    + "--checkpoint-interval or --resume");
+        }
+
         String outFileSuffix = "." + format.getFileSuffix();
         CdxRecordFormatter formatter = new CdxRecordFormatter(format);
 
+        cdxExtractor.setFast(fast);
+        cdxExtractor.setDigestPolicy(digestPolicy, digestSampleRate);
+        cdxExtractor.setPipelined(pipelined);
+        cdxExtractor.setUriCacheSize(uriCacheSize);
+        cdxExtractor.setInputMode(inputMode);
+        if (readAhead < 0 || readAheadBuffer > Integer.MAX_VALUE) {
+            throw new ParameterException("Illegal read ahead depth or buffer size");
+        }
+        cdxExtractor.setReadAhead(readAhead, readAheadBuffer.intValue());
+        if (includeTypes != null || excludeTypes != null || includeMime != null || includeStatus != null) {
+            cdxExtractor.setRecordFilter(new RecordFilter(includeTypes, excludeTypes, includeMime, includeStatus));
+        }
+        if (splitThreads > 1) {
+            cdxExtractor.setSplitting(splitThreads, splitSize * 1024L * 1024L);
+        }
+
+        if (incremental && (!sort || !concatenate || outputFileName == null)) {
+            throw new ParameterException("--incremental requires -s, -c and -o");
+        }
+        if ((checkpointInterval > 0 || resume) && (!sort || !concatenate || outputFileName == null)) {
+            throw new ParameterException("--checkpoint-interval and --resume require -s, -c and -o");
+        }
+        if ((checkpointInterval > 0 || resume) && incremental) {
+            throw new ParameterException("--checkpoint-interval and --resume can not be combined with --incremental");
+        }
+        if (zipnum && (!sort || !concatenate || outputFileName == null)) {
+            throw new ParameterException("--zipnum requires -s, -c and -o");
+        }
+        if (zipnum && (incremental || checkpointInterval > 0 || resume)) {
+            throw new ParameterException("--zipnum can not be combined with --incremental, --checkpoint-interval "
+                    + "or --resume");
+        }
+        if (partitions > 0 || splitPointsFileName != null) {
+            if (!sort || !concatenate || outputFileName == null) {
+                throw new ParameterException("--partitions and --split-points require -s, -c and -o");
+            }
+            if (zipnum || incremental || checkpointInterval > 0 || resume) {
+                throw new ParameterException("--partitions and --split-points can not be combined with --zipnum, "
+                        + "--incremental, --checkpoint-interval or --resume");
+            }
+            if (splitPointsFileName != null) {
+                splitPoints = PartitionedWriter.readSplitPoints(Paths.get(splitPointsFileName));
+                if (partitions > 0 && partitions != splitPoints.size() + 1) {
+                    throw new ParameterException("--split-points gives " + (splitPoints.size() + 1)
+                            + " partitions, but --partitions is " + partitions);
+                }
+            }
+        }
+        if (inputFileNames == null && inputListFileName == null) {
+            throw new ParameterException("The following option is required: -i, --input or --input-list");
+        }
+        inputs = InputFiles.collect(inputFileNames, inputListFileName);
+        if (inputs.isEmpty()) {
+            System.err.println("No input files found");
+            return;
+        }
+        if (outputFileName != null || sort) {
+            // Output order does not depend on processing order, so avoid stragglers by starting with large files
+            inputs = InputFiles.largestFirst(inputs);
+        }
+
         if (outputFileName == null) {
             // Wrtie to std out
             Writer dst = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
-            try (Output out = createOutput(dst, formatter);) {
-                for (String in : inputFileNames) {
-                    File inFile = new File(in);
-                    extract(inFile, out);
+            FileTaskRunner runner = createRunner(mp);
+            if (sort) {
+                try (Output out = createOutput(dst, formatter);) {
+                    runner.run(inputs, (in) -> {
+                        extract(new File(in), out);
+                    });
+                }
+            } else {
+                // Extract files in parallel, but write each file's records in input order
+                BufferedWriter bufferedOut = new BufferedWriter(dst);
+                bufferedOut.write(format.getFileHeader());
+                bufferedOut.write('\n');
+                try (Writer out = bufferedOut;) {
+                    runner.runOrdered(inputs, (in) -> {
+                        SpillableOutput buffer = new SpillableOutput(new CdxRecordFormatter(format));
+                        try {
+                            extract(new File(in), buffer);
+                        } catch (IOException | RuntimeException ex) {
+                            buffer.close();
+                            throw ex;
+                        }
+                        return buffer;
+                    }, (buffer) -> {
+                        buffer.writeTo(out);
+                    });
                 }
             }
         } else {
@@ -103,67 +408,322 @@ public class CommandExtract implements Command {
                     outFile = outPath;
                 }
 
+                if (incremental) {
+                    inputs = findChanged(outFile);
+                } else if (checkpointInterval > 0 || resume) {
+                    inputs = prepareCheckpoint(outFile);
+                }
+
                 System.err.println("Extracting: ");
-                inputFileNames.stream().forEach((in) -> {
-                    System.out.println("  " + in);
-                });
-                System.err.println("Number of input files: " + inputFileNames.size());
-                System.err.println("into: " + outFile);
-
-                try (Output out = createOutput(outFile, formatter)) {
-                    ExecutorService executor = Executors.newFixedThreadPool(Math.min(inputFileNames.size(), 16));
-                    for (String in : inputFileNames) {
-                        File inFile = new File(in);
-                        executor.submit(new WarcReaderThread(inFile, out));
+                if (inputs.size() <= MAX_LISTED_INPUTS) {
+                    inputs.stream().forEach((in) -> {
+                        System.out.println("  " + in);
+                    });
+                }
+                System.err.println("Number of input files: " + inputs.size());
+                if (formats.size() == 1) {
+                    System.err.println("into: " + outFile);
+                }
+
+                if (incremental) {
+                    extractIncremental(outFile, formatter, mp);
+                } else if (checkpoint != null) {
+                    extractWithCheckpoints(outFile, formatter, mp);
+                } else if (formats.size() > 1) {
+                    try (Output out = createOutputs(outFiles(outPath, "out"))) {
+                        createRunner(mp).run(inputs, (in) -> {
+                            extract(new File(in), out);
+                        });
+                    }
+                } else {
+                    try (Output out = createOutput(outFile, formatter)) {
+                        createRunner(mp).run(inputs, (in) -> {
+                            extract(new File(in), out);
+                        });
                     }
-                    executor.shutdown();
-                    executor.awaitTermination(5, TimeUnit.HOURS);
                 }
             } else {
                 // Write to one file per (w)arc file.
                 if (!Files.isDirectory(outPath)) {
                     throw new IllegalArgumentException("Output " + outputFileName + " must be a directory");
                 }
-                int i = 0;
-                for (String in : inputFileNames) {
+                createRunner(mp).run(inputs, (in) -> {
                     String inName = Paths.get(in).getFileName().toString();
                     if (inName.contains(".")) {
                         inName = inName.substring(0, inName.lastIndexOf('.'));
                     }
+                    if (formats.size() > 1) {
+                        List<Path> outFiles = outFiles(outPath, inName);
+                        System.err.println("Extracting: " + in);
+                        Output out = createOutputs(outFiles);
+                        try {
+                            try (Output o = out) {
+                                extract(new File(in), o);
+                            }
+                        } catch (IOException | RuntimeException ex) {
+                            for (Path outFile : outFiles) {
+                                Files.deleteIfExists(outFile);
+                            }
+                            throw ex;
+                        }
+                        return;
+                    }
                     inName += outFileSuffix;
                     Path outFile = outPath.resolve(inName);
 
                     System.err.println("Extracting: " + in + " into: " + outFile);
 
-                    try (Output out = createOutput(outFile, formatter)) {
-                        File inFile = new File(in);
-                        extract(inFile, out);
+                    // Each task gets its own formatter since they run in parallel
+                    Output out = createOutput(outFile, new CdxRecordFormatter(format));
+                    try {
+                        try (Output o = out) {
+                            extract(new File(in), o);
+                        }
+                    } catch (IOException | RuntimeException ex) {
+                        // Do not leave a partial result which would block a rerun
+                        Files.deleteIfExists(outFile);
+                        throw ex;
                     }
+                });
+            }
+        }
+        cdxExtractor.printStatistics(System.err);
+        cdxExtractor.shutdown();
+    }
+
+    /**
+     * Get the output files for each of the formats to extract.
+     * <p>
+     * The file suffix of the format is used unless several formats share it, then the format name is used.
+     * <p>
+     * @param dir the directory to put the files in
+     * @param baseName the file name without suffix
+     * @return one output file per format
+     */
+    List<Path> outFiles(Path dir, String baseName) {
+        List<Path> outFiles = new ArrayList<>();
+        for (int i = 0; i < formats.size(); i++) {
+            String suffix = formats.get(i).getFileSuffix();
+            for (int j = 0; j < formats.size(); j++) {
+                if (j != i && formats.get(j).getFileSuffix().equals(suffix)) {
+                    suffix = formatNames.get(i).trim();
+                    break;
                 }
             }
+            outFiles.add(dir.resolve(baseName + "." + suffix));
         }
+        return outFiles;
     }
 
-    private class WarcReaderThread implements Runnable {
+    /**
+     * Create an output writing each record to one file per format.
+     * <p>
+     * @param outFiles the output files in the same order as the formats
+     * @return the combined output
+     * @throws IOException is thrown if one of the outputs could not be created
+     */
+    Output createOutputs(List<Path> outFiles) throws IOException {
+        List<Output> outputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < outFiles.size(); i++) {
+                System.err.println("into: " + outFiles.get(i));
+                outputs.add(createOutput(outFiles.get(i), formats.get(i), new CdxRecordFormatter(formats.get(i))));
+            }
+        } catch (IOException | RuntimeException ex) {
+            MultiOutput.closeAll(outputs);
+            throw ex;
+        }
+        return new MultiOutput(outputs);
+    }
 
-        private final File inFile;
+    /**
+     * Find the inputs which are new or changed since they were merged into an existing output.
+     * <p>
+     * The records in the output only have the name of the file they were extracted from, not its directory. The old
+     * records of a changed input are therefore replaced by name, so inputs with the same name as a changed input are
+     * extracted again as well, even if they are unchanged.
+     * <p>
+     * @param outFile the output
+     * @return the inputs to extract
+     * @throws IOException is thrown if the manifest or the input files could not be read, or if a changed input has
+     * the same name as a file in the manifest which is not an input anymore
+     */
+    List<String> findChanged(Path outFile) throws IOException {
+        manifest = new ProcessedFiles(ProcessedFiles.manifestFor(outFile), manifestHash);
+        if (Files.exists(outFile)) {
+            if (!manifest.exists()) {
+                throw new IOException(outFile + " already exists, but has no manifest");
+            }
+            manifest.load();
+        }
 
-        private final Output out;
+        Set<String> changedNames = new HashSet<>();
+        int changedCount = 0;
+        for (String in : inputs) {
+            if (!manifest.isUnchanged(in)) {
+                changedNames.add(fileName(in));
+                changedCount++;
+            }
+        }
 
-        public WarcReaderThread(File inFile, Output out) {
-            this.inFile = inFile;
-            this.out = out;
+        Set<String> inputFiles = new HashSet<>();
+        List<String> changed = new ArrayList<>();
+        for (String in : inputs) {
+            inputFiles.add(ProcessedFiles.key(in));
+            if (changedNames.contains(fileName(in))) {
+                changed.add(in);
+            }
+        }
+        for (String file : manifest.getFiles()) {
+            if (changedNames.contains(fileName(file)) && !inputFiles.contains(file)) {
+                throw new IOException("Can not replace the records of the changed input named '" + fileName(file)
+                        + "', since they can not be told apart from those of " + file + ", which is not an input");
+            }
+        }
+
+        System.err.println("Incremental: " + (inputs.size() - changedCount) + " unchanged, " + changedCount
+                + " new or changed input files");
+        if (changed.size() > changedCount) {
+            System.err.println("Incremental: " + (changed.size() - changedCount)
+                    + " unchanged input files are extracted again, since they share a name with a changed file");
+        }
+        return changed;
+    }
+
+    /**
+     * Extract new or changed inputs and merge the records into an existing sorted output.
+     * <p>
+     * The result is written to a temporary file which replaces the output when all inputs are extracted. Lines from
+     * earlier extractions of the same inputs are dropped, so a run interrupted after the output was replaced, but
+     * before the manifest was saved, does not lead to duplicates.
+     * <p>
+     * @param outFile the output
+     * @param formatter the formatter used to serialize the records
+     * @param mp the global parameters
+     * @throws IOException is thrown if extraction or merging failed
+     */
+    void extractIncremental(Path outFile, CdxRecordFormatter formatter, MainParameters mp) throws IOException {
+        if (inputs.isEmpty()) {
+            return;
+        }
+
+        Set<String> names = new HashSet<>();
+        for (String in : inputs) {
+            names.add(fileName(in));
+        }
+        if (Files.exists(outFile)) {
+            mergeInput = outFile;
+            mergeFilter = new FilenameLineFilter(format, names);
+        }
+
+        Path tmpFile = outFile.resolveSibling(outFile.getFileName() + ".tmp");
+        Files.deleteIfExists(tmpFile);
+        try {
+            try (Output out = createOutput(tmpFile, formatter)) {
+                createRunner(mp).run(inputs, (in) -> {
+                    extract(new File(in), out);
+                    manifest.record(in);
+                });
+            }
+            Files.move(tmpFile, outFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            manifest.save();
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Get the file name of an input, as used in the records extracted from it.
+     * <p>
+     * @param file the path of the input
+     * @return the file name
+     */
+    private static String fileName(String file) {
+        return Paths.get(file).getFileName().toString();
+    }
+
+    /**
+     * Create or load the checkpoint for an extraction.
+     * <p>
+     * @param outFile the output
+     * @return the inputs which remain to be extracted
+     * @throws IOException is thrown if the checkpoint could not be created or loaded, or if several inputs have the
+     * same file name
+     */
+    List<String> prepareCheckpoint(Path outFile) throws IOException {
+        // The saved runs are filtered by the file name in the records, which must therefore identify the input
+        Map<String, String> names = new HashMap<>();
+        for (String in : inputs) {
+            String other = names.put(fileName(in), in);
+            if (other != null) {
+                throw new IOException("Checkpoints can not be used since the inputs " + other + " and " + in
+                        + " have the same file name");
+            }
+        }
+
+        checkpoint = new ExtractionCheckpoint(outFile, format, compressTmp);
+        if (!resume) {
+            checkpoint.create();
+            return inputs;
         }
 
-        @Override
-        public void run() {
+        checkpoint.load();
+        List<String> remaining = new ArrayList<>();
+        for (String in : inputs) {
+            if (!checkpoint.isCompleted(in)) {
+                remaining.add(in);
+            }
+        }
+        System.err.println("Resuming: " + (inputs.size() - remaining.size()) + " input files completed, "
+                + remaining.size() + " remaining");
+
+        // An output left by a merge which was interrupted is incomplete
+        Files.deleteIfExists(outFile);
+        return remaining;
+    }
+
+    /**
+     * Extract into one sorted output while saving checkpoints.
+     * <p>
+     * @param outFile the output
+     * @param formatter the formatter used to serialize the records
+     * @param mp the global parameters
+     * @throws IOException is thrown if extraction or merging failed
+     */
+    void extractWithCheckpoints(Path outFile, CdxRecordFormatter formatter, MainParameters mp) throws IOException {
+        ParallelSortingOutput out = (ParallelSortingOutput) createOutput(outFile, formatter);
+        boolean extracted = false;
+        try {
+            if (checkpointInterval > 0) {
+                checkpoint.start(TimeUnit.MINUTES.toMillis(checkpointInterval));
+            }
             try {
-                extract(inFile, out);
-            } catch (IOException ex) {
-                throw new UncheckedIOException(ex);
+                createRunner(mp).run(inputs, (in) -> {
+                    extract(new File(in), out);
+                    checkpoint.fileDone(in, out);
+                });
+            } finally {
+                checkpoint.stop();
+                // Save every completed file, so that a resumed run only redoes failed files or the merge
+                out.flushAll();
+                checkpoint.save();
+            }
+            extracted = true;
+        } finally {
+            if (!extracted) {
+                out.abort();
+                Files.deleteIfExists(outFile);
             }
         }
 
+        try {
+            out.close();
+        } catch (IOException | RuntimeException ex) {
+            // The checkpoint still has all runs, so the merge can be retried with --resume
+            Files.deleteIfExists(outFile);
+            throw ex;
+        }
+        checkpoint.delete();
     }
 
     /**
@@ -175,18 +735,57 @@ public class CommandExtract implements Command {
      * @throws IOException is thrown if the output file already exists or the underlying IO classes throws an exception.
      */
     Output createOutput(Path outFile, CdxRecordFormatter formatter) throws IOException {
+        return createOutput(outFile, format, formatter);
+    }
+
+    /**
+     * Create a Output from an output file.
+     * <p>
+     * @param outFile a file to send the result to
+     * @param outFormat the format of the output, used for the file header
+     * @param formatter the formatter used to serialize the records
+     * @return the newly created Output
+     * @throws IOException is thrown if the output file already exists or the underlying IO classes throws an exception.
+     */
+    Output createOutput(Path outFile, CdxFormat outFormat, CdxRecordFormatter formatter) throws IOException {
+        if (partitions > 0 || splitPoints != null) {
+            ExternalSorter sorter = createSorter(threadCount(), formats.size());
+            PartitionedWriter out = PartitionedWriter.forSorter(outFile, outFormat.getFileHeader(), partitions,
+                    splitPoints, sorter);
+            return new ParallelSortingOutput(new BufferedWriter(out), outFormat, sorter);
+        }
+        if (zipnum) {
+            // The ZipNum layout has no file header
+            BufferedWriter bufferedOut = new BufferedWriter(new ZipNumWriter(outFile, zipnumLines, zipnumShards));
+            return createSortingOutput(bufferedOut, outFormat, threadCount(), formats.size());
+        }
+
         if (Files.exists(outFile)) {
             throw new IOException(outFile + " already exists");
         }
 
-        Writer out = new FileWriter(outFile.toFile());
+        if (!sort && !concatenate && CdxLineEmitter.supports(outFormat)) {
+            // Lines are written directly from the record fields, without creating CDX records
+            OutputStream lineOut = new BufferedOutputStream(
+                    Files.newOutputStream(outFile, StandardOpenOption.CREATE_NEW), 64 * 1024);
+            lineOut.write((outFormat.getFileHeader() + '\n').getBytes(StandardCharsets.UTF_8));
+            return new LineOutput(lineOut, outFormat, formatter);
+        }
+
+        // Create atomically so that parallel tasks can not write to the same file
+        Writer out = new OutputStreamWriter(Files.newOutputStream(outFile, StandardOpenOption.CREATE_NEW),
+                StandardCharsets.UTF_8);
         BufferedWriter bufferedOut = new BufferedWriter(out);
 
-        bufferedOut.write(format.getFileHeader());
+        bufferedOut.write(outFormat.getFileHeader());
         bufferedOut.write('\n');
 
-        if (sort) {
-            return new SortingOutput(bufferedOut, formatter, scratchfileCount, heapSize);
+        if (sort && concatenate) {
+            return createSortingOutput(bufferedOut, outFormat, threadCount(), formats.size());
+        } else if (sort) {
+            return createSortingOutput(bufferedOut, outFormat, 1, threadCount() * formats.size());
+        } else if (concatenate) {
+            return new ConcurrentOutput(bufferedOut, outFormat);
         } else {
             return new SerialOutput(bufferedOut, formatter);
         }
@@ -213,12 +812,79 @@ public class CommandExtract implements Command {
         bufferedOut.write('\n');
 
         if (sort) {
-            return new SortingOutput(bufferedOut, formatter, scratchfileCount, heapSize);
+            return createSortingOutput(bufferedOut, format, threadCount(), 1);
         } else {
             return new SerialOutput(bufferedOut, formatter);
         }
     }
 
+    /**
+     * Create a sorting Output.
+     * <p>
+     * @param bufferedOut the writer receiving the sorted lines
+     * @param outFormat the format of the records
+     * @param writerThreads the number of threads writing to the output
+     * @param concurrentOutputs the number of outputs sorting at the same time and sharing the sort memory
+     * @return the newly created Output
+     */
+    Output createSortingOutput(BufferedWriter bufferedOut, CdxFormat outFormat, int writerThreads,
+            int concurrentOutputs) {
+        // An index which is merged later must be in the byte order of the external sorter
+        if (sortMemory == null && !compressTmp && writerThreads == 1 && !incremental && checkpoint == null) {
+            return new SortingOutput(bufferedOut, new CdxRecordFormatter(outFormat), scratchfileCount, heapSize);
+        }
+
+        return new ParallelSortingOutput(bufferedOut, outFormat, createSorter(writerThreads, concurrentOutputs));
+    }
+
+    /**
+     * Create an external sorter.
+     * <p>
+     * @param writerThreads the number of threads writing to the sorter
+     * @param concurrentOutputs the number of outputs sorting at the same time and sharing the sort memory
+     * @return the new sorter
+     */
+    ExternalSorter createSorter(int writerThreads, int concurrentOutputs) {
+        long memory = sortMemory != null ? sortMemory : ExternalSorter.defaultMemory();
+        ExternalSorter sorter = ExternalSorter.withMemoryLimit(memory / concurrentOutputs, writerThreads);
+        sorter.setCompressRuns(compressTmp);
+        if (mergeInput != null) {
+            sorter.addSortedInput(mergeInput, mergeFilter);
+        }
+        if (checkpoint != null) {
+            checkpoint.attach(sorter);
+        }
+        return sorter;
+    }
+
+    /**
+     * Create a runner for processing the input files in parallel.
+     * <p>
+     * @param mp the global parameters
+     * @return the new runner
+     */
+    FileTaskRunner createRunner(MainParameters mp) {
+        FileTaskRunner runner = new FileTaskRunner(threadCount(), mp.isPrintStacktrace());
+        if (adaptive) {
+            if (adaptiveInterval < 1) {
+                throw new ParameterException("Adaptive interval must be at least one second");
+            }
+            runner.setAdaptiveConcurrency(new AdaptiveConcurrency(Runtime.getRuntime().availableProcessors(),
+                    threadCount(), cdxExtractor::getBytesRead, TimeUnit.SECONDS.toMillis(adaptiveInterval),
+                    System.err));
+        }
+        return runner;
+    }
+
+    /**
+     * The number of threads used when extracting files in parallel.
+     * <p>
+     * @return the number of threads
+     */
+    int threadCount() {
+        return Math.max(1, Math.min(inputs.size(), threads));
+    }
+
     /**
      * Do the extraction and write the result to a {@link Writer}.
      * <p>
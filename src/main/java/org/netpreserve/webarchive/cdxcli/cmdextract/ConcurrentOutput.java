@@ -0,0 +1,298 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.netpreserve.commons.cdx.CdxFormat;
+import org.netpreserve.commons.cdx.CdxRecord;
+import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
+
+/**
+ * Output for concatenating records from several threads into one writer.
+ * <p>
+ * Each thread formats records with its own formatter into its own buffer, so formatting needs no locking. When a
+ * buffer holds at least {@link #CHUNK_SIZE} characters, it is handed to a single writer thread through a bounded
+ * blocking queue. Producers block while the queue is full. Buffers only contain whole lines, so lines from different
+ * threads are never mixed. Written buffers are recycled.
+ * <p>
+ * When the format is supported by {@link CdxLineEmitter}, each thread also has an emitter, and the extractor's record
+ * fields are written to the buffer without creating CDX records.
+ * <p>
+ * If the writer fails, the failure is thrown from the next call to {@link #write(CdxRecord)} and from
+ * {@link #close()}.
+ */
+public class ConcurrentOutput implements FieldsOutput {
+
+    /**
+     * Number of characters collected by a thread before handing them over to the writer thread.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Max number of chunks waiting to be written. Producers block when this many chunks are pending.
+     */
+    static final int MAX_PENDING_CHUNKS = 64;
+
+    /**
+     * Marks the end of the pending chunks.
+     */
+    private static final Chunk END = new Chunk();
+
+    private final Writer writer;
+
+    private final BlockingQueue<Chunk> pending = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+
+    private final Queue<Chunk> free = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Holder> holders = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<Holder> current;
+
+    private final Thread writerThread;
+
+    private volatile Exception failure;
+
+    /**
+     * Create an output.
+     * <p>
+     * @param writer the writer to concatenate the records into
+     * @param format the format of the records. Each thread gets its own formatter for this format.
+     */
+    public ConcurrentOutput(Writer writer, CdxFormat format) {
+        this.writer = writer;
+        boolean emit = CdxLineEmitter.supports(format);
+        this.current = ThreadLocal.withInitial(() -> {
+            Holder holder = new Holder(new CdxRecordFormatter(format), emit ? new CdxLineEmitter(format) : null);
+            holders.add(holder);
+            return holder;
+        });
+        this.writerThread = new Thread(this::writeChunks, "concurrent-output");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    @Override
+    public void write(CdxRecord record) {
+        checkFailure();
+
+        Holder holder = current.get();
+        Chunk chunk = holder.chunk;
+
+        try {
+            holder.formatter.format(chunk, record);
+            chunk.write('\n');
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        lineWritten(holder);
+    }
+
+    @Override
+    public boolean writeFields(RecordFields fields) {
+        checkFailure();
+
+        Holder holder = current.get();
+        if (holder.emitter == null || !holder.emitter.emit(fields)) {
+            return false;
+        }
+        Chunk chunk = holder.chunk;
+        chunk.write(holder.emitter.getChars(), 0, holder.emitter.length());
+        chunk.write('\n');
+        lineWritten(holder);
+        return true;
+    }
+
+    /**
+     * Hand off the chunk of a thread if it is full.
+     * <p>
+     * @param holder the state of the thread which has written a line
+     */
+    private void lineWritten(Holder holder) {
+        if (holder.chunk.length >= CHUNK_SIZE) {
+            handOff(holder.chunk);
+            holder.chunk = nextChunk();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // All producers are done, hand off what is left in their buffers
+        for (Holder holder : holders) {
+            if (holder.chunk.length > 0) {
+                handOff(holder.chunk);
+                holder.chunk = nextChunk();
+            }
+        }
+        try {
+            pending.put(END);
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+
+        try {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+            writer.flush();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Hand a chunk over to the writer thread, waiting while the queue is full.
+     * <p>
+     * @param chunk the chunk to write
+     */
+    private void handOff(Chunk chunk) {
+        try {
+            pending.put(chunk);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for the writer"));
+        }
+    }
+
+    private Chunk nextChunk() {
+        Chunk chunk = free.poll();
+        if (chunk == null) {
+            chunk = new Chunk();
+        }
+        return chunk;
+    }
+
+    private void checkFailure() {
+        Exception ex = failure;
+        if (ex instanceof IOException) {
+            throw new UncheckedIOException((IOException) ex);
+        }
+        if (ex != null) {
+            throw (RuntimeException) ex;
+        }
+    }
+
+    /**
+     * The loop run by the writer thread.
+     * <p>
+     * After a write failure, chunks are still taken from the queue and discarded so that producers never block. They
+     * see the failure on their next write.
+     */
+    private void writeChunks() {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = pending.take();
+            } catch (InterruptedException ex) {
+                failure = new InterruptedIOException("Writer thread interrupted");
+                return;
+            }
+            if (chunk == END) {
+                return;
+            }
+
+            if (failure == null) {
+                try {
+                    writer.write(chunk.buf, 0, chunk.length);
+                } catch (IOException | RuntimeException ex) {
+                    failure = ex;
+                }
+            }
+            chunk.length = 0;
+            free.add(chunk);
+        }
+    }
+
+    /**
+     * The formatter, the emitter and the chunk currently being filled by a thread.
+     */
+    private static final class Holder {
+
+        private final CdxRecordFormatter formatter;
+
+        /**
+         * The emitter or null if the format is not supported by the emitter.
+         */
+        private final CdxLineEmitter emitter;
+
+        private Chunk chunk = new Chunk();
+
+        Holder(CdxRecordFormatter formatter, CdxLineEmitter emitter) {
+            this.formatter = formatter;
+            this.emitter = emitter;
+        }
+
+    }
+
+    /**
+     * A growable character buffer owned by one thread at a time.
+     */
+    private static final class Chunk extends Writer {
+
+        private char[] buf = new char[CHUNK_SIZE + 1024];
+
+        private int length;
+
+        @Override
+        public void write(int c) {
+            ensureCapacity(length + 1);
+            buf[length++] = (char) c;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensureCapacity(length + len);
+            System.arraycopy(cbuf, off, buf, length, len);
+            length += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensureCapacity(length + len);
+            str.getChars(off, off + len, buf, length);
+            length += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.jwat.warc.WarcHeader;
+
+/**
+ * A payload captured while parsing a record, waiting to have its digest computed by another thread.
+ * <p>
+ * Payloads larger than {@link #MAX_CAPTURED_SIZE} are digested immediately to bound memory use.
+ */
+final class DeferredDigest {
+
+    /**
+     * Max size of payloads kept in memory.
+     */
+    static final int MAX_CAPTURED_SIZE = 16 * 1024 * 1024;
+
+    private byte[] payload;
+
+    private int length;
+
+    private String digest;
+
+    private WarcHeader verifyHeader;
+
+    private long offset;
+
+    /**
+     * Capture the remaining bytes of a payload stream.
+     * <p>
+     * @param in the payload stream
+     * @param payloadLength the expected number of bytes
+     * @param verifyHeader the header to verify the digest against, or null if no verification should be done
+     * @param offset the offset of the record, used when reporting verification failures
+     * @throws IOException is thrown if the payload could not be read
+     */
+    void capture(InputStream in, long payloadLength, WarcHeader verifyHeader, long offset) throws IOException {
+        this.verifyHeader = verifyHeader;
+        this.offset = offset;
+        if (payloadLength > MAX_CAPTURED_SIZE) {
+            digest = PayloadDigester.digest(in);
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(payloadLength, 32));
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            bytes.write(buf, 0, n);
+        }
+        payload = bytes.toByteArray();
+        length = payload.length;
+    }
+
+    /**
+     * Check if a payload was captured.
+     * <p>
+     * @return true if the digest remains to be computed
+     */
+    boolean isCaptured() {
+        return payload != null || digest != null;
+    }
+
+    /**
+     * Get the header to verify the computed digest against.
+     * <p>
+     * @return the header or null if the digest should not be verified
+     */
+    WarcHeader getVerifyHeader() {
+        return verifyHeader;
+    }
+
+    /**
+     * Get the offset of the record.
+     * <p>
+     * @return the offset of the record in the file
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * The number of payload bytes held in memory.
+     * <p>
+     * @return the size of the captured payload
+     */
+    int getCapturedSize() {
+        return length;
+    }
+
+    /**
+     * Compute the digest and release the captured payload.
+     * <p>
+     * @return the base32 encoded SHA-1 digest
+     */
+    String computeDigest() {
+        if (digest == null) {
+            digest = PayloadDigester.digest(payload, 0, length);
+            payload = null;
+        }
+        return digest;
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+/**
+ * Policy for how payload digests of WARC records are obtained.
+ */
+public enum DigestPolicy {
+
+    /**
+     * Compute the payload digest of every record.
+     */
+    COMPUTE("compute"),
+
+    /**
+     * Use the value of the WARC-Payload-Digest header without reading the payload.
+     */
+    TRUST_HEADER("trust-header"),
+
+    /**
+     * Use the WARC-Payload-Digest header, but compute and compare the digest for a sample of the records.
+     */
+    VERIFY_SAMPLED("verify-sampled");
+
+    private final String name;
+
+    DigestPolicy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the policy with a given name.
+     * <p>
+     * @param name the name as used on the command line
+     * @return the policy or null if no policy has the name
+     */
+    public static DigestPolicy forName(String name) {
+        for (DigestPolicy policy : values()) {
+            if (policy.name.equals(name)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
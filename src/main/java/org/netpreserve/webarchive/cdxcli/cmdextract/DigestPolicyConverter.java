@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import com.beust.jcommander.IStringConverter;
+import com.beust.jcommander.ParameterException;
+
+/**
+ * Converts a string into a digest policy.
+ */
+public class DigestPolicyConverter implements IStringConverter<DigestPolicy> {
+
+    @Override
+    public DigestPolicy convert(String value) {
+        DigestPolicy policy = DigestPolicy.forName(value);
+        if (policy == null) {
+            throw new ParameterException("Illegal digest policy '" + value
+                    + "'. Allowed values are: compute, trust-header, verify-sampled");
+        }
+        return policy;
+    }
+
+}
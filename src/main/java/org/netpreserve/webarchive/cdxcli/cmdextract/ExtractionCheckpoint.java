@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.netpreserve.commons.cdx.CdxFormat;
+import org.netpreserve.webarchive.cdxcli.sort.ExternalSorter;
+
+/**
+ * Checkpoints for a long running sorted extraction into one file.
+ * <p>
+ * The sorted runs are written to a checkpoint directory next to the output instead of the temporary directory. At a
+ * fixed interval, the list of completed input files and the runs written so far are saved to a state file in the
+ * same directory. If the process dies, a new run can continue from the last checkpoint: completed files are skipped
+ * and the saved runs are merged with the runs of the new files.
+ * <p>
+ * A file counts as completed when all its records are in run files, not only when extraction of the file has ended.
+ * Runs also contain records from files which were in progress when the checkpoint was taken. Since those files are
+ * extracted again, their records are filtered out of the saved runs. Each resumed run is a new generation, and the
+ * runs of a generation are only trusted for the files completed in the same generation.
+ * <p>
+ * Progress is saved per input file. A file being extracted when the process dies is extracted again from the start.
+ * Records only have the file name of their input, so checkpoints require all inputs to have different file names.
+ * <p>
+ * The runs are kept while they are merged, so that a merge which fails or is interrupted can be resumed too. The
+ * checkpoint is only deleted when the output is complete.
+ */
+public class ExtractionCheckpoint {
+
+    static final String SUFFIX = ".checkpoint";
+
+    private static final String STATE_FILE = "state";
+
+    private static final String HEADER = "# cdxcli extraction checkpoint";
+
+    private final Path dir;
+
+    private final CdxFormat format;
+
+    private final boolean compressed;
+
+    private final List<Generation> generations = new ArrayList<>();
+
+    private final Set<String> completed = ConcurrentHashMap.newKeySet();
+
+    private final Set<Path> restoredRuns = new HashSet<>();
+
+    private final ThreadLocal<int[]> threadEpoch = ThreadLocal.withInitial(() -> new int[1]);
+
+    private volatile int epoch;
+
+    private ExternalSorter sorter;
+
+    private ScheduledExecutorService timer;
+
+    /**
+     * Create a checkpoint.
+     * <p>
+     * @param outFile the output the checkpoint belongs to
+     * @param format the format of the output
+     * @param compressed true if the runs are compressed
+     */
+    public ExtractionCheckpoint(Path outFile, CdxFormat format, boolean compressed) {
+        this.dir = outFile.resolveSibling(outFile.getFileName() + SUFFIX);
+        this.format = format;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Create the checkpoint directory for a new extraction.
+     * <p>
+     * @throws IOException is thrown if a checkpoint already exists or the directory could not be created
+     */
+    public void create() throws IOException {
+        if (Files.exists(dir)) {
+            throw new IOException("Checkpoint " + dir + " already exists. Use --resume to continue from it or "
+                    + "delete it to start over");
+        }
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Read the last saved checkpoint.
+     * <p>
+     * @throws IOException is thrown if there is no checkpoint, it can not be read or its runs are missing
+     */
+    public void load() throws IOException {
+        Path stateFile = dir.resolve(STATE_FILE);
+        if (!Files.exists(stateFile)) {
+            throw new IOException("No checkpoint found in " + dir);
+        }
+        generations.clear();
+        try (BufferedReader in = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8);) {
+            Generation generation = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int split = line.indexOf(' ');
+                String key = split < 0 ? line : line.substring(0, split);
+                String value = split < 0 ? "" : line.substring(split + 1);
+                switch (key) {
+                    case "compressed":
+                        if (Boolean.parseBoolean(value) != compressed) {
+                            throw new IOException("Checkpoint " + dir + " was written with"
+                                    + (compressed ? "out" : "") + " --compress-tmp, resume with the same setting");
+                        }
+                        break;
+                    case "generation":
+                        generation = new Generation();
+                        generations.add(generation);
+                        break;
+                    case "file":
+                    case "run":
+                        if (generation == null) {
+                            throw new IOException("Malformed checkpoint " + stateFile + ": " + line);
+                        }
+                        if ("file".equals(key)) {
+                            generation.files.add(value);
+                        } else {
+                            generation.runs.add(dir.resolve(value));
+                        }
+                        break;
+                    default:
+                        throw new IOException("Malformed checkpoint " + stateFile + ": " + line);
+                }
+            }
+        }
+        for (Generation generation : generations) {
+            for (Path run : generation.runs) {
+                if (!Files.exists(run)) {
+                    throw new NoSuchFileException(run.toString(), null, "Run file of checkpoint is missing, "
+                            + "delete " + dir + " to start over");
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if an input file was completed before the last checkpoint.
+     * <p>
+     * @param file the name of the input file
+     * @return true if the file does not need to be extracted again
+     */
+    public boolean isCompleted(String file) {
+        String key = key(file);
+        for (Generation generation : generations) {
+            if (generation.files.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Let a sorter write its runs to the checkpoint directory and add the runs of the loaded checkpoint to it.
+     * <p>
+     * @param sorter the sorter used for the extraction
+     */
+    public void attach(ExternalSorter sorter) {
+        this.sorter = sorter;
+        sorter.setTempDir(dir);
+        // The state file refers to the runs until the output is complete
+        sorter.setKeepRuns(true);
+        sorter.setCommitListener(completed::addAll);
+        for (Generation generation : generations) {
+            Set<String> names = new HashSet<>();
+            for (String file : generation.files) {
+                names.add(Paths.get(file).getFileName().toString());
+            }
+            FilenameLineFilter filter = new FilenameLineFilter(format, names, true);
+            for (Path run : generation.runs) {
+                sorter.addRun(run, filter);
+                restoredRuns.add(run);
+            }
+        }
+    }
+
+    /**
+     * Start saving checkpoints at a fixed interval.
+     * <p>
+     * @param intervalMillis the time between checkpoints
+     */
+    public void start(long intervalMillis) {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (IOException ex) {
+                System.err.println("Could not save checkpoint: " + ex.getLocalizedMessage());
+            }
+            // Ask every thread to spill its records at the end of its current file
+            epoch++;
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop saving checkpoints.
+     */
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            try {
+                timer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            timer = null;
+        }
+    }
+
+    /**
+     * Record that all records of a file have been written to an output.
+     * <p>
+     * Must be called by the thread which extracted the file. If a checkpoint has been saved since this thread last
+     * spilled its records, the records are spilled now so that the next checkpoint covers this file.
+     * <p>
+     * @param file the name of the input file
+     * @param out the output the records were written to
+     * @throws IOException is thrown if the records could not be spilled
+     */
+    public void fileDone(String file, ParallelSortingOutput out) throws IOException {
+        out.commit(key(file));
+        int[] seen = threadEpoch.get();
+        int current = epoch;
+        if (seen[0] != current) {
+            seen[0] = current;
+            out.flushCurrentThread();
+        }
+    }
+
+    /**
+     * Save the state of the extraction.
+     * <p>
+     * The completed files are collected before the runs, so every file listed has all its records in the listed
+     * runs. The state file is replaced atomically.
+     * <p>
+     * @throws IOException is thrown if the state could not be written
+     */
+    public void save() throws IOException {
+        List<String> files = new ArrayList<>(completed);
+        List<Path> runs = sorter.getRuns();
+
+        Path tmp = dir.resolve(STATE_FILE + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8);) {
+            out.write(HEADER);
+            out.write('\n');
+            out.write("compressed " + compressed + "\n");
+            for (Generation generation : generations) {
+                out.write("generation\n");
+                for (String file : generation.files) {
+                    out.write("file " + file + "\n");
+                }
+                for (Path run : generation.runs) {
+                    out.write("run " + run.getFileName() + "\n");
+                }
+            }
+            out.write("generation\n");
+            for (String file : files) {
+                out.write("file " + file + "\n");
+            }
+            for (Path run : runs) {
+                if (!restoredRuns.contains(run)) {
+                    out.write("run " + run.getFileName() + "\n");
+                }
+            }
+        }
+        Files.move(tmp, dir.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete the checkpoint directory. Used when the extraction has completed.
+     * <p>
+     * @throws IOException is thrown if the directory could not be deleted
+     */
+    public void delete() throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir);) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    private static String key(String file) {
+        return Paths.get(file).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * The files completed and the runs written by one extraction process.
+     */
+    private static final class Generation {
+
+        private final Set<String> files = new HashSet<>();
+
+        private final List<Path> runs = new ArrayList<>();
+
+    }
+
+}
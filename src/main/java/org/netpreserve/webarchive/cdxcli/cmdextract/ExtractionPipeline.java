@@ -0,0 +1,487 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jwat.arc.ArcReader;
+import org.jwat.arc.ArcReaderFactory;
+import org.jwat.arc.ArcRecordBase;
+import org.jwat.archive.FileIdent;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+import org.netpreserve.commons.cdx.FieldName;
+import org.netpreserve.commons.cdx.cdxrecord.UnconnectedCdxRecord;
+import org.netpreserve.commons.cdx.json.NumberValue;
+
+/**
+ * Extraction of one file split into stages connected by bounded queues.
+ * <p>
+ * The stages are:
+ * <ol>
+ * <li>inflate: reads the file and inflates each gzip member in chunks of bounded size (compressed files only)
+ * <li>parse: parses records with JWAT, with digesting turned off, and captures payloads which need a digest
+ * <li>digest: computes payload digests
+ * <li>write: formats and writes records to the output. Runs in the calling thread.
+ * </ol>
+ * The output is identical to the serial extraction.
+ */
+final class ExtractionPipeline {
+
+    /**
+     * Max number of inflated bytes waiting to be parsed.
+     */
+    private static final long INFLATED_QUEUE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Max size of a chunk of an inflated member. Members larger than this are streamed to the parser in several
+     * chunks, so memory use is bounded by the queue size regardless of member size.
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Max number of captured payload bytes waiting to be digested.
+     */
+    private static final long PARSED_QUEUE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Max number of records waiting to be written.
+     */
+    private static final long DIGESTED_QUEUE_RECORDS = 1024;
+
+    private final CdxExtractor extractor;
+
+    private final ExecutorService executor;
+
+    private final StageQueue<Chunk> inflated;
+
+    private final StageQueue<ParsedRecord> parsed;
+
+    private final StageQueue<UnconnectedCdxRecord> digested;
+
+    /**
+     * Create a pipeline for one file.
+     * <p>
+     * @param extractor the extractor holding the configuration
+     * @param executor executor for running the stages
+     * @param statistics statistics for the three queues
+     */
+    ExtractionPipeline(CdxExtractor extractor, ExecutorService executor, StageQueue.Statistics[] statistics) {
+        this.extractor = extractor;
+        this.executor = executor;
+        this.inflated = new StageQueue<>(INFLATED_QUEUE_BYTES, statistics[0]);
+        this.parsed = new StageQueue<>(PARSED_QUEUE_BYTES, statistics[1]);
+        this.digested = new StageQueue<>(DIGESTED_QUEUE_RECORDS, statistics[2]);
+    }
+
+    /**
+     * Extract records from a file.
+     * <p>
+     * @param inFile the file to extract from
+     * @param fileIdent the identification of the file
+     * @param out the output to write records to
+     * @throws IOException is thrown if any of the stages failed
+     */
+    void run(File inFile, FileIdent fileIdent, Output out) throws IOException {
+        String fileName = inFile.getName();
+        boolean isArc = fileIdent.streamId == FileIdent.FILEID_ARC || fileIdent.streamId == FileIdent.FILEID_ARC_GZ;
+        boolean compressed = fileIdent.streamId == FileIdent.FILEID_ARC_GZ
+                || fileIdent.streamId == FileIdent.FILEID_WARC_GZ;
+
+        Future<?> inflateStage = null;
+        if (compressed) {
+            inflateStage = submit(() -> inflate(inFile), inflated);
+        }
+        Future<?> parseStage = submit(() -> {
+            if (compressed) {
+                parseMembers(isArc, fileName);
+            } else {
+                parseFile(inFile, isArc, fileName);
+            }
+            return null;
+        }, parsed);
+        Future<?> digestStage = submit(this::digest, digested);
+
+        try {
+            UnconnectedCdxRecord record;
+            while ((record = digested.take()) != null) {
+                out.write(record);
+            }
+            if (inflateStage != null) {
+                inflateStage.get();
+            }
+            parseStage.get();
+            digestStage.get();
+        } catch (InterruptedException ex) {
+            abort(ex);
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            abort(ex.getCause());
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } catch (RuntimeException | IOException ex) {
+            abort(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Run a stage. When the stage ends, its output queue is finished, or failed if the stage threw an exception.
+     * <p>
+     * @param stage the stage to run
+     * @param output the queue the stage writes to
+     * @return the future result of the stage
+     */
+    private Future<?> submit(Callable<Void> stage, StageQueue<?> output) {
+        return executor.submit(() -> {
+            try {
+                stage.call();
+                output.finish();
+                return null;
+            } catch (Exception ex) {
+                abort(ex);
+                throw ex;
+            }
+        });
+    }
+
+    private void abort(Throwable cause) {
+        inflated.fail(cause);
+        parsed.fail(cause);
+        digested.fail(cause);
+    }
+
+    /**
+     * The inflate stage.
+     * <p>
+     * @param inFile the compressed file
+     * @return null
+     * @throws Exception is thrown if the file could not be read
+     */
+    private Void inflate(File inFile) throws Exception {
+        try (GzipMemberReader gzipReader = new GzipMemberReader(extractor.openFile(inFile), 0L);) {
+            while (gzipReader.nextMember()) {
+                long offset = gzipReader.getStartOffset();
+                InputStream in = gzipReader.getInputStream();
+                byte[] data = new byte[CHUNK_SIZE];
+                int length = 0;
+                int n;
+                while ((n = in.read(data, length, data.length - length)) != -1) {
+                    length += n;
+                    if (length == data.length) {
+                        inflated.put(new Chunk(offset, data, length, false, -1L), length);
+                        data = new byte[CHUNK_SIZE];
+                        length = 0;
+                    }
+                }
+                // The last chunk, possibly empty, carries the compressed length of the member
+                gzipReader.closeMember();
+                inflated.put(new Chunk(offset, Arrays.copyOf(data, length), length, true, gzipReader.getConsumed()),
+                        Math.max(length, 1));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The parse stage for compressed files. Records are read from inflated gzip members.
+     * <p>
+     * The record length is the compressed length of the member, which is known only when the whole member has been
+     * inflated. Records are therefore held back until the end of their member.
+     * <p>
+     * @param isArc true if the file is an ARC file
+     * @param fileName the name of the file
+     * @throws Exception is thrown if records could not be parsed
+     */
+    private void parseMembers(boolean isArc, String fileName) throws Exception {
+        MemberInputStream in = new MemberInputStream();
+        List<ParsedRecord> pending = new ArrayList<>(1);
+        if (isArc) {
+            try (ArcReader arcReader = ArcReaderFactory.getReaderUncompressed();) {
+                extractor.configureArcReader(arcReader, false);
+                while (in.nextMember()) {
+                    ArcRecordBase arcRecord;
+                    while ((arcRecord = arcReader.getNextRecordFrom(in, in.offset)) != null) {
+                        DeferredDigest deferred = new DeferredDigest();
+                        UnconnectedCdxRecord record = extractor.readArcRecord(arcRecord, fileName, deferred);
+                        if (record != null) {
+                            pending.add(new ParsedRecord(record, deferred));
+                        }
+                    }
+                    emitMember(in, pending);
+                }
+            }
+        } else {
+            try (WarcReader warcReader = WarcReaderFactory.getReaderUncompressed();) {
+                extractor.configureWarcReader(warcReader, false);
+                while (in.nextMember()) {
+                    WarcRecord warcRecord;
+                    while ((warcRecord = warcReader.getNextRecordFrom(in, in.offset)) != null) {
+                        DeferredDigest deferred = new DeferredDigest();
+                        UnconnectedCdxRecord record = extractor.readWarcRecord(warcRecord, fileName, deferred);
+                        if (record != null) {
+                            pending.add(new ParsedRecord(record, deferred));
+                        }
+                    }
+                    emitMember(in, pending);
+                }
+            }
+        }
+    }
+
+    /**
+     * Skip to the end of the current member and emit the records read from it.
+     * <p>
+     * @param in the stream of the member
+     * @param pending the records read from the member. The list is cleared.
+     * @throws IOException is thrown if the pipeline failed
+     * @throws InterruptedException is thrown if the thread was interrupted
+     */
+    private void emitMember(MemberInputStream in, List<ParsedRecord> pending)
+            throws IOException, InterruptedException {
+        while (in.skip(Long.MAX_VALUE) > 0) {
+            // Skip what the reader left of the member
+        }
+        for (ParsedRecord parsedRecord : pending) {
+            emit(parsedRecord.record, parsedRecord.deferred, in.consumed);
+        }
+        pending.clear();
+    }
+
+    /**
+     * The parse stage for uncompressed files. Records are read directly from the file.
+     * <p>
+     * @param inFile the file
+     * @param isArc true if the file is an ARC file
+     * @param fileName the name of the file
+     * @throws Exception is thrown if records could not be parsed
+     */
+    private void parseFile(File inFile, boolean isArc, String fileName) throws Exception {
+        if (isArc) {
+            try (InputStream input = extractor.openUncompressed(inFile);
+                    ArcReader arcReader = ArcReaderFactory.getReaderUncompressed(input);) {
+                extractor.configureArcReader(arcReader, false);
+                ArcRecordBase arcRecord;
+                while ((arcRecord = arcReader.getNextRecord()) != null) {
+                    DeferredDigest deferred = new DeferredDigest();
+                    UnconnectedCdxRecord record = extractor.readArcRecord(arcRecord, fileName, deferred);
+                    emit(record, deferred, arcRecord.getConsumed());
+                }
+            }
+        } else {
+            try (InputStream input = extractor.openUncompressed(inFile);
+                    WarcReader warcReader = WarcReaderFactory.getReaderUncompressed(input);) {
+                extractor.configureWarcReader(warcReader, false);
+                WarcRecord warcRecord;
+                while ((warcRecord = warcReader.getNextRecord()) != null) {
+                    DeferredDigest deferred = new DeferredDigest();
+                    UnconnectedCdxRecord record = extractor.readWarcRecord(warcRecord, fileName, deferred);
+                    emit(record, deferred, warcRecord.getConsumed());
+                }
+            }
+        }
+    }
+
+    private void emit(UnconnectedCdxRecord record, DeferredDigest deferred, long recordLength)
+            throws IOException, InterruptedException {
+        if (record != null) {
+            record.set(FieldName.RECORD_LENGTH, NumberValue.valueOf(recordLength));
+            parsed.put(new ParsedRecord(record, deferred), 1 + deferred.getCapturedSize());
+        }
+    }
+
+    /**
+     * The digest stage.
+     * <p>
+     * @return null
+     * @throws Exception is thrown if the pipeline failed
+     */
+    private Void digest() throws Exception {
+        ParsedRecord parsedRecord;
+        while ((parsedRecord = parsed.take()) != null) {
+            extractor.completeDigest(parsedRecord.record, parsedRecord.deferred);
+            digested.put(parsedRecord.record, 1);
+        }
+        return null;
+    }
+
+    /**
+     * A chunk of an inflated gzip member.
+     */
+    private static final class Chunk {
+
+        private final long offset;
+
+        private final byte[] data;
+
+        private final int length;
+
+        private final boolean last;
+
+        private final long consumed;
+
+        /**
+         * Create a chunk.
+         * <p>
+         * @param offset the offset of the member in the file
+         * @param data the inflated bytes
+         * @param length the number of valid bytes in data
+         * @param last true if this is the last chunk of the member
+         * @param consumed the compressed length of the member. Only set for the last chunk.
+         */
+        Chunk(long offset, byte[] data, int length, boolean last, long consumed) {
+            this.offset = offset;
+            this.data = data;
+            this.length = length;
+            this.last = last;
+            this.consumed = consumed;
+        }
+
+    }
+
+    /**
+     * Stream over the chunks of one member at a time, taken from the inflated queue as they are read.
+     */
+    private final class MemberInputStream extends InputStream {
+
+        private Chunk chunk;
+
+        private int pos;
+
+        /**
+         * The offset of the current member.
+         */
+        private long offset;
+
+        /**
+         * The compressed length of the current member. Only valid when the member has been read to the end.
+         */
+        private long consumed;
+
+        /**
+         * Move to the next member. The current member must have been read to the end.
+         * <p>
+         * @return false if there are no more members
+         * @throws IOException is thrown if the pipeline failed
+         * @throws InterruptedException is thrown if the thread was interrupted
+         */
+        boolean nextMember() throws IOException, InterruptedException {
+            chunk = inflated.take();
+            pos = 0;
+            if (chunk == null) {
+                return false;
+            }
+            offset = chunk.offset;
+            consumed = chunk.consumed;
+            return true;
+        }
+
+        /**
+         * Make sure there are bytes left in the current chunk, taking the next chunk of the member if needed.
+         * <p>
+         * @return false if the end of the member is reached
+         */
+        private boolean fill() throws IOException {
+            while (pos == chunk.length) {
+                if (chunk.last) {
+                    return false;
+                }
+                try {
+                    chunk = inflated.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (chunk == null) {
+                    throw new EOFException("Missing end of gzip member at offset " + offset);
+                }
+                pos = 0;
+                consumed = chunk.consumed;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk.data[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk.data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !fill()) {
+                return 0;
+            }
+            int skipped = (int) Math.min(n, chunk.length - pos);
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null ? 0 : chunk.length - pos;
+        }
+
+    }
+
+    /**
+     * A parsed record waiting for its payload digest.
+     */
+    private static final class ParsedRecord {
+
+        private final UnconnectedCdxRecord record;
+
+        private final DeferredDigest deferred;
+
+        ParsedRecord(UnconnectedCdxRecord record, DeferredDigest deferred) {
+            this.record = record;
+            this.deferred = deferred;
+        }
+
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+/**
+ * Output which can write a record directly from its fields, without a CDX record being created.
+ */
+interface FieldsOutput extends Output {
+
+    /**
+     * Write the line for the fields of a record.
+     * <p>
+     * @param fields the fields of the record
+     * @return true if the line was written, false if the output can not write this record from its fields. The
+     * caller must then write it as a CDX record.
+     */
+    boolean writeFields(RecordFields fields);
+
+}
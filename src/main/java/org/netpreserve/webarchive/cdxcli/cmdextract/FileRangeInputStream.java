@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An InputStream reading a byte range of a file using positional reads on a {@link FileChannel}.
+ * <p>
+ * Skipping only moves the position, no bytes are read.
+ */
+public class FileRangeInputStream extends InputStream {
+
+    private final FileChannel channel;
+
+    private final long end;
+
+    private long position;
+
+    /**
+     * Create a stream for the whole file.
+     * <p>
+     * @param file the file to read
+     * @throws IOException is thrown if the file could not be opened
+     */
+    public FileRangeInputStream(File file) throws IOException {
+        this(file, 0L, file.length());
+    }
+
+    /**
+     * Create a stream for a byte range of a file.
+     * <p>
+     * @param file the file to read
+     * @param start the offset of the first byte to read
+     * @param end the offset after the last byte to read
+     * @throws IOException is thrown if the file could not be opened
+     */
+    public FileRangeInputStream(File file, long start, long end) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.position = start;
+        this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= end) {
+            return -1;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+        int n = channel.read(buf, position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, end - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import org.netpreserve.commons.cdx.CdxFormat;
+import org.netpreserve.commons.cdx.FieldName;
+import org.netpreserve.commons.cdx.cdxrecord.CdxjLineFormat;
+import org.netpreserve.webarchive.cdxcli.sort.ExternalSorter;
+
+/**
+ * Filter for the lines of an existing index or sorted run, dropping the file header and selecting lines by the file
+ * they were extracted from.
+ * <p>
+ * In CDXJ the file name is found in the JSON block. In the CDX 9 and CDX 11 formats it is the last field. Lines only
+ * have the name of the file, not its directory, so lines from files with the same name in different directories are
+ * selected together.
+ */
+final class FilenameLineFilter implements ExternalSorter.LineFilter {
+
+    private final byte[] header;
+
+    private final Set<String> fileNames;
+
+    private final boolean keep;
+
+    private final String jsonKey;
+
+    /**
+     * Create a filter dropping the lines from the given files.
+     * <p>
+     * @param format the format of the index
+     * @param fileNames the names of the files whose lines should be dropped
+     */
+    FilenameLineFilter(CdxFormat format, Set<String> fileNames) {
+        this(format, fileNames, false);
+    }
+
+    /**
+     * Create a filter.
+     * <p>
+     * @param format the format of the index
+     * @param fileNames the names of the files to select lines by
+     * @param keep true to keep only lines from the given files, false to drop lines from the given files
+     */
+    FilenameLineFilter(CdxFormat format, Set<String> fileNames, boolean keep) {
+        this.header = format.getFileHeader().getBytes(StandardCharsets.UTF_8);
+        this.fileNames = fileNames;
+        this.keep = keep;
+        this.jsonKey = format instanceof CdxjLineFormat ? "\"" + FieldName.FILENAME.getName() + "\"" : null;
+    }
+
+    @Override
+    public boolean accept(byte[] line, int length) {
+        if (isHeader(line, length)) {
+            return false;
+        }
+        if (fileNames.isEmpty()) {
+            return !keep;
+        }
+        String fileName = jsonKey != null ? jsonFileName(new String(line, 0, length, StandardCharsets.UTF_8))
+                : lastField(line, length);
+        if (fileName == null) {
+            return !keep;
+        }
+        return fileNames.contains(fileName) == keep;
+    }
+
+    private boolean isHeader(byte[] line, int length) {
+        if (length != header.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (line[i] != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String jsonFileName(String line) {
+        int pos = line.indexOf(jsonKey);
+        if (pos < 0) {
+            return null;
+        }
+        pos = line.indexOf('"', line.indexOf(':', pos + jsonKey.length()));
+        if (pos < 0) {
+            return null;
+        }
+        int end = line.indexOf('"', pos + 1);
+        return end < 0 ? null : line.substring(pos + 1, end);
+    }
+
+    private static String lastField(byte[] line, int length) {
+        int start = length;
+        while (start > 0 && line[start - 1] != ' ') {
+            start--;
+        }
+        return new String(line, start, length - start, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the members of a multi member gzip stream one by one, reusing the inflater and buffers of the current thread.
+ * <p>
+ * Files with one gzip member per record have millions of small members. Creating a new {@link Inflater} and new
+ * buffers for each of them is costly, both because of the native inflater setup and the garbage created. Each
+ * thread therefore keeps one inflater and its buffers which are reset between members and reused by every reader
+ * created on that thread.
+ * <p>
+ * Like JWAT's GzipReader, a member with a wrong CRC or size in the trailer is reported, but still read, and data
+ * following the last member which is not a gzip member is reported and ignored.
+ */
+final class GzipMemberReader implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int ID1 = 0x1f;
+
+    private static final int ID2 = 0x8b;
+
+    private static final int CM_DEFLATE = 8;
+
+    private static final int FHCRC = 0x02;
+
+    private static final int FEXTRA = 0x04;
+
+    private static final int FNAME = 0x08;
+
+    private static final int FCOMMENT = 0x10;
+
+    private static final ThreadLocal<Resources> RESOURCES = ThreadLocal.withInitial(Resources::new);
+
+    private final InputStream in;
+
+    private final Resources resources;
+
+    /**
+     * True if the resources are the ones kept by the thread, false if they were created for this reader only.
+     */
+    private final boolean threadResources;
+
+    private final Inflater inflater;
+
+    private final CRC32 crc;
+
+    private final byte[] buf;
+
+    private final MemberInputStream memberInput = new MemberInputStream();
+
+    /**
+     * Offset in the file of the first byte in the buffer.
+     */
+    private long bufStart;
+
+    private int bufPos;
+
+    private int bufLimit;
+
+    private long memberStart;
+
+    private long memberSize;
+
+    private boolean inMember;
+
+    private long consumed;
+
+    private boolean members;
+
+    private boolean ended;
+
+    private boolean reportErrors = true;
+
+    /**
+     * Create a reader.
+     * <p>
+     * @param in the compressed stream
+     * @param baseOffset the offset in the file of the first byte of the stream
+     */
+    GzipMemberReader(InputStream in, long baseOffset) {
+        this.in = in;
+        this.bufStart = baseOffset;
+        Resources shared = RESOURCES.get();
+        if (shared.inUse) {
+            // Another reader is open on this thread, do not share with it
+            this.resources = new Resources();
+            this.threadResources = false;
+        } else {
+            this.resources = shared;
+            this.threadResources = true;
+        }
+        resources.inUse = true;
+        this.inflater = resources.inflater;
+        this.crc = resources.crc;
+        this.buf = resources.buf;
+    }
+
+    /**
+     * Decide if members with a wrong CRC or size in the trailer, and data after the last member, are reported on
+     * standard error.
+     * <p>
+     * @param reportErrors false to read silently
+     */
+    void setReportErrors(boolean reportErrors) {
+        this.reportErrors = reportErrors;
+    }
+
+    /**
+     * Move to the next member.
+     * <p>
+     * What is left of the current member is skipped. If the data following a member is not a gzip member, it is
+     * ignored and there are no more members.
+     * <p>
+     * @return false if there are no more members
+     * @throws IOException is thrown if the stream could not be read or the first member has an invalid header
+     */
+    boolean nextMember() throws IOException {
+        if (inMember) {
+            closeMember();
+        }
+        if (ended) {
+            return false;
+        }
+
+        long start = position();
+        int id1 = readByte();
+        if (id1 == -1) {
+            ended = true;
+            return false;
+        }
+        if (id1 != ID1 || readByte() != ID2 || readByte() != CM_DEFLATE) {
+            if (!members) {
+                throw new IOException("Invalid gzip header at offset " + start);
+            }
+            if (reportErrors) {
+                System.err.println("Ignoring data which is not a gzip member at offset " + start);
+            }
+            ended = true;
+            return false;
+        }
+        int flg = readHeaderByte();
+        // Skip modification time, extra flags and OS
+        for (int i = 0; i < 6; i++) {
+            readHeaderByte();
+        }
+        if ((flg & FEXTRA) != 0) {
+            int xlen = readHeaderByte() | readHeaderByte() << 8;
+            for (int i = 0; i < xlen; i++) {
+                readHeaderByte();
+            }
+        }
+        if ((flg & FNAME) != 0) {
+            while (readHeaderByte() != 0) {
+            }
+        }
+        if ((flg & FCOMMENT) != 0) {
+            while (readHeaderByte() != 0) {
+            }
+        }
+        if ((flg & FHCRC) != 0) {
+            readHeaderByte();
+            readHeaderByte();
+        }
+
+        inflater.reset();
+        crc.reset();
+        memberStart = start;
+        memberSize = 0;
+        consumed = 0;
+        inMember = true;
+        members = true;
+        return true;
+    }
+
+    /**
+     * Get the offset in the file of the current member.
+     * <p>
+     * @return the offset of the member's first byte
+     */
+    long getStartOffset() {
+        return memberStart;
+    }
+
+    /**
+     * Get the inflated content of the current member.
+     * <p>
+     * The stream is reused for every member, closing it skips what is left of the member.
+     * <p>
+     * @return the inflated content
+     */
+    InputStream getInputStream() {
+        return memberInput;
+    }
+
+    /**
+     * Skip what is left of the current member and read its trailer.
+     * <p>
+     * @throws IOException is thrown if the stream could not be read
+     */
+    void closeMember() throws IOException {
+        while (inMember) {
+            memberInput.read(resources.skipBuf, 0, resources.skipBuf.length);
+        }
+    }
+
+    /**
+     * Get the number of compressed bytes of the current member, including header and trailer.
+     * <p>
+     * Only known after the member is closed.
+     * <p>
+     * @return the number of compressed bytes
+     */
+    long getConsumed() {
+        return consumed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (threadResources) {
+            resources.inUse = false;
+        } else {
+            resources.inflater.end();
+        }
+        in.close();
+    }
+
+    private long position() {
+        return bufStart + bufPos;
+    }
+
+    private boolean fill() throws IOException {
+        bufStart += bufLimit;
+        bufPos = 0;
+        bufLimit = 0;
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) {
+            return false;
+        }
+        bufLimit = n;
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        if (bufPos == bufLimit && !fill()) {
+            return -1;
+        }
+        return buf[bufPos++] & 0xff;
+    }
+
+    private int readHeaderByte() throws IOException {
+        int b = readByte();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of gzip member at offset " + memberStart);
+        }
+        return b;
+    }
+
+    private void finishMember() throws IOException {
+        // Give back the bytes the inflater got, but did not use
+        bufPos = bufLimit - inflater.getRemaining();
+
+        long storedCrc = 0;
+        long storedSize = 0;
+        for (int i = 0; i < 4; i++) {
+            storedCrc |= (long) readHeaderByte() << (8 * i);
+        }
+        for (int i = 0; i < 4; i++) {
+            storedSize |= (long) readHeaderByte() << (8 * i);
+        }
+        if (reportErrors && (storedCrc != crc.getValue() || storedSize != (memberSize & 0xffffffffL))) {
+            System.err.println("Gzip member at offset " + memberStart + " has wrong CRC or size in its trailer");
+        }
+
+        consumed = position() - memberStart;
+        inMember = false;
+    }
+
+    /**
+     * The inflated content of the current member.
+     */
+    private final class MemberInputStream extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int n = read(single, 0, 1);
+            return n == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!inMember) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (true) {
+                    int n = inflater.inflate(b, off, len);
+                    if (n > 0) {
+                        crc.update(b, off, n);
+                        memberSize += n;
+                        return n;
+                    }
+                    if (inflater.finished()) {
+                        finishMember();
+                        return -1;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new IOException("Gzip member at offset " + memberStart + " needs a preset dictionary");
+                    }
+                    if (inflater.needsInput()) {
+                        if (bufPos == bufLimit && !fill()) {
+                            throw new EOFException("Unexpected end of gzip member at offset " + memberStart);
+                        }
+                        inflater.setInput(buf, bufPos, bufLimit - bufPos);
+                        bufPos = bufLimit;
+                    }
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Invalid compressed data in gzip member at offset " + memberStart, ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeMember();
+        }
+
+    }
+
+    /**
+     * The inflater and buffers kept by a thread.
+     */
+    private static final class Resources {
+
+        private final Inflater inflater = new Inflater(true);
+
+        private final CRC32 crc = new CRC32();
+
+        private final byte[] buf = new byte[BUFFER_SIZE];
+
+        private final byte[] skipBuf = new byte[BUFFER_SIZE];
+
+        private boolean inUse;
+
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds gzip member boundaries in a compressed (W)ARC file.
+ * <p>
+ * The gzip magic bytes might also occur inside compressed data. Searching for them is not reliable even when the
+ * candidate member is verified: a record whose payload is itself a multi member gzip file, like an archived WARC
+ * file, is usually deflated into stored blocks, so the payload's members appear verbatim and are valid gzip members
+ * followed by other gzip members. A split there would give wrong offsets.
+ * <p>
+ * The scanner therefore walks the member chain from the start of the file, using the compressed length of each
+ * member to find the next one. The compressed length is only known after inflating the member, so the scanner
+ * inflates the whole file, and every member is inflated once more when its range is extracted. Scanning skips
+ * parsing and digesting, but inflating is often the larger part of the cost of extracting a compressed file, so the
+ * scanner is not much faster than a single extracting thread. Since the scanning is serial, it bounds the speedup
+ * of splitting a file, usually to a small factor regardless of the number of threads extracting the ranges.
+ * <p>
+ * The split points are produced lazily, so the ranges found first can be extracted while the rest of the file is
+ * scanned.
+ * <p>
+ * If the chain ends before the end of the file, e.g. because of trailing garbage or a corrupt member, no more split
+ * points are produced and the rest of the file becomes the last range. Reading that range then fails or succeeds
+ * exactly like the serial extraction would.
+ */
+public final class GzipMemberScanner implements AutoCloseable {
+
+    private final GzipMemberReader reader;
+
+    private final long size;
+
+    private final long rangeSize;
+
+    private long target;
+
+    private boolean chainEnded;
+
+    private boolean done;
+
+    /**
+     * Create a scanner.
+     * <p>
+     * @param file the gzip compressed file
+     * @param rangeSize the wanted size of each range
+     * @throws IOException is thrown if the file could not be opened
+     */
+    public GzipMemberScanner(File file, long rangeSize) throws IOException {
+        if (rangeSize < 1) {
+            throw new IllegalArgumentException("Range size must be at least one");
+        }
+        this.size = file.length();
+        this.rangeSize = rangeSize;
+        this.target = rangeSize;
+        this.reader = new GzipMemberReader(new FileRangeInputStream(file), 0L);
+        // Broken trailers and trailing data are reported when the members are extracted
+        this.reader.setReportErrors(false);
+    }
+
+    /**
+     * Find split points dividing a file into byte ranges of approximately {@code rangeSize} bytes.
+     * <p>
+     * The returned list starts with 0 and ends with the file length. Every other element is the offset of a gzip
+     * member start.
+     * <p>
+     * @param file the gzip compressed file
+     * @param rangeSize the wanted size of each range
+     * @return the ordered list of split points
+     * @throws IOException is thrown if the file could not be read
+     */
+    public static List<Long> findSplitPoints(File file, long rangeSize) throws IOException {
+        List<Long> points = new ArrayList<>();
+        points.add(0L);
+        try (GzipMemberScanner scanner = new GzipMemberScanner(file, rangeSize);) {
+            long point;
+            while ((point = scanner.nextSplitPoint()) >= 0) {
+                points.add(point);
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Get the end of the next range.
+     * <p>
+     * The first range starts at 0, each following range starts at the end of the previous one.
+     * <p>
+     * @return the offset of the first member at least {@code rangeSize} bytes after the start of the range, the file
+     * length for the last range, or -1 if all ranges have been returned
+     * @throws IOException is thrown if the file could not be read
+     */
+    public long nextSplitPoint() throws IOException {
+        if (done) {
+            return -1;
+        }
+        while (!chainEnded && target < size) {
+            long memberStart;
+            try {
+                if (!reader.nextMember()) {
+                    chainEnded = true;
+                    break;
+                }
+                memberStart = reader.getStartOffset();
+                reader.closeMember();
+            } catch (IOException ex) {
+                // Not a valid member, leave the rest of the file to the range reader
+                chainEnded = true;
+                break;
+            }
+            if (memberStart >= target) {
+                target = memberStart + rangeSize;
+                return memberStart;
+            }
+        }
+        done = true;
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Collects and orders the input files for extraction.
+ * <p>
+ * Inputs can be given as files or directories on the command line or in a list file. Directories are walked
+ * recursively and all (W)ARC files found are included.
+ */
+public final class InputFiles {
+
+    /**
+     * Private constructor to avoid instantiation.
+     */
+    private InputFiles() {
+    }
+
+    /**
+     * Collect input files.
+     * <p>
+     * @param names file or directory names, might be null
+     * @param inputList name of a file listing one input per line or '-' for standard in, might be null. Empty lines
+     * and lines starting with '#' are ignored
+     * @return the input files
+     * @throws IOException is thrown if the list file or a directory could not be read
+     */
+    public static List<String> collect(List<String> names, String inputList) throws IOException {
+        List<String> result = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                add(name, result);
+            }
+        }
+
+        if (inputList != null) {
+            try (BufferedReader in = openList(inputList);) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        add(line, result);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Order files by size, largest first.
+     * <p>
+     * Processing the largest files first avoids that a large file started last keeps the job running on one thread
+     * after all other files are done. The files are stat'ed in parallel since there might be millions of them.
+     * <p>
+     * @param files the files to order
+     * @return a new list with the files ordered by decreasing size
+     */
+    public static List<String> largestFirst(List<String> files) {
+        return files.parallelStream()
+                .map(name -> new SizedFile(name, new File(name).length()))
+                .sorted(Comparator.comparingLong((SizedFile f) -> f.size).reversed())
+                .map(f -> f.name)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Check if a file name has a (W)ARC file extension.
+     * <p>
+     * @param name the file name
+     * @return true if the name ends with .warc, .warc.gz, .arc or .arc.gz
+     */
+    static boolean isArchiveName(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".warc") || lower.endsWith(".warc.gz")
+                || lower.endsWith(".arc") || lower.endsWith(".arc.gz");
+    }
+
+    private static void add(String name, List<String> result) throws IOException {
+        Path path = Paths.get(name);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path);) {
+                files.filter(p -> Files.isRegularFile(p) && isArchiveName(p.getFileName().toString()))
+                        .sorted()
+                        .forEach(p -> result.add(p.toString()));
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        } else {
+            result.add(name);
+        }
+    }
+
+    private static BufferedReader openList(String inputList) throws IOException {
+        if ("-".equals(inputList)) {
+            return new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        }
+        return Files.newBufferedReader(Paths.get(inputList), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A file name with its size.
+     */
+    private static final class SizedFile {
+
+        private final String name;
+
+        private final long size;
+
+        SizedFile(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+/**
+ * How uncompressed input files are read.
+ */
+public enum InputMode {
+
+    /**
+     * Read through a buffered file stream. In fast mode, positional reads are used instead.
+     */
+    STREAM("stream"),
+
+    /**
+     * Read large blocks with positional reads on a file channel. Skipped payloads are never read.
+     */
+    CHANNEL("channel"),
+
+    /**
+     * Map the file into memory in large windows. Skipped payloads are never read and no read buffer is needed.
+     */
+    MMAP("mmap");
+
+    private final String name;
+
+    InputMode(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the mode with a given name.
+     * <p>
+     * @param name the name as used on the command line
+     * @return the mode or null if no mode has the name
+     */
+    public static InputMode forName(String name) {
+        for (InputMode mode : values()) {
+            if (mode.name.equals(name)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
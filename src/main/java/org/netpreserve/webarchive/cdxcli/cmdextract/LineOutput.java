@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+import org.netpreserve.commons.cdx.CdxFormat;
+import org.netpreserve.commons.cdx.CdxRecord;
+import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
+
+/**
+ * Serial output writing lines directly from record fields.
+ * <p>
+ * The extractor passes the fields of each record to {@link #writeFields(RecordFields)}, which writes them with a
+ * {@link CdxLineEmitter} without creating a CDX record. Records created elsewhere, e.g. by the split or pipelined
+ * extraction, and records the emitter leaves to the formatter are written with the formatter.
+ */
+public class LineOutput implements FieldsOutput {
+
+    private final OutputStream out;
+
+    private final CdxRecordFormatter formatter;
+
+    private final CdxLineEmitter emitter;
+
+    private final CharArrayWriter formatted = new CharArrayWriter(1024);
+
+    /**
+     * Create an output.
+     * <p>
+     * @param out the stream to write to
+     * @param format the format to write, must be supported by {@link CdxLineEmitter}
+     * @param formatter the formatter for records not written from fields
+     */
+    public LineOutput(OutputStream out, CdxFormat format, CdxRecordFormatter formatter) {
+        this.out = out;
+        this.formatter = formatter;
+        this.emitter = new CdxLineEmitter(format);
+    }
+
+    @Override
+    public synchronized boolean writeFields(RecordFields fields) {
+        if (!emitter.emit(fields)) {
+            return false;
+        }
+        try {
+            emitter.writeUtf8(out);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void write(CdxRecord record) {
+        try {
+            formatted.reset();
+            formatter.format(formatted, record);
+            formatted.write('\n');
+            out.write(formatted.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An InputStream reading a file through memory mapped windows.
+ * <p>
+ * Bytes are copied straight from the page cache into the reader's buffer, so no intermediate read buffer is needed,
+ * and single byte reads are served from the mapped window. Skipping only moves the position, so skipped pages are
+ * never touched. Windows which are no longer used are unmapped when they are garbage collected.
+ */
+final class MappedFileInputStream extends InputStream {
+
+    /**
+     * The size of each mapped window.
+     */
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Number of single byte reads collected before they are added to the shared counter.
+     */
+    private static final int COUNT_BATCH = 64 * 1024;
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private final AtomicLong count;
+
+    private final long windowSize;
+
+    private MappedByteBuffer window;
+
+    private long windowStart;
+
+    private long position;
+
+    private int uncounted;
+
+    /**
+     * Create a stream for a file.
+     * <p>
+     * @param file the file to read
+     * @param count counter the number of bytes read is added to
+     * @throws IOException is thrown if the file could not be opened
+     */
+    MappedFileInputStream(File file, AtomicLong count) throws IOException {
+        this(file, count, WINDOW_SIZE);
+    }
+
+    /**
+     * Create a stream for a file with a given window size.
+     * <p>
+     * @param file the file to read
+     * @param count counter the number of bytes read is added to
+     * @param windowSize the size of each mapped window
+     * @throws IOException is thrown if the file could not be opened
+     */
+    MappedFileInputStream(File file, AtomicLong count, long windowSize) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.count = count;
+        this.windowSize = windowSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!prepareWindow()) {
+            return -1;
+        }
+        int b = window.get((int) (position - windowStart)) & 0xff;
+        position++;
+        if (++uncounted >= COUNT_BATCH) {
+            count.addAndGet(uncounted);
+            uncounted = 0;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!prepareWindow()) {
+            return -1;
+        }
+        int windowPosition = (int) (position - windowStart);
+        int n = Math.min(len, window.capacity() - windowPosition);
+        window.position(windowPosition);
+        window.get(b, off, n);
+        position += n;
+        count.addAndGet(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, size - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        count.addAndGet(uncounted);
+        uncounted = 0;
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * Make sure the window covers the current position.
+     * <p>
+     * @return false if the end of the file is reached
+     * @throws IOException is thrown if the file could not be mapped
+     */
+    private boolean prepareWindow() throws IOException {
+        if (position >= size) {
+            return false;
+        }
+        if (window == null || position < windowStart || position >= windowStart + window.capacity()) {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.netpreserve.commons.cdx.CdxRecord;
+
+/**
+ * Output handing each record to several outputs.
+ * <p>
+ * Used for producing several formats from one pass over the input. Each output has its own formatter and
+ * destination, the record is only parsed once.
+ */
+public class MultiOutput implements Output {
+
+    private final List<Output> outputs;
+
+    public MultiOutput(List<Output> outputs) {
+        this.outputs = new ArrayList<>(outputs);
+    }
+
+    @Override
+    public void write(CdxRecord record) {
+        for (Output output : outputs) {
+            output.write(record);
+        }
+    }
+
+    /**
+     * Close all outputs. If closing one of them fails, the others are still closed.
+     * <p>
+     * @throws IOException is thrown if closing one of the outputs failed
+     */
+    @Override
+    public void close() throws IOException {
+        closeAll(outputs);
+    }
+
+    /**
+     * Close a list of outputs. If closing one of them fails, the others are still closed.
+     * <p>
+     * @param outputs the outputs to close
+     * @throws IOException is thrown if closing one of the outputs failed
+     */
+    static void closeAll(List<Output> outputs) throws IOException {
+        Throwable failure = null;
+        for (Output output : outputs) {
+            try {
+                output.close();
+            } catch (IOException | RuntimeException ex) {
+                if (failure == null) {
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+
+}
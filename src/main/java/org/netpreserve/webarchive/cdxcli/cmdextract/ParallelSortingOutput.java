@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.netpreserve.commons.cdx.CdxFormat;
+import org.netpreserve.commons.cdx.CdxRecord;
+import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
+import org.netpreserve.webarchive.cdxcli.sort.ExternalSorter;
+import org.netpreserve.webarchive.cdxcli.sort.RunBuffer;
+
+/**
+ * Sorting output for several extracting threads.
+ * <p>
+ * Each thread formats records and collects them in its own run buffer, which is sorted and spilled to a temporary
+ * file when full. On close, all runs are merged into the writer. Unlike {@link SortingOutput} there is no single
+ * sorting thread all records have to pass through.
+ * <p>
+ * Records are formatted by a per-thread formatter into a reusable per-thread buffer and encoded directly into the run
+ * buffer, so no String is created per record. When the format is supported by {@link CdxLineEmitter}, lines are
+ * written from the extractor's record fields without creating CDX records.
+ */
+public class ParallelSortingOutput implements FieldsOutput {
+
+    private final BufferedWriter writer;
+
+    private final ThreadLocal<CdxRecordFormatter> formatter;
+
+    private final ExternalSorter sorter;
+
+    private final Queue<RunBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<RunBuffer> buffer;
+
+    private final ThreadLocal<StringWriter> lineBuffer = ThreadLocal.withInitial(StringWriter::new);
+
+    /**
+     * Per thread emitters, or null if the format is not supported by the emitter.
+     */
+    private final ThreadLocal<CdxLineEmitter> emitter;
+
+    /**
+     * Create a sorting output.
+     * <p>
+     * @param writer the writer receiving the sorted lines
+     * @param format the format of the records. Each thread gets its own formatter for this format.
+     * @param sorter the sorter deciding the size of the runs and how they are merged
+     */
+    public ParallelSortingOutput(BufferedWriter writer, CdxFormat format, ExternalSorter sorter) {
+        this.writer = writer;
+        this.formatter = ThreadLocal.withInitial(() -> new CdxRecordFormatter(format));
+        this.sorter = sorter;
+        this.buffer = ThreadLocal.withInitial(() -> {
+            RunBuffer runBuffer = sorter.newRunBuffer();
+            buffers.add(runBuffer);
+            return runBuffer;
+        });
+        this.emitter = CdxLineEmitter.supports(format) ? ThreadLocal.withInitial(() -> new CdxLineEmitter(format))
+                : null;
+    }
+
+    @Override
+    public void write(CdxRecord record) {
+        try {
+            StringWriter line = lineBuffer.get();
+            line.getBuffer().setLength(0);
+            formatter.get().format(line, record);
+            buffer.get().add(line.getBuffer());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public boolean writeFields(RecordFields fields) {
+        if (emitter == null) {
+            return false;
+        }
+        CdxLineEmitter lineEmitter = emitter.get();
+        if (!lineEmitter.emit(fields)) {
+            return false;
+        }
+        try {
+            buffer.get().add(lineEmitter);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return true;
+    }
+
+    /**
+     * Mark that all records of a file have been written by the current thread.
+     * <p>
+     * The sorter's commit listener is told when the records are written to run files.
+     * <p>
+     * @param name the name of the file
+     */
+    public void commit(String name) {
+        buffer.get().commit(name);
+    }
+
+    /**
+     * Spill the records written by the current thread to a run file.
+     * <p>
+     * @throws IOException is thrown if the run could not be written
+     */
+    public void flushCurrentThread() throws IOException {
+        buffer.get().flush();
+    }
+
+    /**
+     * Spill the records of all threads to run files.
+     * <p>
+     * Must only be called when no thread is writing.
+     * <p>
+     * @throws IOException is thrown if a run could not be written
+     */
+    public void flushAll() throws IOException {
+        for (RunBuffer runBuffer : buffers) {
+            runBuffer.flush();
+        }
+    }
+
+    /**
+     * Close the writer without merging, e.g. because the extraction failed.
+     * <p>
+     * The run files are deleted unless the sorter keeps them.
+     * <p>
+     * @throws IOException is thrown if the writer could not be closed
+     */
+    public void abort() throws IOException {
+        try {
+            sorter.cleanup();
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushAll();
+            // The run buffers are not used anymore, give their memory to the merge
+            for (RunBuffer runBuffer : buffers) {
+                runBuffer.release();
+            }
+            buffers.clear();
+            sorter.merge(writer);
+            if (sorter.isCompressRuns()) {
+                // Lets the user see what compressing the scratch files saved
+                sorter.printStatistics(System.err);
+            }
+        } finally {
+            sorter.cleanup();
+            writer.close();
+        }
+    }
+
+}
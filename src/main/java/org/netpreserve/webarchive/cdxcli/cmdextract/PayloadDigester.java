@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jwat.common.Base32;
+import org.jwat.warc.WarcDigest;
+
+/**
+ * Computes and normalizes SHA-1 payload digests in the base32 encoding used in CDX files.
+ */
+public final class PayloadDigester {
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    /**
+     * Private constructor to avoid instantiation.
+     */
+    private PayloadDigester() {
+    }
+
+    /**
+     * Compute the base32 encoded SHA-1 digest of the remaining bytes of a stream.
+     * <p>
+     * @param in the stream to digest
+     * @return the encoded digest
+     * @throws IOException is thrown if the stream could not be read
+     */
+    public static String digest(InputStream in) throws IOException {
+        MessageDigest md = SHA1.get();
+        md.reset();
+        byte[] buf = BUFFER.get();
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            md.update(buf, 0, n);
+        }
+        return Base32.encodeArray(md.digest());
+    }
+
+    /**
+     * Compute the base32 encoded SHA-1 digest of a byte array.
+     * <p>
+     * @param bytes the bytes to digest
+     * @param offset the offset of the first byte to digest
+     * @param length the number of bytes to digest
+     * @return the encoded digest
+     */
+    public static String digest(byte[] bytes, int offset, int length) {
+        MessageDigest md = SHA1.get();
+        md.reset();
+        md.update(bytes, offset, length);
+        return Base32.encodeArray(md.digest());
+    }
+
+    /**
+     * Get a SHA-1 digest from a WARC header as a base32 encoded string.
+     * <p>
+     * Digests using other algorithms are ignored. Hex encoded digests are converted to base32.
+     * <p>
+     * @param digest the digest parsed from a WARC header, might be null
+     * @return the encoded digest or null if the header did not contain a usable SHA-1 digest
+     */
+    public static String fromHeader(WarcDigest digest) {
+        if (digest == null || digest.digestString == null || !"sha1".equals(digest.algorithm)) {
+            return null;
+        }
+
+        String value = digest.digestString;
+        if (value.length() == 32) {
+            return value.toUpperCase();
+        } else if (value.length() == 40) {
+            byte[] bytes = new byte[20];
+            for (int i = 0; i < bytes.length; i++) {
+                int hi = Character.digit(value.charAt(2 * i), 16);
+                int lo = Character.digit(value.charAt(2 * i + 1), 16);
+                if (hi < 0 || lo < 0) {
+                    return null;
+                }
+                bytes[i] = (byte) (hi << 4 | lo);
+            }
+            return Base32.encodeArray(bytes);
+        }
+        return null;
+    }
+
+}
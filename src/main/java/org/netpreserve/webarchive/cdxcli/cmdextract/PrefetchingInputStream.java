@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An InputStream reading a file sequentially in a dedicated thread.
+ * <p>
+ * The reading thread keeps up to {@code depth} large buffers filled ahead of the consumer, so that the latency of slow
+ * or remote storage overlaps with parsing. The consumer only takes buffers which are already filled. Time the
+ * consumer has to wait for a buffer is added to the statistics, so that it is visible when the storage can not keep
+ * up.
+ */
+final class PrefetchingInputStream extends InputStream {
+
+    /**
+     * Marks the end of the file or a failed read.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+
+    private final BlockingQueue<ByteBuffer> filled;
+
+    private final BlockingQueue<ByteBuffer> free;
+
+    private final AtomicLong bytesRead;
+
+    private final Statistics statistics;
+
+    private final Thread readerThread;
+
+    private volatile boolean closed;
+
+    private volatile IOException failure;
+
+    private ByteBuffer current;
+
+    /**
+     * Create a stream and start reading.
+     * <p>
+     * @param file the file to read
+     * @param depth the number of buffers
+     * @param bufferSize the size of each buffer
+     * @param bytesRead counter incremented with the number of bytes read from the file
+     * @param statistics statistics to update
+     * @throws IOException is thrown if the file could not be opened
+     */
+    PrefetchingInputStream(File file, int depth, int bufferSize, AtomicLong bytesRead, Statistics statistics)
+            throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.bytesRead = bytesRead;
+        this.statistics = statistics;
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        this.free = new ArrayBlockingQueue<>(depth);
+        for (int i = 0; i < depth; i++) {
+            // Direct buffers since the channel would otherwise copy through a temporary direct buffer
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        this.readerThread = new Thread(this::readFile, "read-ahead " + file.getName());
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ((current == null || !current.hasRemaining()) && !fill()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if ((current == null || !current.hasRemaining()) && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null ? 0 : current.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        readerThread.interrupt();
+        try {
+            readerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Give back the consumed buffer and take the next filled one, waiting if none is ready.
+     * <p>
+     * @return false if the end of the file is reached
+     * @throws IOException is thrown if reading the file failed
+     */
+    private boolean fill() throws IOException {
+        if (current == END) {
+            return false;
+        }
+        if (current != null) {
+            free.add(current);
+        }
+
+        current = filled.poll();
+        if (current == null) {
+            long start = System.nanoTime();
+            try {
+                current = filled.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for read ahead");
+            }
+            statistics.stalls.incrementAndGet();
+            statistics.stallTime.addAndGet(System.nanoTime() - start);
+        }
+        if (current == END) {
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+        statistics.buffers.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * The loop run by the reading thread.
+     */
+    private void readFile() {
+        try {
+            while (!closed) {
+                ByteBuffer buf = free.take();
+                buf.clear();
+                int n;
+                do {
+                    n = channel.read(buf);
+                } while (n >= 0 && buf.hasRemaining());
+
+                if (buf.position() > 0) {
+                    bytesRead.addAndGet(buf.position());
+                    buf.flip();
+                    filled.put(buf);
+                }
+                if (n < 0) {
+                    filled.put(END);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedChannelException ex) {
+            // Closed by the consumer
+        } catch (IOException ex) {
+            failure = ex;
+            filled.offer(END);
+        }
+    }
+
+    /**
+     * Read ahead statistics shared by all input files.
+     */
+    static final class Statistics {
+
+        private final AtomicLong buffers = new AtomicLong();
+
+        private final AtomicLong stalls = new AtomicLong();
+
+        private final AtomicLong stallTime = new AtomicLong();
+
+        /**
+         * Print the statistics.
+         * <p>
+         * Many stalls mean the storage is slower than parsing, a larger depth or buffer size might help if the
+         * storage has high latency rather than low bandwidth.
+         * <p>
+         * @param out the stream to print to
+         */
+        void print(PrintStream out) {
+            out.printf("Read ahead buffers: %d, consumer stalls: %d, stall time: %dms%n",
+                    buffers.get(), stalls.get(), TimeUnit.NANOSECONDS.toMillis(stallTime.get()));
+        }
+
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jwat.common.Base32;
+
+/**
+ * Manifest of the input files an index was extracted from.
+ * <p>
+ * For each file the absolute path, size, modification time and optionally a quick hash is recorded. The manifest is
+ * kept next to the index as a text file with one tab separated line per input file. It is used to find out which
+ * inputs are new or changed since the index was last updated.
+ * <p>
+ * A file is unchanged if it has the same size and modification time as recorded. If quick hashes are enabled, a file
+ * with a new modification time is also unchanged if its hash is the same. This avoids reprocessing files which only
+ * got new timestamps, for example when copied without preserving them. The quick hash is a SHA-1 of the first and
+ * last {@value #HASH_BLOCK_SIZE} bytes of the file, so it is cheap even for large files.
+ */
+public class ProcessedFiles {
+
+    static final String SUFFIX = ".manifest";
+
+    static final int HASH_BLOCK_SIZE = 64 * 1024;
+
+    private static final String HEADER = "# cdxcli manifest: size, modified, quick hash, path";
+
+    private static final String NO_HASH = "-";
+
+    private final Path manifestFile;
+
+    private final boolean quickHash;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Create a manifest.
+     * <p>
+     * @param manifestFile the file the manifest is stored in
+     * @param quickHash true if quick hashes should be computed
+     */
+    public ProcessedFiles(Path manifestFile, boolean quickHash) {
+        this.manifestFile = manifestFile;
+        this.quickHash = quickHash;
+    }
+
+    /**
+     * Get the manifest file belonging to an index.
+     * <p>
+     * @param indexFile the index
+     * @return the manifest file
+     */
+    public static Path manifestFor(Path indexFile) {
+        return indexFile.resolveSibling(indexFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Check if the manifest file exists.
+     * <p>
+     * @return true if the manifest exists
+     */
+    public boolean exists() {
+        return Files.exists(manifestFile);
+    }
+
+    /**
+     * Read the manifest file.
+     * <p>
+     * @throws IOException is thrown if the manifest could not be read or is malformed
+     */
+    public void load() throws IOException {
+        entries.clear();
+        try (BufferedReader in = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8);) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Malformed line in manifest " + manifestFile + ": " + line);
+                }
+                try {
+                    Entry entry = new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            NO_HASH.equals(fields[2]) ? null : fields[2]);
+                    entries.put(fields[3], entry);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Malformed line in manifest " + manifestFile + ": " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the manifest file.
+     * <p>
+     * The manifest is written to a temporary file which then replaces the old manifest, so a crash leaves either the
+     * old or the new manifest.
+     * <p>
+     * @throws IOException is thrown if the manifest could not be written
+     */
+    public void save() throws IOException {
+        Path tmp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8);) {
+            out.write(HEADER);
+            out.write('\n');
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.write(Long.toString(entry.size));
+                out.write('\t');
+                out.write(Long.toString(entry.modified));
+                out.write('\t');
+                out.write(entry.hash == null ? NO_HASH : entry.hash);
+                out.write('\t');
+                out.write(e.getKey());
+                out.write('\n');
+            }
+        }
+        Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Check if a file is recorded with the same content as now.
+     * <p>
+     * @param file the name of the file
+     * @return true if the file is recorded and has not changed
+     * @throws IOException is thrown if the file could not be read
+     */
+    public boolean isUnchanged(String file) throws IOException {
+        Entry entry = entries.get(key(file));
+        if (entry == null) {
+            return false;
+        }
+        Path path = Paths.get(file);
+        if (entry.size != Files.size(path)) {
+            return false;
+        }
+        if (entry.modified == Files.getLastModifiedTime(path).toMillis()) {
+            return true;
+        }
+        return quickHash && entry.hash != null && entry.hash.equals(quickHash(path));
+    }
+
+    /**
+     * Record the current state of a file.
+     * <p>
+     * @param file the name of the file
+     * @throws IOException is thrown if the file could not be read
+     */
+    public void record(String file) throws IOException {
+        Path path = Paths.get(file);
+        Entry entry = new Entry(Files.size(path), Files.getLastModifiedTime(path).toMillis(),
+                quickHash ? quickHash(path) : null);
+        synchronized (entries) {
+            entries.put(key(file), entry);
+        }
+    }
+
+    /**
+     * Compute the quick hash of a file.
+     * <p>
+     * @param path the file
+     * @return the base32 encoded SHA-1 of the file size and the first and last block of the file
+     * @throws IOException is thrown if the file could not be read
+     */
+    static String quickHash(Path path) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        byte[] buf = new byte[HASH_BLOCK_SIZE];
+        try (RandomAccessFile in = new RandomAccessFile(path.toFile(), "r");) {
+            long size = in.length();
+            md.update(Long.toString(size).getBytes(StandardCharsets.US_ASCII));
+            int n = (int) Math.min(size, HASH_BLOCK_SIZE);
+            in.readFully(buf, 0, n);
+            md.update(buf, 0, n);
+            if (size > HASH_BLOCK_SIZE) {
+                long tail = Math.max(HASH_BLOCK_SIZE, size - HASH_BLOCK_SIZE);
+                n = (int) (size - tail);
+                in.seek(tail);
+                in.readFully(buf, 0, n);
+                md.update(buf, 0, n);
+            }
+        }
+        return Base32.encodeArray(md.digest());
+    }
+
+    /**
+     * Get the files recorded in the manifest.
+     * <p>
+     * @return the absolute, normalized paths of the files
+     */
+    public Set<String> getFiles() {
+        synchronized (entries) {
+            return new HashSet<>(entries.keySet());
+        }
+    }
+
+    /**
+     * Get the key a file is recorded with.
+     * <p>
+     * @param file the name of the file
+     * @return the absolute, normalized path of the file
+     */
+    static String key(String file) {
+        return Paths.get(file).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * The recorded state of one file.
+     */
+    private static final class Entry {
+
+        private final long size;
+
+        private final long modified;
+
+        private final String hash;
+
+        Entry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import org.netpreserve.commons.cdx.json.TimestampValue;
+import org.netpreserve.commons.cdx.json.UriValue;
+
+/**
+ * The fields extracted from one ARC or WARC record.
+ * <p>
+ * An instance is reused for all records read by a thread. The fields are either turned into a CDX record, or written
+ * directly as a CDX line by {@link CdxLineEmitter}.
+ */
+final class RecordFields {
+
+    /**
+     * True for WARC records, which have a record id.
+     */
+    boolean warc;
+
+    String fileName;
+
+    String recordId;
+
+    TimestampValue timestamp;
+
+    UriValue uri;
+
+    String recordType;
+
+    long offset;
+
+    /**
+     * True if the record has a http header. Only then the status code is set.
+     */
+    boolean hasHttpHeader;
+
+    String statusCode;
+
+    String mimeType;
+
+    long contentLength;
+
+    long payloadLength;
+
+    /**
+     * The payload digest or null if not known.
+     */
+    String payloadDigest;
+
+    /**
+     * True for WARC revisit records. Only then the revisit fields are set.
+     */
+    boolean revisit;
+
+    String refersTo;
+
+    UriValue refersToUri;
+
+    String refersToDate;
+
+    /**
+     * The number of bytes the record takes up in the file, or -1 if not known.
+     */
+    long recordLength;
+
+    /**
+     * Clear all fields before reading the next record.
+     */
+    void clear() {
+        warc = false;
+        fileName = null;
+        recordId = null;
+        timestamp = null;
+        uri = null;
+        recordType = null;
+        offset = 0;
+        hasHttpHeader = false;
+        statusCode = null;
+        mimeType = null;
+        contentLength = 0;
+        payloadLength = 0;
+        payloadDigest = null;
+        revisit = false;
+        refersTo = null;
+        refersToUri = null;
+        refersToDate = null;
+        recordLength = -1;
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.beust.jcommander.ParameterException;
+
+/**
+ * Decides which records to index from their parsed headers.
+ * <p>
+ * The filter is applied before the payload of a record is read or digested, so a record which is filtered out only
+ * costs skipping its payload.
+ * <p>
+ * Record types are the WARC-Type values. Records from ARC files have the type response. Without included types,
+ * all types except warcinfo and metadata are indexed. Excluded types are never indexed. Content types are matched by
+ * prefix, ignoring case and parameters, so 'image/' matches all images. Status codes are given as numbers or as
+ * classes like '2xx'. Records without a status code, like resource records, do not match a status code filter.
+ */
+public class RecordFilter {
+
+    private static final Set<String> DEFAULT_EXCLUDED_TYPES = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("warcinfo", "metadata")));
+
+    private final Set<String> includeTypes = new HashSet<>();
+
+    private final Set<String> excludeTypes = new HashSet<>();
+
+    private final List<String> mimePrefixes = new ArrayList<>();
+
+    private final boolean[] statusCodes = new boolean[1000];
+
+    private boolean statusFilter;
+
+    private final AtomicLong filtered = new AtomicLong();
+
+    /**
+     * Create a filter.
+     * <p>
+     * @param includeTypes record types to index, might be null
+     * @param excludeTypes record types not to index, might be null
+     * @param mimeTypes content type prefixes to index, might be null
+     * @param statuses status codes or status code classes to index, might be null
+     */
+    public RecordFilter(List<String> includeTypes, List<String> excludeTypes, List<String> mimeTypes,
+            List<String> statuses) {
+        if (includeTypes != null) {
+            for (String type : includeTypes) {
+                this.includeTypes.add(type.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        if (excludeTypes != null) {
+            for (String type : excludeTypes) {
+                this.excludeTypes.add(type.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        if (mimeTypes != null) {
+            for (String mime : mimeTypes) {
+                mimePrefixes.add(mime.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        if (statuses != null) {
+            for (String status : statuses) {
+                addStatus(status.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    private void addStatus(String status) {
+        statusFilter = true;
+        if (status.length() == 3 && status.endsWith("xx") && Character.isDigit(status.charAt(0))) {
+            int base = (status.charAt(0) - '0') * 100;
+            for (int i = base; i < base + 100; i++) {
+                statusCodes[i] = true;
+            }
+            return;
+        }
+        try {
+            int code = Integer.parseInt(status);
+            if (code < 100 || code > 999) {
+                throw new ParameterException("Illegal status code '" + status + "'");
+            }
+            statusCodes[code] = true;
+        } catch (NumberFormatException ex) {
+            throw new ParameterException("Illegal status code '" + status + "'. Use a number like 200 or a class "
+                    + "like 2xx");
+        }
+    }
+
+    /**
+     * Check if records of a type should be indexed.
+     * <p>
+     * @param type the record type
+     * @return true if the record type is accepted
+     */
+    public boolean acceptType(String type) {
+        String lower = type == null ? "" : type.toLowerCase(Locale.ROOT);
+        boolean accepted = includeTypes.isEmpty() ? !DEFAULT_EXCLUDED_TYPES.contains(lower)
+                : includeTypes.contains(lower);
+        accepted &= !excludeTypes.contains(lower);
+        if (!accepted) {
+            filtered.incrementAndGet();
+        }
+        return accepted;
+    }
+
+    /**
+     * Check if a record should be indexed based on content type and status code.
+     * <p>
+     * @param mimeType the content type of the payload, might be null
+     * @param statusCode the status code, might be null
+     * @return true if the record is accepted
+     */
+    public boolean acceptContent(String mimeType, String statusCode) {
+        boolean accepted = acceptMime(mimeType) && acceptStatus(statusCode);
+        if (!accepted) {
+            filtered.incrementAndGet();
+        }
+        return accepted;
+    }
+
+    /**
+     * Check if the filter needs the content type or status code of records.
+     * <p>
+     * @return true if {@link #acceptContent(String, String)} can reject records
+     */
+    public boolean hasContentFilter() {
+        return !mimePrefixes.isEmpty() || statusFilter;
+    }
+
+    /**
+     * Get the number of records filtered out.
+     * <p>
+     * @return the number of records not indexed because of this filter
+     */
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    private boolean acceptMime(String mimeType) {
+        if (mimePrefixes.isEmpty()) {
+            return true;
+        }
+        if (mimeType == null) {
+            return false;
+        }
+        String mime = mimeType.trim().toLowerCase(Locale.ROOT);
+        for (String prefix : mimePrefixes) {
+            if (mime.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean acceptStatus(String statusCode) {
+        if (!statusFilter) {
+            return true;
+        }
+        if (statusCode == null) {
+            return false;
+        }
+        try {
+            int code = Integer.parseInt(statusCode.trim());
+            return code >= 0 && code < statusCodes.length && statusCodes[code];
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+}
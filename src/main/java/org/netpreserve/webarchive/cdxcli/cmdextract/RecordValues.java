@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.netpreserve.commons.cdx.json.NumberValue;
+import org.netpreserve.commons.cdx.json.StringValue;
+
+/**
+ * Shared values for record fields having few distinct values.
+ * <p>
+ * File name, record type, content type and status code repeat for nearly every record. Values are immutable, so
+ * instead of allocating new values for each record, the values are created once and shared by all records and
+ * extraction threads.
+ */
+class RecordValues {
+
+    /**
+     * Max number of shared strings. Strings seen after this are not shared, which keeps unusual input like random
+     * content types from filling the heap.
+     */
+    static final int MAX_STRINGS = 4096;
+
+    private static final StringValue NULL_STRING = StringValue.valueOf(null);
+
+    private final ConcurrentMap<String, StringValue> strings = new ConcurrentHashMap<>();
+
+    /**
+     * Status codes are in the range 0-999. Races only cause the same value to be created more than once.
+     */
+    private final NumberValue[] statusCodes = new NumberValue[1000];
+
+    /**
+     * Get a shared value for a string.
+     * <p>
+     * @param value the string, might be null
+     * @return the shared value
+     */
+    StringValue string(String value) {
+        if (value == null) {
+            return NULL_STRING;
+        }
+        StringValue result = strings.get(value);
+        if (result == null) {
+            result = StringValue.valueOf(value);
+            if (strings.size() < MAX_STRINGS) {
+                StringValue existing = strings.putIfAbsent(value, result);
+                if (existing != null) {
+                    result = existing;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get a shared value for a status code.
+     * <p>
+     * @param code the status code as found in the http header
+     * @return the shared value
+     */
+    NumberValue statusCode(String code) {
+        if (code == null || code.length() != 3) {
+            return NumberValue.valueOf(code);
+        }
+        int index = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return NumberValue.valueOf(code);
+            }
+            index = index * 10 + c - '0';
+        }
+        NumberValue result = statusCodes[index];
+        if (result == null) {
+            result = NumberValue.valueOf(code);
+            statusCodes[index] = result;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.netpreserve.commons.cdx.CdxRecord;
+import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
+
+/**
+ * Output buffering the formatted records of one file until they can be written in order.
+ * <p>
+ * Records are kept in memory until the buffer grows beyond {@link #SPILL_THRESHOLD} chars. Then the buffered content
+ * is moved to a temporary file, and the file is appended to every time the buffer is full again. {@link #writeTo}
+ * copies everything to the destination. Closing the output releases the buffer and deletes the temporary file.
+ */
+public class SpillableOutput implements Output, Closeable {
+
+    static final int SPILL_THRESHOLD = 1024 * 1024;
+
+    private final CdxRecordFormatter formatter;
+
+    private final StringWriter memory = new StringWriter();
+
+    private Path spillFile;
+
+    private Writer spillWriter;
+
+    public SpillableOutput(CdxRecordFormatter formatter) {
+        this.formatter = formatter;
+    }
+
+    @Override
+    public synchronized void write(CdxRecord record) {
+        try {
+            formatter.format(memory, record);
+            memory.append('\n');
+            if (memory.getBuffer().length() > SPILL_THRESHOLD) {
+                spill();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Write all buffered records to a writer.
+     * <p>
+     * @param out the destination
+     * @throws IOException is thrown if the buffered records could not be read or written
+     */
+    public synchronized void writeTo(Writer out) throws IOException {
+        if (spillWriter != null) {
+            spillWriter.close();
+            spillWriter = null;
+            try (Reader in = Files.newBufferedReader(spillFile, StandardCharsets.UTF_8);) {
+                char[] buf = new char[64 * 1024];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+            }
+        }
+        out.append(memory.getBuffer());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        memory.getBuffer().setLength(0);
+        memory.getBuffer().trimToSize();
+        try {
+            if (spillWriter != null) {
+                spillWriter.close();
+                spillWriter = null;
+            }
+        } finally {
+            if (spillFile != null) {
+                Files.deleteIfExists(spillFile);
+                spillFile = null;
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        if (spillWriter == null) {
+            spillFile = Files.createTempFile("cdxextract", ".tmp");
+            spillWriter = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8);
+        }
+        spillWriter.append(memory.getBuffer());
+        memory.getBuffer().setLength(0);
+    }
+
+}
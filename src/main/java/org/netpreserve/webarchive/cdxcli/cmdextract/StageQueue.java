@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue handing work from one pipeline stage to the next.
+ * <p>
+ * The capacity is measured in weight units. An item is accepted if it fits within the remaining capacity or if the
+ * queue is empty, so items heavier than the capacity can still pass one at a time. The producer signals the end of
+ * its work with {@link #finish()} and either side can abort the pipeline with {@link #fail(Throwable)}.
+ * <p>
+ * @param <T> the type of items in the queue
+ */
+final class StageQueue<T> {
+
+    private final ArrayDeque<T> items = new ArrayDeque<>();
+
+    private final ArrayDeque<Long> weights = new ArrayDeque<>();
+
+    private final long capacity;
+
+    private final Statistics statistics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private long used;
+
+    private boolean finished;
+
+    private Throwable failure;
+
+    /**
+     * Create a new queue.
+     * <p>
+     * @param capacity the total weight of items the queue can hold
+     * @param statistics statistics to update when items pass through the queue
+     */
+    StageQueue(long capacity, Statistics statistics) {
+        this.capacity = capacity;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Add an item, waiting while the queue is full.
+     * <p>
+     * @param item the item to add
+     * @param weight the weight of the item
+     * @throws IOException is thrown if the pipeline has failed
+     * @throws InterruptedException is thrown if interrupted while waiting
+     */
+    void put(T item, long weight) throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            if (failure == null && used > 0 && used + weight > capacity) {
+                long start = System.nanoTime();
+                while (failure == null && used > 0 && used + weight > capacity) {
+                    notFull.await();
+                }
+                statistics.producerWait.addAndGet(System.nanoTime() - start);
+            }
+            checkFailure();
+            items.add(item);
+            weights.add(weight);
+            used += weight;
+            statistics.sample(items.size());
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the next item, waiting while the queue is empty.
+     * <p>
+     * @return the next item or null if the queue is empty and the producer has finished
+     * @throws IOException is thrown if the pipeline has failed
+     * @throws InterruptedException is thrown if interrupted while waiting
+     */
+    T take() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            if (failure == null && items.isEmpty() && !finished) {
+                long start = System.nanoTime();
+                while (failure == null && items.isEmpty() && !finished) {
+                    notEmpty.await();
+                }
+                statistics.consumerWait.addAndGet(System.nanoTime() - start);
+            }
+            checkFailure();
+            if (items.isEmpty()) {
+                return null;
+            }
+            used -= weights.poll();
+            notFull.signal();
+            return items.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Signal that no more items will be added.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Abort the pipeline. Waiting producers and consumers will get an exception.
+     * <p>
+     * @param cause the reason for the failure
+     */
+    void fail(Throwable cause) {
+        lock.lock();
+        try {
+            if (failure == null) {
+                failure = cause;
+            }
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new IOException("Extraction pipeline failed", failure);
+        }
+    }
+
+    /**
+     * Statistics for a queue between two stages, accumulated over all files.
+     */
+    static final class Statistics {
+
+        private final String name;
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong depthSum = new AtomicLong();
+
+        private final AtomicLong maxDepth = new AtomicLong();
+
+        private final AtomicLong producerWait = new AtomicLong();
+
+        private final AtomicLong consumerWait = new AtomicLong();
+
+        /**
+         * Create statistics for a queue.
+         * <p>
+         * @param name the name of the queue used when printing
+         */
+        Statistics(String name) {
+            this.name = name;
+        }
+
+        private void sample(int depth) {
+            count.incrementAndGet();
+            depthSum.addAndGet(depth);
+            long max;
+            while ((max = maxDepth.get()) < depth && !maxDepth.compareAndSet(max, depth)) {
+                // Retry
+            }
+        }
+
+        /**
+         * Print the statistics.
+         * <p>
+         * A queue which is mostly full, with waiting producers, has a slow consumer. A queue which is mostly empty,
+         * with waiting consumers, has a slow producer.
+         * <p>
+         * @param out the stream to print to
+         */
+        void print(PrintStream out) {
+            long n = count.get();
+            out.printf("  %-16s items: %d, avg depth: %.1f, max depth: %d, producer wait: %dms, consumer wait: %dms%n",
+                    name, n, n == 0 ? 0.0 : (double) depthSum.get() / n, maxDepth.get(),
+                    TimeUnit.NANOSECONDS.toMillis(producerWait.get()),
+                    TimeUnit.NANOSECONDS.toMillis(consumerWait.get()));
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import org.netpreserve.commons.cdx.json.TimestampValue;
+
+/**
+ * Per thread cache of the last parsed record date.
+ * <p>
+ * Records written by a crawler one after another usually share the same date, e.g. the request, response and
+ * metadata records of a capture, so the date is only parsed when it differs from the one of the previous record read
+ * by the same thread.
+ */
+class TimestampCache {
+
+    private final ThreadLocal<Entry> last = ThreadLocal.withInitial(Entry::new);
+
+    /**
+     * Get the parsed value of a date.
+     * <p>
+     * @param date the date as found in the record header
+     * @return the parsed value
+     */
+    TimestampValue get(String date) {
+        if (date == null) {
+            return TimestampValue.valueOf(date);
+        }
+        Entry entry = last.get();
+        if (!date.equals(entry.date)) {
+            entry.value = TimestampValue.valueOf(date);
+            entry.date = date;
+        }
+        return entry.value;
+    }
+
+    /**
+     * The last date parsed by a thread.
+     */
+    private static final class Entry {
+
+        private String date;
+
+        private TimestampValue value;
+
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.netpreserve.commons.cdx.json.UriValue;
+
+/**
+ * Bounded cache of parsed and canonicalized URIs shared by the extraction threads.
+ * <p>
+ * The same URI is often parsed several times, e.g. for the request and response records of a capture, for revisits
+ * and for crawls fetching the same resources again. The cache is split into segments, each with its own lock and
+ * evicting the least recently used entry when full, so that threads seldom wait for each other.
+ */
+class UriCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a cache.
+     * <p>
+     * @param size the max number of URIs in the cache
+     */
+    UriCache(int size) {
+        int segmentSize = Math.max(1, size / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Get the parsed value of a URI, parsing it if it is not in the cache.
+     * <p>
+     * @param uri the URI as found in the record header
+     * @return the parsed value
+     */
+    UriValue get(String uri) {
+        if (uri == null) {
+            return UriValue.valueOf(uri);
+        }
+        int hash = uri.hashCode();
+        Segment segment = segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+        UriValue value;
+        synchronized (segment) {
+            value = segment.get(uri);
+        }
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+
+        // Parse outside of the lock. Two threads might parse the same URI, which is harmless.
+        misses.increment();
+        value = UriValue.valueOf(uri);
+        synchronized (segment) {
+            segment.put(uri, value);
+        }
+        return value;
+    }
+
+    /**
+     * Print the number of hits and misses.
+     * <p>
+     * @param out the stream to print to
+     */
+    void printStatistics(PrintStream out) {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        out.printf("URI cache hits: %d of %d (%.1f%%)%n", hitCount, total, total == 0 ? 0.0 : 100.0 * hitCount / total);
+    }
+
+    /**
+     * One part of the cache, ordered by access.
+     */
+    private static final class Segment extends LinkedHashMap<String, UriValue> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UriValue> eldest) {
+            return size() > maxSize;
+        }
+
+    }
+
+}
@@ -16,7 +16,6 @@
 package org.netpreserve.webarchive.cdxcli.cmdreformat;
 
 import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.UncheckedIOException;
@@ -25,9 +24,11 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
 import org.netpreserve.commons.cdx.CdxFormat;
 import org.netpreserve.commons.cdx.CdxRecord;
@@ -42,7 +43,13 @@ import org.netpreserve.commons.cdx.cdxsource.MultiCdxSource;
 import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
 import org.netpreserve.commons.cdx.sort.SortingWriter;
 import org.netpreserve.webarchive.cdxcli.Command;
+import org.netpreserve.webarchive.cdxcli.FileTaskRunner;
 import org.netpreserve.webarchive.cdxcli.MainParameters;
+import org.netpreserve.webarchive.cdxcli.MemorySizeConverter;
+import org.netpreserve.webarchive.cdxcli.sort.ExternalSorter;
+import org.netpreserve.webarchive.cdxcli.sort.ExternalSortingWriter;
+import org.netpreserve.webarchive.cdxcli.sort.PartitionedWriter;
+import org.netpreserve.webarchive.cdxcli.zipnum.ZipNumWriter;
 
 /**
  * Command for reformatting from one version of cdx to another.
@@ -72,16 +79,86 @@ public class CommandReformat implements Command {
     String outputFileName;
 
     @Parameter(names = {"-t", "--tempfiles"}, description = "The number of temporary files used for sorting. "
-               + "Only applicable when parameter -s is set")
+               + "Sorting into partitions or with --sort-memory or --compress-tmp is sized by memory and ignores "
+               + "this. Only applicable when parameter -s is set")
     int scratchfileCount = 10;
 
     @Parameter(names = {"-h", "--heapsize"}, description = "The number of lines in the heap when sorting. "
-               + "The amount of memory used is dependent on average cdx line length. "
-               + "Only applicable when parameter -s is set")
+               + "The amount of memory used is dependent on average cdx line length. Ignored whenever -t is "
+               + "ignored. Only applicable when parameter -s is set")
     int heapSize = 100;
 
+    @Parameter(names = {"--sort-memory"}, converter = MemorySizeConverter.class, description = "The amount of "
+               + "memory used for sorting, e.g. 512m or 2g. Sorted runs are sized by memory instead of number of "
+               + "lines and the number of temporary files is chosen automatically, so -t and -h are ignored. "
+               + "Defaults to a quarter of the max heap size when the sort is sized by memory. "
+               + "Only applicable when parameter -s is set")
+    Long sortMemory;
+
+    @Parameter(names = {"--compress-tmp"}, description = "Compress the temporary files used for sorting. Saves "
+               + "scratch disk bandwidth at the cost of some CPU. Statistics for the temporary files are printed "
+               + "after sorting. Only applicable when parameter -s is set")
+    boolean compressTmp = false;
+
+    @Parameter(names = {"--zipnum"}, description = "Write the sorted output in ZipNum layout: blocks of lines "
+               + "compressed as separate gzip members in '<output>-NN.gz', a summary '<output>.idx' with the first "
+               + "key, shard, offset and length of each block and '<output>.loc' with the path of each shard. "
+               + "Only applicable when parameters -s, -c and -o are set")
+    boolean zipnum = false;
+
+    @Parameter(names = {"--zipnum-lines"}, description = "The number of lines in each block. "
+               + "Only applicable when parameter --zipnum is set")
+    int zipnumLines = 3000;
+
+    @Parameter(names = {"--zipnum-shards"}, description = "The number of shards, each covering a range of keys. "
+               + "Only applicable when parameter --zipnum is set")
+    int zipnumShards = 1;
+
+    @Parameter(names = {"--partitions"}, description = "Divide the sorted output into this many files, each "
+               + "covering a range of SURTs, named '<output>-NN.<suffix>'. The ranges are estimated from a sample of "
+               + "the sorted runs unless --split-points is given. The split points used are written to "
+               + "'<output>.splits'. Only applicable when parameters -s, -c and -o are set")
+    int partitions = 0;
+
+    @Parameter(names = {"--split-points"}, description = "File with one SURT per line where a new partition "
+               + "starts, e.g. the '.splits' file of an earlier run. Gives one more partition than there are lines. "
+               + "Only applicable when parameters -s, -c and -o are set")
+    String splitPointsFileName;
+
+    @Parameter(names = {"--threads"}, description = "The max number of input files processed in parallel when "
+               + "writing one output file per input file. A file that fails is reported and the others are "
+               + "processed before the command fails.")
+    int threads = 16;
+
+    /**
+     * Split points read from --split-points, or null.
+     */
+    List<String> splitPoints;
+
     @Override
     public void exec(MainParameters mp) {
+        if (zipnum && (!sort || !concatenate || outputFileName == null)) {
+            throw new ParameterException("--zipnum requires -s, -c and -o");
+        }
+        if (partitions > 0 || splitPointsFileName != null) {
+            if (!sort || !concatenate || outputFileName == null) {
+                throw new ParameterException("--partitions and --split-points require -s, -c and -o");
+            }
+            if (zipnum) {
+                throw new ParameterException("--partitions and --split-points can not be combined with --zipnum");
+            }
+            if (splitPointsFileName != null) {
+                try {
+                    splitPoints = PartitionedWriter.readSplitPoints(Paths.get(splitPointsFileName));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                if (partitions > 0 && partitions != splitPoints.size() + 1) {
+                    throw new ParameterException("--split-points gives " + (splitPoints.size() + 1)
+                            + " partitions, but --partitions is " + partitions);
+                }
+            }
+        }
         String outFileSuffix = "." + format.getFileSuffix();
 
         if (outputFileName == null) {
@@ -119,8 +196,8 @@ public class CommandReformat implements Command {
                 if (!Files.isDirectory(outPath)) {
                     throw new IllegalArgumentException("Output " + outputFileName + " must be a directory");
                 }
-                int i = 0;
-                for (String in : inputFileNames) {
+                int threadCount = Math.max(1, Math.min(inputFileNames.size(), threads));
+                new FileTaskRunner(threadCount, mp.isPrintStacktrace()).run(inputFileNames, (in) -> {
                     String inName = Paths.get(in).getFileName().toString();
                     if (inName.contains(".")) {
                         inName = inName.substring(0, inName.lastIndexOf('.'));
@@ -130,13 +207,18 @@ public class CommandReformat implements Command {
 
                     System.out.println("Reformatting: " + in + " into: " + outFile);
 
-                    try (Writer out = createOutput(outFile);
-                            CdxSource src = createCdxSource(in);) {
-                        reformat(src, out);
-                    } catch (IOException ex) {
-                        throw new UncheckedIOException(ex);
+                    Writer out = createOutput(outFile, threadCount);
+                    try {
+                        try (Writer w = out;
+                                CdxSource src = createCdxSource(in);) {
+                            reformat(src, w);
+                        }
+                    } catch (IOException | RuntimeException ex) {
+                        // Do not leave a partial result which would block a rerun
+                        Files.deleteIfExists(outFile);
+                        throw ex;
                     }
-                }
+                });
             }
         }
         CdxSourceExecutorService.getInstance().shutdown();
@@ -150,18 +232,43 @@ public class CommandReformat implements Command {
      * @throws IOException is thrown if the output file already exists or the underlying IO classes throws an exception.
      */
     Writer createOutput(Path outFile) throws IOException {
+        return createOutput(outFile, 1);
+    }
+
+    /**
+     * Create a writer from an output file.
+     * <p>
+     * @param outFile a file to send the result to
+     * @param concurrentOutputs the number of outputs sorting at the same time and sharing the sort memory
+     * @return the newly created writer
+     * @throws IOException is thrown if the output file already exists or the underlying IO classes throws an exception.
+     */
+    Writer createOutput(Path outFile, int concurrentOutputs) throws IOException {
+        if (partitions > 0 || splitPoints != null) {
+            ExternalSorter sorter = createSorter(concurrentOutputs);
+            PartitionedWriter out = PartitionedWriter.forSorter(outFile, format.getFileHeader(), partitions,
+                    splitPoints, sorter);
+            return new ExternalSortingWriter(new BufferedWriter(out), sorter);
+        }
+        if (zipnum) {
+            // The ZipNum layout has no file header
+            return createSortingWriter(new BufferedWriter(new ZipNumWriter(outFile, zipnumLines, zipnumShards)),
+                    concurrentOutputs);
+        }
+
         if (Files.exists(outFile)) {
             throw new UncheckedIOException(new IOException(outFile + " already exists"));
         }
 
-        Writer out = new FileWriter(outFile.toFile());
+        // Create atomically so that parallel tasks can not write to the same file
+        Writer out = new OutputStreamWriter(Files.newOutputStream(outFile, StandardOpenOption.CREATE_NEW));
         out = new BufferedWriter(out);
 
         out.write(format.getFileHeader());
         out.write('\n');
 
         if (sort) {
-            out = new SortingWriter(out, scratchfileCount, heapSize);
+            out = createSortingWriter(out, concurrentOutputs);
         }
 
         return out;
@@ -183,12 +290,40 @@ public class CommandReformat implements Command {
         out.write('\n');
 
         if (sort) {
-            out = new SortingWriter(out, scratchfileCount, heapSize);
+            out = createSortingWriter(out, 1);
         }
 
         return out;
     }
 
+    /**
+     * Create a writer sorting the lines before they are written to another writer.
+     * <p>
+     * @param out a writer to send the sorted result to
+     * @param concurrentOutputs the number of outputs sorting at the same time and sharing the sort memory
+     * @return the newly created writer
+     */
+    Writer createSortingWriter(Writer out, int concurrentOutputs) {
+        if (sortMemory == null && !compressTmp) {
+            return new SortingWriter(out, scratchfileCount, heapSize);
+        }
+
+        return new ExternalSortingWriter(out, createSorter(concurrentOutputs));
+    }
+
+    /**
+     * Create an external sorter.
+     * <p>
+     * @param concurrentOutputs the number of outputs sorting at the same time and sharing the sort memory
+     * @return the new sorter
+     */
+    ExternalSorter createSorter(int concurrentOutputs) {
+        long memory = sortMemory != null ? sortMemory : ExternalSorter.defaultMemory();
+        ExternalSorter sorter = ExternalSorter.withMemoryLimit(memory / concurrentOutputs, 1);
+        sorter.setCompressRuns(compressTmp);
+        return sorter;
+    }
+
     /**
      * Do the reformatting and write the result to a {@link Writer}.
      * <p>
@@ -0,0 +1,818 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.sort;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sorts lines by collecting sorted runs and merging them.
+ * <p>
+ * Lines are added through {@link RunBuffer}s. Each thread should use its own buffer, which sorts its lines and spills
+ * them to a temporary file when full. When all lines are added, {@link #merge(Writer)} does a streaming k-way merge
+ * of all runs into the final destination. If there are more runs than the merge fan-in, intermediate merge passes
+ * are done first.
+ * <p>
+ * Lines are kept as UTF-8 bytes in memory and in the run files, and are ordered by unsigned byte comparison. For CDXJ
+ * this is the SURT order. Lines are only decoded to Strings when written to the final destination.
+ * <p>
+ * Files which are already sorted can be added to the final merge, for example to merge new lines into an existing
+ * index without sorting it again.
+ * <p>
+ * Runs can optionally be compressed to trade CPU for scratch disk bandwidth. Runs are always read back with
+ * read-ahead. The number of bytes written to and read from the run files is counted so that the effect of
+ * compression can be measured.
+ */
+public class ExternalSorter {
+
+    static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Memory used for each run read by a merge: the line buffer of the reader and the two read-ahead buffers.
+     */
+    static final int RUN_READER_MEMORY = 3 * IO_BUFFER_SIZE;
+
+    /**
+     * Additional memory used for each compressed run read by a merge: the input buffer and window of the inflater.
+     */
+    static final int INFLATER_MEMORY = IO_BUFFER_SIZE + 32 * 1024;
+
+    /**
+     * Upper limit for the merge fan-in when it is computed from available memory. Keeps the number of open files
+     * reasonable.
+     */
+    static final int MAX_FAN_IN = 1024;
+
+    /**
+     * Part of the max heap size used for sorting when no amount of memory is given.
+     */
+    static final double DEFAULT_MEMORY_FRACTION = 0.25;
+
+    private Path tempDir;
+
+    private final int mergeFanIn;
+
+    /**
+     * Memory available for the read buffers of a merge, or zero if the fan-in is fixed.
+     */
+    private long mergeMemory;
+
+    private final int maxRunLines;
+
+    private final long maxRunBytes;
+
+    private final List<Path> runs = new ArrayList<>();
+
+    private final List<SortedInput> sortedInputs = new ArrayList<>();
+
+    private final Map<Path, LineFilter> runFilters = new HashMap<>();
+
+    private volatile Consumer<List<String>> commitListener;
+
+    /**
+     * If true, run files are left in place when merged and on cleanup.
+     */
+    private boolean keepRuns;
+
+    private boolean compressRuns;
+
+    private final AtomicLong runCount = new AtomicLong();
+
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private int mergePasses;
+
+    /**
+     * Default for the max number of sampled keys kept by a sorter.
+     */
+    static final int MAX_SAMPLES = 64 * 1024;
+
+    /**
+     * Number of keys sampled from each run or zero for no sampling.
+     */
+    private volatile int samplesPerRun;
+
+    /**
+     * Max number of sampled keys kept. When exceeded, the samples are compacted to half the number.
+     */
+    private volatile int maxSamples = MAX_SAMPLES;
+
+    private final List<KeySample> samples = new ArrayList<>();
+
+    /**
+     * Create a sorter.
+     * <p>
+     * @param tempDir directory for the run files
+     * @param mergeFanIn max number of runs merged at once
+     * @param maxRunLines max number of lines in each run buffer
+     * @param maxRunBytes max estimated memory used by each run buffer
+     */
+    public ExternalSorter(Path tempDir, int mergeFanIn, int maxRunLines, long maxRunBytes) {
+        if (mergeFanIn < 2) {
+            throw new IllegalArgumentException("Merge fan-in must be at least two");
+        }
+        if (maxRunLines < 1 || maxRunBytes < 1) {
+            throw new IllegalArgumentException("Run buffers must be able to hold at least one line");
+        }
+        this.tempDir = tempDir;
+        this.mergeFanIn = mergeFanIn;
+        this.maxRunLines = maxRunLines;
+        this.maxRunBytes = maxRunBytes;
+    }
+
+    /**
+     * Create a sorter where run buffers are limited by number of lines.
+     * <p>
+     * @param mergeFanIn max number of runs merged at once
+     * @param maxRunLines max number of lines in each run buffer
+     * @return the new sorter
+     */
+    public static ExternalSorter withLineLimit(int mergeFanIn, int maxRunLines) {
+        return new ExternalSorter(defaultTempDir(), mergeFanIn, maxRunLines, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a sorter where run buffers are limited by memory.
+     * <p>
+     * The memory is divided between the run buffers. The run buffers are released before merging, and the merge
+     * fan-in is chosen so that the buffers of all runs merged at once fit in the same amount of memory. That depends
+     * on whether runs are compressed, so the fan-in is decided when merging.
+     * <p>
+     * @param memory the total amount of memory in bytes to use for run buffers
+     * @param bufferCount the number of run buffers used concurrently, normally one per thread adding lines
+     * @return the new sorter
+     */
+    public static ExternalSorter withMemoryLimit(long memory, int bufferCount) {
+        ExternalSorter sorter = new ExternalSorter(defaultTempDir(), fanIn(memory, RUN_READER_MEMORY),
+                Integer.MAX_VALUE - 8, Math.max(1, memory / Math.max(1, bufferCount)));
+        sorter.mergeMemory = memory;
+        return sorter;
+    }
+
+    /**
+     * Get the amount of memory to use for sorting when the user has not given one.
+     * <p>
+     * @return a fixed part of the max heap size
+     */
+    public static long defaultMemory() {
+        return (long) (Runtime.getRuntime().maxMemory() * DEFAULT_MEMORY_FRACTION);
+    }
+
+    private static int fanIn(long memory, int memoryPerRun) {
+        return (int) Math.max(2, Math.min(MAX_FAN_IN, memory / memoryPerRun));
+    }
+
+    /**
+     * Get the max number of runs merged at once.
+     * <p>
+     * @return the merge fan-in
+     */
+    int getMergeFanIn() {
+        if (mergeMemory <= 0) {
+            return mergeFanIn;
+        }
+        return fanIn(mergeMemory, RUN_READER_MEMORY + (compressRuns ? INFLATER_MEMORY : 0));
+    }
+
+    private static Path defaultTempDir() {
+        return Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Set if runs should be compressed.
+     * <p>
+     * Runs are compressed with the fastest deflate level which usually shrinks CDX lines to a quarter of their size.
+     * Must be set before any lines are added.
+     * <p>
+     * @param compressRuns true if runs should be compressed
+     */
+    public void setCompressRuns(boolean compressRuns) {
+        this.compressRuns = compressRuns;
+    }
+
+    /**
+     * Check if runs are compressed.
+     * <p>
+     * @return true if runs are compressed
+     */
+    public boolean isCompressRuns() {
+        return compressRuns;
+    }
+
+    /**
+     * Set the directory for the run files. Must be set before any lines are added.
+     * <p>
+     * @param tempDir the directory
+     */
+    public void setTempDir(Path tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Set a listener notified when units of work committed with {@link RunBuffer#commit(String)} have all their lines
+     * written to run files.
+     * <p>
+     * The listener is called by the thread owning the run buffer.
+     * <p>
+     * @param commitListener the listener receiving the names of the committed units
+     */
+    public void setCommitListener(Consumer<List<String>> commitListener) {
+        this.commitListener = commitListener;
+    }
+
+    /**
+     * Keep the run files when they are merged and on cleanup.
+     * <p>
+     * Used when the runs are referenced from outside the sorter, like a checkpoint, and must survive a failed or
+     * interrupted merge. Files written by intermediate merge passes are still deleted. The owner of the runs is
+     * responsible for deleting them.
+     * <p>
+     * @param keepRuns true to keep the run files
+     */
+    public void setKeepRuns(boolean keepRuns) {
+        this.keepRuns = keepRuns;
+    }
+
+    /**
+     * Get the run files written so far and not yet merged.
+     * <p>
+     * @return a snapshot of the run files
+     */
+    public List<Path> getRuns() {
+        synchronized (runs) {
+            return new ArrayList<>(runs);
+        }
+    }
+
+    /**
+     * Add an existing run file, for example one written by an earlier sorter that was interrupted.
+     * <p>
+     * The file must have been written with the same compression setting as this sorter uses. It is deleted when
+     * merged like any other run, unless runs are kept.
+     * <p>
+     * @param run the run file
+     * @param filter decides which lines of the run to keep, or null to keep all lines
+     */
+    public void addRun(Path run, LineFilter filter) {
+        synchronized (runs) {
+            runs.add(run);
+            if (filter != null) {
+                runFilters.put(run, filter);
+            }
+        }
+    }
+
+    /**
+     * Add a file which is already sorted to the final merge.
+     * <p>
+     * The file is read as uncompressed UTF-8 lines and is neither copied nor deleted. This lets new lines be merged
+     * into an existing sorted file in one streaming pass. The file must be sorted in unsigned byte order.
+     * <p>
+     * @param file the sorted file
+     * @param filter decides which lines of the file to keep, or null to keep all lines
+     */
+    public void addSortedInput(Path file, LineFilter filter) {
+        sortedInputs.add(new SortedInput(file, filter));
+    }
+
+    /**
+     * Sample the first field of lines in every run written, so that the key distribution can be estimated.
+     * <p>
+     * Since each run is sorted, taking lines at even intervals gives a sample spread over the whole key range of
+     * the run. At most {@link #MAX_SAMPLES} keys are kept, see {@link #setSampling(int, int)}.
+     * <p>
+     * @param samplesPerRun the number of lines sampled from each run
+     * @see #estimateSplitPoints(int)
+     */
+    public void setSampling(int samplesPerRun) {
+        setSampling(samplesPerRun, MAX_SAMPLES);
+    }
+
+    /**
+     * Sample the first field of lines in every run written, keeping a bounded number of samples.
+     * <p>
+     * Each sample is weighted by the number of lines it represents. When more than {@code maxSamples} samples are
+     * collected, they are sorted and every two neighbours are replaced by one of them carrying both weights. The
+     * memory used is bounded regardless of the number of runs, at the cost of coarser estimates for large inputs.
+     * <p>
+     * @param samplesPerRun the number of lines sampled from each run
+     * @param maxSamples the max number of samples kept
+     * @see #estimateSplitPoints(int)
+     */
+    public void setSampling(int samplesPerRun, int maxSamples) {
+        if (maxSamples < 2) {
+            throw new IllegalArgumentException("At least two samples must be kept");
+        }
+        this.samplesPerRun = samplesPerRun;
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Get the number of sampled keys kept.
+     * <p>
+     * @return the number of samples
+     */
+    int getSampleCount() {
+        synchronized (samples) {
+            return samples.size();
+        }
+    }
+
+    /**
+     * Estimate keys dividing the lines written so far into partitions of about the same number of lines.
+     * <p>
+     * Only lines written to runs are taken into account, so all buffers should be flushed first. Requires that
+     * sampling is enabled.
+     * <p>
+     * @param partitions the wanted number of partitions
+     * @return the distinct first fields where each partition except the first starts, sorted like the lines. Might be
+     * fewer than {@code partitions - 1} if the keys are not diverse enough
+     */
+    public List<String> estimateSplitPoints(int partitions) {
+        List<KeySample> sorted;
+        synchronized (samples) {
+            sorted = new ArrayList<>(samples);
+        }
+        sorted.sort((a, b) -> RunBuffer.compareUtf8(a.key, b.key));
+        long total = 0;
+        for (KeySample sample : sorted) {
+            total += sample.weight;
+        }
+
+        List<String> splitPoints = new ArrayList<>();
+        long cumulative = 0;
+        int next = 1;
+        for (KeySample sample : sorted) {
+            if (next >= partitions) {
+                break;
+            }
+            if (cumulative >= total * next / partitions) {
+                if (splitPoints.isEmpty()
+                        || RunBuffer.compareUtf8(sample.key, splitPoints.get(splitPoints.size() - 1)) > 0) {
+                    splitPoints.add(sample.key);
+                }
+                next++;
+            }
+            cumulative += sample.weight;
+        }
+        return splitPoints;
+    }
+
+    /**
+     * Create a buffer for adding lines. A buffer must only be used by one thread at a time.
+     * <p>
+     * @return the new buffer
+     */
+    public RunBuffer newRunBuffer() {
+        return new RunBuffer(this, maxRunLines, maxRunBytes);
+    }
+
+    /**
+     * Write a sorted run to a temporary file.
+     * <p>
+     * @param buffer the buffer containing the lines
+     * @param order the indexes of the lines in sorted order
+     * @throws IOException is thrown if the run could not be written
+     */
+    void spill(RunBuffer buffer, int[] order) throws IOException {
+        Path run = Files.createTempFile(tempDir, "cdxsort", ".run");
+        try (OutputStream out = newRunOutputStream(run);) {
+            buffer.writeLines(out, order);
+        }
+        synchronized (runs) {
+            runs.add(run);
+        }
+        runCount.incrementAndGet();
+
+        int sampleCount = samplesPerRun;
+        if (sampleCount > 0 && order.length > 0) {
+            int step = Math.max(1, order.length / sampleCount);
+            List<KeySample> runSamples = new ArrayList<>();
+            for (int i = step / 2; i < order.length; i += step) {
+                runSamples.add(new KeySample(buffer.firstField(order[i]), step));
+            }
+            synchronized (samples) {
+                samples.addAll(runSamples);
+                while (samples.size() > maxSamples) {
+                    compactSamples();
+                }
+            }
+        }
+    }
+
+    /**
+     * Halve the number of samples while keeping their total weight. Must be called holding the lock on the samples.
+     * <p>
+     * The samples are sorted and each pair of neighbours is replaced by one of them with the weight of both. Which
+     * one is kept alternates between pairs, so the estimated split points are not shifted in one direction.
+     */
+    private void compactSamples() {
+        samples.sort((a, b) -> RunBuffer.compareUtf8(a.key, b.key));
+        List<KeySample> compacted = new ArrayList<>(samples.size() / 2 + 1);
+        for (int i = 0; i < samples.size(); i += 2) {
+            KeySample first = samples.get(i);
+            if (i + 1 == samples.size()) {
+                compacted.add(first);
+                break;
+            }
+            KeySample second = samples.get(i + 1);
+            KeySample kept = (i / 2) % 2 == 0 ? first : second;
+            compacted.add(new KeySample(kept.key, first.weight + second.weight));
+        }
+        samples.clear();
+        samples.addAll(compacted);
+    }
+
+    /**
+     * Notify the commit listener.
+     * <p>
+     * @param names the units of work which are now written to run files
+     */
+    void committed(List<String> names) {
+        Consumer<List<String>> listener = commitListener;
+        if (listener != null) {
+            listener.accept(names);
+        }
+    }
+
+    /**
+     * Merge all runs into a writer.
+     * <p>
+     * All buffers must be flushed before calling this method. The writer is flushed, but not closed. Run files are
+     * deleted as they are merged.
+     * <p>
+     * @param out the destination for the sorted lines
+     * @throws IOException is thrown if the merge failed
+     */
+    public void merge(Writer out) throws IOException {
+        List<Path> current;
+        synchronized (runs) {
+            current = new ArrayList<>(runs);
+            runs.clear();
+        }
+        Set<Path> kept = keepRuns ? new HashSet<>(current) : Collections.emptySet();
+        int fanIn = getMergeFanIn();
+
+        try {
+            // Sorted inputs take part in the final merge only, leave room for them
+            int finalFanIn = Math.max(1, fanIn - sortedInputs.size());
+            while (current.size() > finalFanIn) {
+                List<Path> next = new ArrayList<>();
+                for (int i = 0; i < current.size(); i += fanIn) {
+                    List<Path> group = current.subList(i, Math.min(i + fanIn, current.size()));
+                    if (group.size() == 1) {
+                        next.add(group.get(0));
+                    } else {
+                        Path merged = Files.createTempFile(tempDir, "cdxsort", ".run");
+                        next.add(merged);
+                        try (OutputStream mergedOut = newRunOutputStream(merged);) {
+                            mergeRuns(group, (line, length) -> {
+                                mergedOut.write(line, 0, length);
+                                mergedOut.write('\n');
+                            });
+                        }
+                        delete(group, kept);
+                    }
+                }
+                current = next;
+                mergePasses++;
+            }
+
+            List<RunReader> readers = new ArrayList<>();
+            for (SortedInput input : sortedInputs) {
+                readers.add(new RunReader(new ReadAheadInputStream(input.file, IO_BUFFER_SIZE, bytesRead),
+                        readers.size(), input.filter));
+            }
+            mergeRuns(current, readers, (line, length) -> {
+                out.write(new String(line, 0, length, StandardCharsets.UTF_8));
+                out.write('\n');
+            });
+            mergePasses++;
+            out.flush();
+        } finally {
+            delete(current, kept);
+        }
+    }
+
+    /**
+     * Delete all run files not yet merged.
+     */
+    public void cleanup() {
+        synchronized (runs) {
+            if (!keepRuns) {
+                delete(runs);
+            }
+            runs.clear();
+        }
+    }
+
+    /**
+     * Print statistics for the runs written and merged.
+     * <p>
+     * @param out the stream to print to
+     */
+    public void printStatistics(PrintStream out) {
+        if (runCount.get() == 0) {
+            return;
+        }
+        out.format("Sorting: %d runs, %d merge passes%n", runCount.get(), mergePasses);
+        if (compressRuns) {
+            out.format("  scratch bytes written: %d (%d before compression)%n", bytesWritten.get(),
+                    uncompressedBytes.get());
+        } else {
+            out.format("  scratch bytes written: %d%n", bytesWritten.get());
+        }
+        out.format("  scratch bytes read:    %d%n", bytesRead.get());
+    }
+
+    private void mergeRuns(List<Path> inputs, LineConsumer out) throws IOException {
+        mergeRuns(inputs, new ArrayList<>(), out);
+    }
+
+    /**
+     * Merge runs and already opened readers.
+     * <p>
+     * @param inputs the run files
+     * @param readers readers for sorted inputs, they are closed by this method. Ties are resolved in favor of these
+     * readers before the runs.
+     * @param out the destination of the merged lines
+     * @throws IOException is thrown if the merge failed
+     */
+    private void mergeRuns(List<Path> inputs, List<RunReader> readers, LineConsumer out) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, inputs.size() + readers.size()));
+        try {
+            for (Path input : inputs) {
+                LineFilter filter;
+                synchronized (runs) {
+                    filter = runFilters.get(input);
+                }
+                readers.add(new RunReader(newRunInputStream(input), readers.size(), filter));
+            }
+            while (!readers.isEmpty()) {
+                RunReader reader = readers.remove(0);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                out.accept(reader.line, reader.length);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private OutputStream newRunOutputStream(Path run) throws IOException {
+        OutputStream out = new CountingOutputStream(Files.newOutputStream(run), bytesWritten);
+        if (compressRuns) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            out = new DeflaterOutputStream(out, deflater, IO_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+
+            };
+        }
+        out = new CountingOutputStream(out, uncompressedBytes);
+        return new BufferedOutputStream(out, IO_BUFFER_SIZE);
+    }
+
+    private InputStream newRunInputStream(Path run) throws IOException {
+        InputStream in = new ReadAheadInputStream(run, IO_BUFFER_SIZE, bytesRead);
+        if (compressRuns) {
+            Inflater inflater = new Inflater();
+            in = new InflaterInputStream(in, inflater, IO_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+
+            };
+        }
+        return in;
+    }
+
+    private static void delete(List<Path> files, Set<Path> kept) {
+        for (Path file : files) {
+            if (!kept.contains(file)) {
+                delete(Collections.singletonList(file));
+            }
+        }
+    }
+
+    private static void delete(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                System.err.println("Could not delete temporary file " + file + ": " + ex.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Receives merged lines.
+     */
+    private interface LineConsumer {
+
+        void accept(byte[] line, int length) throws IOException;
+
+    }
+
+    /**
+     * A sampled key and the number of lines it represents.
+     */
+    private static final class KeySample {
+
+        private final String key;
+
+        private final long weight;
+
+        KeySample(String key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+
+    }
+
+    /**
+     * Decides which lines of a sorted input to keep.
+     */
+    @FunctionalInterface
+    public interface LineFilter {
+
+        /**
+         * Check a line.
+         * <p>
+         * @param line buffer holding the UTF-8 encoded line without line terminator
+         * @param length the length of the line
+         * @return true if the line should be kept
+         */
+        boolean accept(byte[] line, int length);
+
+    }
+
+    /**
+     * A sorted file added to the final merge.
+     */
+    private static final class SortedInput {
+
+        private final Path file;
+
+        private final LineFilter filter;
+
+        SortedInput(Path file, LineFilter filter) {
+            this.file = file;
+            this.filter = filter;
+        }
+
+    }
+
+    /**
+     * Reader for one run during a merge.
+     */
+    private static final class RunReader implements Comparable<RunReader> {
+
+        private final InputStream in;
+
+        private final int index;
+
+        private final LineFilter filter;
+
+        private final byte[] buf = new byte[IO_BUFFER_SIZE];
+
+        private int pos;
+
+        private int limit;
+
+        private byte[] line = new byte[256];
+
+        private int length;
+
+        RunReader(InputStream in, int index, LineFilter filter) {
+            this.in = in;
+            this.index = index;
+            this.filter = filter;
+        }
+
+        /**
+         * Read the next line accepted by the filter into the line buffer.
+         * <p>
+         * @return false if there are no more lines
+         * @throws IOException is thrown if the run could not be read
+         */
+        boolean advance() throws IOException {
+            while (readLine()) {
+                if (filter == null || filter.accept(line, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean readLine() throws IOException {
+            length = 0;
+            while (true) {
+                if (pos == limit) {
+                    limit = in.read(buf, 0, buf.length);
+                    pos = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return length > 0;
+                    }
+                }
+
+                int end = pos;
+                while (end < limit && buf[end] != '\n') {
+                    end++;
+                }
+                int n = end - pos;
+                if (length + n > line.length) {
+                    line = Arrays.copyOf(line, Math.max(2 * line.length, length + n));
+                }
+                System.arraycopy(buf, pos, line, length, n);
+                length += n;
+                if (end < limit) {
+                    pos = end + 1;
+                    return true;
+                }
+                pos = limit;
+            }
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            int c = RunBuffer.compareBytes(line, 0, length, other.line, 0, other.length);
+            return c != 0 ? c : Integer.compare(index, other.index);
+        }
+
+    }
+
+}
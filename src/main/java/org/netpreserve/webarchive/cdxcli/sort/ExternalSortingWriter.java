@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.sort;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A writer sorting the lines written to it with an {@link ExternalSorter}.
+ * <p>
+ * Nothing is written to the destination before the writer is closed. Then all lines are merged into the destination
+ * and the destination is closed. Lines are terminated by '\n'. The writer is meant to be used by one thread.
+ */
+public class ExternalSortingWriter extends Writer {
+
+    private final Writer destination;
+
+    private final ExternalSorter sorter;
+
+    private final RunBuffer buffer;
+
+    private final StringBuilder line = new StringBuilder();
+
+    private boolean closed;
+
+    /**
+     * Create a sorting writer.
+     * <p>
+     * @param destination the writer receiving the sorted lines when this writer is closed
+     * @param sorter the sorter deciding the size of the runs and how they are merged
+     */
+    public ExternalSortingWriter(Writer destination, ExternalSorter sorter) {
+        this.destination = destination;
+        this.sorter = sorter;
+        this.buffer = sorter.newRunBuffer();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        int lineStart = off;
+        for (int i = off; i < end; i++) {
+            if (cbuf[i] == '\n') {
+                line.append(cbuf, lineStart, i - lineStart);
+                buffer.add(line);
+                line.setLength(0);
+                lineStart = i + 1;
+            }
+        }
+        line.append(cbuf, lineStart, end - lineStart);
+    }
+
+    /**
+     * Does nothing since lines can not be written to the destination before all lines are sorted.
+     */
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (line.length() > 0) {
+                buffer.add(line);
+            }
+            buffer.flush();
+            buffer.release();
+            sorter.merge(destination);
+            if (sorter.isCompressRuns()) {
+                // Lets the user see what compressing the scratch files saved
+                sorter.printStatistics(System.err);
+            }
+        } finally {
+            sorter.cleanup();
+            destination.close();
+        }
+    }
+
+}
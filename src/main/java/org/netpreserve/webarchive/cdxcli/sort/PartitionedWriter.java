@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.sort;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A Writer dividing sorted CDX lines into files by key range.
+ * <p>
+ * Partition {@code i} of an output named {@code <name>.<suffix>} is written to {@code <name>-NN.<suffix>}. A line
+ * belongs to the first partition whose split point is after the line's first field, so all lines of a SURT end up
+ * in the same partition. Each partition gets the file header. The split points used are written to
+ * {@code <output>.splits}, one per line, so that a later run can use the same ranges.
+ * <p>
+ * The split points are fetched when the first line arrives, which for a sorter is after all runs are written. They
+ * can therefore be estimated from a sample of the runs, see {@link #forSorter(Path, String, int, List,
+ * ExternalSorter)}.
+ */
+public class PartitionedWriter extends Writer {
+
+    /**
+     * Number of keys sampled from each run when split points are estimated.
+     */
+    static final int SAMPLES_PER_RUN = 1000;
+
+    private final Path outFile;
+
+    private final Supplier<List<String>> splitPointSupplier;
+
+    private final List<Writer> partitions = new ArrayList<>();
+
+    private final StringBuilder line = new StringBuilder();
+
+    private List<String> splitPoints;
+
+    private int current;
+
+    private boolean closed;
+
+    /**
+     * Create a writer.
+     * <p>
+     * All partition files are created at once, so empty partitions get a file too.
+     * <p>
+     * @param outFile the path the file names of the partitions are based on
+     * @param header the file header written first in each partition
+     * @param partitionCount the number of partitions
+     * @param splitPoints supplier of the sorted first fields where each partition except the first starts
+     * @throws IOException is thrown if one of the files already exists or could not be created
+     */
+    public PartitionedWriter(Path outFile, String header, int partitionCount, Supplier<List<String>> splitPoints)
+            throws IOException {
+        this.outFile = outFile;
+        this.splitPointSupplier = splitPoints;
+        if (Files.exists(splitsFile())) {
+            throw new IOException(splitsFile() + " already exists");
+        }
+        try {
+            for (int i = 0; i < partitionCount; i++) {
+                // Create atomically so that parallel tasks can not write to the same file
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        Files.newOutputStream(partitionFile(i), StandardOpenOption.CREATE_NEW),
+                        StandardCharsets.UTF_8));
+                partitions.add(out);
+                out.write(header);
+                out.write('\n');
+            }
+        } catch (IOException ex) {
+            for (Writer out : partitions) {
+                out.close();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Create a writer for the output of a sorter.
+     * <p>
+     * If no split points are given, the sorter is set up to sample its runs and the split points are estimated
+     * from the sample when the merge starts.
+     * <p>
+     * @param outFile the path the file names of the partitions are based on
+     * @param header the file header written first in each partition
+     * @param partitionCount the number of partitions, ignored if split points are given
+     * @param splitPoints the split points or null to estimate them
+     * @param sorter the sorter writing to the new writer
+     * @return the new writer
+     * @throws IOException is thrown if one of the files already exists or could not be created
+     */
+    public static PartitionedWriter forSorter(Path outFile, String header, int partitionCount,
+            List<String> splitPoints, ExternalSorter sorter) throws IOException {
+        if (splitPoints != null) {
+            return new PartitionedWriter(outFile, header, splitPoints.size() + 1, () -> splitPoints);
+        }
+        sorter.setSampling(SAMPLES_PER_RUN);
+        return new PartitionedWriter(outFile, header, partitionCount,
+                () -> sorter.estimateSplitPoints(partitionCount));
+    }
+
+    /**
+     * Read split points from a file with one key per line.
+     * <p>
+     * @param file the file to read
+     * @return the split points
+     * @throws IOException is thrown if the file could not be read or the keys are not sorted in the order of the
+     * sorted lines
+     */
+    public static List<String> readSplitPoints(Path file) throws IOException {
+        List<String> splitPoints = new ArrayList<>();
+        for (String key : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            key = key.trim();
+            if (key.isEmpty()) {
+                continue;
+            }
+            if (!splitPoints.isEmpty() && RunBuffer.compareUtf8(key, splitPoints.get(splitPoints.size() - 1)) <= 0) {
+                throw new IOException("Split points in " + file + " are not sorted and distinct at '" + key + "'");
+            }
+            splitPoints.add(key);
+        }
+        return splitPoints;
+    }
+
+    /**
+     * Get the path of a partition.
+     * <p>
+     * @param partition the number of the partition
+     * @return the partition file
+     */
+    public Path partitionFile(int partition) {
+        String name = outFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String number = String.format("-%02d", partition);
+        if (dot > 0) {
+            name = name.substring(0, dot) + number + name.substring(dot);
+        } else {
+            name = name + number;
+        }
+        return outFile.resolveSibling(name);
+    }
+
+    /**
+     * Get the path of the file listing the split points.
+     * <p>
+     * @return the split points file
+     */
+    public Path splitsFile() {
+        return outFile.resolveSibling(outFile.getFileName() + ".splits");
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        int lineStart = off;
+        for (int i = off; i < end; i++) {
+            if (cbuf[i] == '\n') {
+                line.append(cbuf, lineStart, i - lineStart);
+                writeLine();
+                lineStart = i + 1;
+            }
+        }
+        line.append(cbuf, lineStart, end - lineStart);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (Writer out : partitions) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (line.length() > 0) {
+                writeLine();
+            }
+            try (Writer splits = Files.newBufferedWriter(splitsFile(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE_NEW);) {
+                for (String splitPoint : getSplitPoints()) {
+                    splits.write(splitPoint);
+                    splits.write('\n');
+                }
+            }
+        } finally {
+            for (Writer out : partitions) {
+                out.close();
+            }
+        }
+    }
+
+    private List<String> getSplitPoints() {
+        if (splitPoints == null) {
+            List<String> supplied = splitPointSupplier.get();
+            splitPoints = supplied == null ? Collections.emptyList() : supplied;
+        }
+        return splitPoints;
+    }
+
+    private void writeLine() throws IOException {
+        List<String> points = getSplitPoints();
+        int end = line.indexOf(" ");
+        String key = end < 0 ? line.toString() : line.substring(0, end);
+        // Lines arrive sorted, so the partition never moves backwards. Keys are compared in the order of the sorter.
+        while (current < points.size() && current < partitions.size() - 1
+                && RunBuffer.compareUtf8(key, points.get(current)) >= 0) {
+            current++;
+        }
+        Writer out = partitions.get(current);
+        out.append(line);
+        out.write('\n');
+        line.setLength(0);
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.sort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An InputStream reading a file with double buffering.
+ * <p>
+ * While the caller consumes one buffer, the next is filled by an asynchronous read. A merge with many runs open can
+ * therefore keep the disk busy without one thread per run.
+ */
+final class ReadAheadInputStream extends InputStream {
+
+    private final AsynchronousFileChannel channel;
+
+    private final AtomicLong bytesRead;
+
+    private ByteBuffer current;
+
+    private ByteBuffer next;
+
+    private Future<Integer> pending;
+
+    private long position;
+
+    /**
+     * Create a stream and start reading the first buffer.
+     * <p>
+     * @param file the file to read
+     * @param bufferSize the size of each of the two buffers
+     * @param bytesRead counter incremented with the number of bytes read from the file
+     * @throws IOException is thrown if the file could not be opened
+     */
+    ReadAheadInputStream(Path file, int bufferSize, AtomicLong bytesRead) throws IOException {
+        this.channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+        this.bytesRead = bytesRead;
+        this.current = ByteBuffer.allocate(bufferSize);
+        this.current.limit(0);
+        this.next = ByteBuffer.allocate(bufferSize);
+        startRead();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!current.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!current.hasRemaining() && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void startRead() {
+        next.clear();
+        pending = channel.read(next, position);
+    }
+
+    /**
+     * Wait for the pending read, make it the current buffer and start reading the next one.
+     * <p>
+     * @return false if the end of the file is reached
+     * @throws IOException is thrown if the read failed
+     */
+    private boolean fill() throws IOException {
+        while (pending != null) {
+            int n;
+            try {
+                n = pending.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + ex.getLocalizedMessage());
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+
+            if (n < 0) {
+                pending = null;
+                return false;
+            }
+            position += n;
+            bytesRead.addAndGet(n);
+
+            ByteBuffer filled = next;
+            next = current;
+            current = filled;
+            current.flip();
+            startRead();
+            if (current.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.sort;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Collects lines for an {@link ExternalSorter}.
+ * <p>
+ * Lines are encoded as UTF-8 directly into large arena byte arrays. Each line is referenced by an address and a
+ * length, so a line costs its encoded size plus {@value #LINE_OVERHEAD} bytes instead of a String object with a
+ * UTF-16 char array. The arenas are reused for the next run after a spill.
+ * <p>
+ * When the buffer is full, either by number of lines or by estimated memory use, the lines are sorted in unsigned
+ * byte order with a merge sort split over the fork/join pool and spilled as a run. A buffer is not thread safe and is
+ * meant to be owned by one thread.
+ */
+public class RunBuffer {
+
+    /**
+     * Memory used per line in addition to the encoded line: address, length and sort order.
+     */
+    static final int LINE_OVERHEAD = 20;
+
+    private static final int ARENA_SIZE = 1024 * 1024;
+
+    /**
+     * Ranges smaller than this are sorted without forking new tasks.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 8192;
+
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final ExternalSorter sorter;
+
+    private final int maxLines;
+
+    private final long maxBytes;
+
+    private final List<byte[]> arenas = new ArrayList<>();
+
+    private int arenaIndex = -1;
+
+    private int arenaPos;
+
+    private long[] addresses;
+
+    private int[] lengths;
+
+    private int count;
+
+    private long bytes;
+
+    private final List<String> commits = new ArrayList<>();
+
+    RunBuffer(ExternalSorter sorter, int maxLines, long maxBytes) {
+        this.sorter = sorter;
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+        allocateIndex();
+    }
+
+    /**
+     * Add a line.
+     * <p>
+     * @param line the line to add, without line terminator
+     * @throws IOException is thrown if the buffer was full and could not be spilled
+     */
+    public void add(CharSequence line) throws IOException {
+        if (count == addresses.length) {
+            int capacity = (int) Math.min(maxLines, 2L * addresses.length);
+            addresses = Arrays.copyOf(addresses, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+
+        // A char never needs more than three bytes, surrogate pairs need four bytes for two chars
+        byte[] arena = reserve(3 * line.length());
+        int length = encode(line, arena, arenaPos);
+        addresses[count] = (long) arenaIndex << 32 | arenaPos;
+        lengths[count] = length;
+        count++;
+        arenaPos += length;
+
+        bytes += LINE_OVERHEAD + length;
+        if (count == maxLines || bytes >= maxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Mark that the lines added so far complete a unit of work, for example all lines extracted from one file.
+     * <p>
+     * The name is handed to the sorter's commit listener when these lines have been written to run files.
+     * <p>
+     * @param name the name of the unit of work
+     */
+    public void commit(String name) {
+        commits.add(name);
+    }
+
+    /**
+     * Sort and spill the lines in the buffer.
+     * <p>
+     * @throws IOException is thrown if the run could not be written
+     */
+    public void flush() throws IOException {
+        if (count > 0) {
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            ForkJoinPool.commonPool().invoke(new SortTask(order, new int[count], 0, count));
+            sorter.spill(this, order);
+
+            count = 0;
+            bytes = 0;
+            arenaIndex = arenas.isEmpty() ? -1 : 0;
+            arenaPos = 0;
+        }
+        if (!commits.isEmpty()) {
+            sorter.committed(commits);
+            commits.clear();
+        }
+    }
+
+    /**
+     * Free the arenas and line index so that their memory is available to the merge.
+     * <p>
+     * The buffer must be flushed first. It can still be used afterwards, but then allocates new arenas.
+     * <p>
+     * @throws IllegalStateException is thrown if the buffer has lines which are not flushed
+     */
+    public void release() {
+        if (count > 0) {
+            throw new IllegalStateException("Run buffer must be flushed before it is released");
+        }
+        arenas.clear();
+        arenaIndex = -1;
+        arenaPos = 0;
+        allocateIndex();
+    }
+
+    private void allocateIndex() {
+        int initialCapacity = Math.min(maxLines, 1024);
+        addresses = new long[initialCapacity];
+        lengths = new int[initialCapacity];
+    }
+
+    /**
+     * Write the lines in the given order, each followed by '\n'.
+     * <p>
+     * @param out the stream to write to
+     * @param order the indexes of the lines to write
+     * @throws IOException is thrown if the lines could not be written
+     */
+    void writeLines(OutputStream out, int[] order) throws IOException {
+        for (int i : order) {
+            long address = addresses[i];
+            out.write(arenas.get((int) (address >>> 32)), (int) address, lengths[i]);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Get the first field of a line, the part before the first space.
+     * <p>
+     * @param index the index of the line
+     * @return the first field
+     */
+    String firstField(int index) {
+        long address = addresses[index];
+        byte[] arena = arenas.get((int) (address >>> 32));
+        int start = (int) address;
+        int end = start;
+        while (end < start + lengths[index] && arena[end] != ' ') {
+            end++;
+        }
+        return new String(arena, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get an arena with room for a number of bytes at {@code arenaPos}, moving to the next arena if needed.
+     */
+    private byte[] reserve(int size) {
+        if (arenaIndex >= 0 && arenas.get(arenaIndex).length - arenaPos >= size) {
+            return arenas.get(arenaIndex);
+        }
+
+        arenaIndex++;
+        arenaPos = 0;
+        if (arenaIndex < arenas.size() && arenas.get(arenaIndex).length >= size) {
+            return arenas.get(arenaIndex);
+        }
+        byte[] arena = new byte[Math.max(ARENA_SIZE, size)];
+        if (arenaIndex < arenas.size()) {
+            arenas.set(arenaIndex, arena);
+        } else {
+            arenas.add(arena);
+        }
+        return arena;
+    }
+
+    /**
+     * Compare two lines in unsigned byte order.
+     */
+    private int compare(int a, int b) {
+        long addressA = addresses[a];
+        long addressB = addresses[b];
+        return compareBytes(arenas.get((int) (addressA >>> 32)), (int) addressA, lengths[a],
+                arenas.get((int) (addressB >>> 32)), (int) addressB, lengths[b]);
+    }
+
+    /**
+     * Compare two byte ranges in unsigned byte order. A range which is a prefix of the other sorts first.
+     * <p>
+     * For UTF-8 this is the same as code point order, which for CDXJ lines is SURT order.
+     * <p>
+     * @return a negative number, zero or a positive number as the first range is less than, equal to or greater
+     * than the second
+     */
+    static int compareBytes(byte[] a, int offsetA, int lengthA, byte[] b, int offsetB, int lengthB) {
+        int n = Math.min(lengthA, lengthB);
+        for (int i = 0; i < n; i++) {
+            int c = (a[offsetA + i] & 0xff) - (b[offsetB + i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    /**
+     * Compare two strings in the order of their UTF-8 encodings, the order lines are sorted in.
+     * <p>
+     * This is code point order. It differs from {@link String#compareTo(String)} for chars above U+FFFF, which are
+     * stored as surrogates below U+E000, but are encoded after all chars up to U+FFFF.
+     * <p>
+     * @param a the first string
+     * @param b the second string
+     * @return a negative number, zero or a positive number as the first string is less than, equal to or greater
+     * than the second
+     */
+    public static int compareUtf8(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        for (int i = 0; i < n; i++) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(i);
+            if (ca != cb) {
+                return codePointOrder(ca) - codePointOrder(cb);
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    /**
+     * Move surrogates after the other chars, keeping the order within each group.
+     */
+    private static int codePointOrder(char c) {
+        if (c >= 0xe000) {
+            return c - 0x800;
+        }
+        if (c >= 0xd800) {
+            return c + 0x2000;
+        }
+        return c;
+    }
+
+    /**
+     * Encode chars as UTF-8. Unpaired surrogates are replaced with '?' like {@link String#getBytes}.
+     * <p>
+     * @return the number of bytes written
+     */
+    static int encode(CharSequence s, byte[] dst, int pos) {
+        int start = pos;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xc0 | c >> 6);
+                dst[pos++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst[pos++] = (byte) (0xf0 | cp >> 18);
+                dst[pos++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                dst[pos++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                dst[pos++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                dst[pos++] = '?';
+            } else {
+                dst[pos++] = (byte) (0xe0 | c >> 12);
+                dst[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+                dst[pos++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return pos - start;
+    }
+
+    /**
+     * Merge sort of line indexes. Large ranges are split into tasks sorted in parallel.
+     */
+    private final class SortTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] order;
+
+        private final int[] tmp;
+
+        private final int from;
+
+        private final int to;
+
+        SortTask(int[] order, int[] tmp, int from, int to) {
+            this.order = order;
+            this.tmp = tmp;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                sort(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SortTask(order, tmp, from, mid), new SortTask(order, tmp, mid, to));
+                merge(from, mid, to);
+            }
+        }
+
+        private void sort(int lo, int hi) {
+            if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+                for (int i = lo + 1; i < hi; i++) {
+                    int value = order[i];
+                    int j = i - 1;
+                    while (j >= lo && compare(order[j], value) > 0) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = value;
+                }
+            } else {
+                int mid = (lo + hi) >>> 1;
+                sort(lo, mid);
+                sort(mid, hi);
+                merge(lo, mid, hi);
+            }
+        }
+
+        private void merge(int lo, int mid, int hi) {
+            if (compare(order[mid - 1], order[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, lo, tmp, lo, hi - lo);
+            int i = lo;
+            int j = mid;
+            for (int k = lo; k < hi; k++) {
+                if (j >= hi || (i < mid && compare(tmp[i], tmp[j]) <= 0)) {
+                    order[k] = tmp[i++];
+                } else {
+                    order[k] = tmp[j++];
+                }
+            }
+        }
+
+    }
+
+}
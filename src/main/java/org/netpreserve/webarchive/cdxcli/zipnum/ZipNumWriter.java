@@ -0,0 +1,396 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.zipnum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A Writer storing sorted CDX lines in the ZipNum layout.
+ * <p>
+ * Lines are packed into gzip members of a fixed number of lines. For an output named {@code <out>} the following
+ * files are written:
+ * <ul>
+ * <li>{@code <out>-NN.gz} the shards, each a sequence of gzip blocks covering a range of keys
+ * <li>{@code <out>.idx} the summary with one line per block: the key of the first line in the block, the shard name,
+ * the offset and the length of the block
+ * <li>{@code <out>.loc} one line per shard with the shard name and its path
+ * </ul>
+ * The key of a line is the part before the second space, i.e. the SURT and the timestamp. A lookup finds the last
+ * block with a key not after the searched key by a binary search in the summary, and only has to inflate that block.
+ * <p>
+ * Blocks are written to the first shard while the lines arrive. When the writer is closed and more than one shard is
+ * wanted, the blocks are divided into shards of about the same size by copying compressed byte ranges, which is
+ * cheap compared to the sort.
+ * <p>
+ * Characters are encoded to UTF-8 into a reusable line buffer as they are written, and all blocks are compressed by
+ * the same deflater, which is reset for each block.
+ */
+public class ZipNumWriter extends Writer {
+
+    private final Path outFile;
+
+    private final int linesPerBlock;
+
+    private final int shardCount;
+
+    private final Path firstShard;
+
+    private final OutputStream data;
+
+    private final List<Block> blocks = new ArrayList<>();
+
+    /**
+     * The header of each gzip block: no file name, no modification time, OS unknown as GZIPOutputStream writes it.
+     */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] deflateBuf = new byte[64 * 1024];
+
+    private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(256 * 1024);
+
+    private byte[] line = new byte[1024];
+
+    private int lineLength;
+
+    /**
+     * A high surrogate waiting for the low surrogate in the next write.
+     */
+    private char highSurrogate;
+
+    private long blockInputLength;
+
+    private String blockKey;
+
+    private int blockLines;
+
+    private long dataLength;
+
+    private boolean closed;
+
+    /**
+     * Create a writer.
+     * <p>
+     * @param outFile the path the file names of the summary and the shards are based on
+     * @param linesPerBlock the number of lines in each gzip block
+     * @param shardCount the number of shards
+     * @throws IOException is thrown if one of the files already exists or could not be created
+     */
+    public ZipNumWriter(Path outFile, int linesPerBlock, int shardCount) throws IOException {
+        if (linesPerBlock < 1 || shardCount < 1) {
+            throw new IllegalArgumentException("Lines per block and number of shards must be at least one");
+        }
+        this.outFile = outFile;
+        this.linesPerBlock = linesPerBlock;
+        this.shardCount = shardCount;
+
+        for (Path path : new Path[]{summaryFile(), locationFile()}) {
+            if (Files.exists(path)) {
+                throw new IOException(path + " already exists");
+            }
+        }
+        for (int i = 1; i < shardCount; i++) {
+            if (Files.exists(shardFile(i))) {
+                throw new IOException(shardFile(i) + " already exists");
+            }
+        }
+        this.firstShard = shardFile(0);
+        this.data = Files.newOutputStream(firstShard, StandardOpenOption.CREATE_NEW);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            encode(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            encode(str.charAt(i));
+        }
+    }
+
+    /**
+     * Encode a character into the line buffer, or write the line at a newline.
+     * <p>
+     * @param c the character
+     * @throws IOException is thrown if a block could not be written
+     */
+    private void encode(char c) throws IOException {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int cp = Character.toCodePoint(high, c);
+                ensureCapacity(4);
+                line[lineLength++] = (byte) (0xf0 | (cp >> 18));
+                line[lineLength++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                line[lineLength++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                line[lineLength++] = (byte) (0x80 | (cp & 0x3f));
+                return;
+            }
+            // Unpaired surrogate, replaced like the UTF-8 encoder does
+            ensureCapacity(1);
+            line[lineLength++] = '?';
+        }
+
+        ensureCapacity(3);
+        if (c == '\n') {
+            writeLine();
+        } else if (c < 0x80) {
+            line[lineLength++] = (byte) c;
+        } else if (c < 0x800) {
+            line[lineLength++] = (byte) (0xc0 | (c >> 6));
+            line[lineLength++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            line[lineLength++] = '?';
+        } else {
+            line[lineLength++] = (byte) (0xe0 | (c >> 12));
+            line[lineLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            line[lineLength++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (lineLength + additional > line.length) {
+            line = Arrays.copyOf(line, Math.max(lineLength + additional, line.length * 2));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Blocks are written when full, flushing a partial block would change the layout
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (highSurrogate != 0) {
+                encode('\n');
+            }
+            if (lineLength > 0) {
+                writeLine();
+            }
+            if (blockLines > 0) {
+                finishBlock();
+            }
+        } finally {
+            deflater.end();
+            data.close();
+        }
+        writeShards();
+    }
+
+    /**
+     * Get the path of the summary file.
+     * <p>
+     * @return the summary file
+     */
+    public Path summaryFile() {
+        return outFile.resolveSibling(outFile.getFileName() + ".idx");
+    }
+
+    /**
+     * Get the path of the file listing the location of each shard.
+     * <p>
+     * @return the location file
+     */
+    public Path locationFile() {
+        return outFile.resolveSibling(outFile.getFileName() + ".loc");
+    }
+
+    /**
+     * Get the path of a shard.
+     * <p>
+     * @param shard the number of the shard
+     * @return the shard file
+     */
+    public Path shardFile(int shard) {
+        return outFile.resolveSibling(shardName(shard) + ".gz");
+    }
+
+    private String shardName(int shard) {
+        return String.format("%s-%02d", outFile.getFileName(), shard);
+    }
+
+    private void writeLine() throws IOException {
+        if (lineLength == 0) {
+            return;
+        }
+        if (blockLines == 0) {
+            blockKey = key(line, lineLength);
+            blockBytes.reset();
+            blockBytes.write(GZIP_HEADER);
+        }
+        line[lineLength++] = '\n';
+        crc.update(line, 0, lineLength);
+        blockInputLength += lineLength;
+        deflater.setInput(line, 0, lineLength);
+        while (!deflater.needsInput()) {
+            int n = deflater.deflate(deflateBuf);
+            blockBytes.write(deflateBuf, 0, n);
+        }
+        lineLength = 0;
+        if (++blockLines == linesPerBlock) {
+            finishBlock();
+        }
+    }
+
+    private void finishBlock() throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(deflateBuf);
+            blockBytes.write(deflateBuf, 0, n);
+        }
+        writeInt((int) crc.getValue());
+        writeInt((int) blockInputLength);
+        deflater.reset();
+        crc.reset();
+        blockInputLength = 0;
+
+        blockBytes.writeTo(data);
+        blocks.add(new Block(blockKey, dataLength, blockBytes.size()));
+        dataLength += blockBytes.size();
+        blockLines = 0;
+    }
+
+    /**
+     * Write a little endian int to the current block, as used in the gzip trailer.
+     * <p>
+     * @param value the value
+     */
+    private void writeInt(int value) {
+        blockBytes.write(value & 0xff);
+        blockBytes.write((value >> 8) & 0xff);
+        blockBytes.write((value >> 16) & 0xff);
+        blockBytes.write((value >> 24) & 0xff);
+    }
+
+    /**
+     * Get the key of a line, the part before the second space.
+     * <p>
+     * @param line the UTF-8 encoded line
+     * @param length the length of the line
+     * @return the key
+     */
+    static String key(byte[] line, int length) {
+        int spaces = 0;
+        for (int i = 0; i < length; i++) {
+            if (line[i] == ' ' && ++spaces == 2) {
+                return new String(line, 0, i, StandardCharsets.UTF_8);
+            }
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Divide the blocks into shards and write the summary and location files.
+     * <p>
+     * @throws IOException is thrown if the files could not be written
+     */
+    private void writeShards() throws IOException {
+        int[] firstBlock = new int[shardCount + 1];
+        int block = 0;
+        long offset = 0;
+        for (int shard = 0; shard < shardCount; shard++) {
+            firstBlock[shard] = block;
+            long shardEnd = dataLength * (shard + 1) / shardCount;
+            while (block < blocks.size() && (offset < shardEnd || shard == shardCount - 1)) {
+                offset += blocks.get(block).length;
+                block++;
+            }
+        }
+        firstBlock[shardCount] = blocks.size();
+
+        try (FileChannel source = FileChannel.open(firstShard, StandardOpenOption.READ, StandardOpenOption.WRITE);) {
+            for (int shard = 1; shard < shardCount; shard++) {
+                long start = shardStart(firstBlock[shard]);
+                long end = shardStart(firstBlock[shard + 1]);
+                try (FileChannel target = FileChannel.open(shardFile(shard), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);) {
+                    long position = start;
+                    while (position < end) {
+                        position += source.transferTo(position, end - position, target);
+                    }
+                }
+            }
+            source.truncate(shardStart(firstBlock[1]));
+        }
+
+        try (Writer summary = Files.newBufferedWriter(summaryFile(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE_NEW);
+                Writer location = Files.newBufferedWriter(locationFile(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE_NEW);) {
+            for (int shard = 0; shard < shardCount; shard++) {
+                long shardStart = shardStart(firstBlock[shard]);
+                for (int i = firstBlock[shard]; i < firstBlock[shard + 1]; i++) {
+                    Block b = blocks.get(i);
+                    summary.write(b.key + '\t' + shardName(shard) + '\t' + (b.offset - shardStart) + '\t' + b.length
+                            + '\n');
+                }
+                location.write(shardName(shard) + '\t' + shardFile(shard) + '\n');
+            }
+        }
+    }
+
+    private long shardStart(int block) {
+        return block < blocks.size() ? blocks.get(block).offset : dataLength;
+    }
+
+    /**
+     * The position of a gzip block.
+     */
+    private static final class Block {
+
+        private final String key;
+
+        private final long offset;
+
+        private final long length;
+
+        Block(String key, long offset, long length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+}
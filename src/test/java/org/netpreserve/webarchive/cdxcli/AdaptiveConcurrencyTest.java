@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the decisions of the adaptive concurrency controller.
+ */
+public class AdaptiveConcurrencyTest {
+
+    private static AdaptiveConcurrency create(int initialWorkers) {
+        return new AdaptiveConcurrency(initialWorkers, 8, () -> 0L, 1000L,
+                new PrintStream(new ByteArrayOutputStream()));
+    }
+
+    private static void acquire(AdaptiveConcurrency adaptive, int workers) throws InterruptedException {
+        for (int i = 0; i < workers; i++) {
+            adaptive.acquire();
+        }
+    }
+
+    @Test
+    public void firstMeasurementRaisesLimit() throws InterruptedException {
+        AdaptiveConcurrency adaptive = create(4);
+        acquire(adaptive, 4);
+
+        adaptive.adjust(100.0, 0.5, 4.0);
+        assertThat(adaptive.getLimit()).isEqualTo(5);
+    }
+
+    @Test
+    public void samplesAreSkippedUntilWorkersDrainToLimit() throws InterruptedException {
+        AdaptiveConcurrency adaptive = create(4);
+        acquire(adaptive, 4);
+        adaptive.adjust(100.0, 0.5, 4.0);
+        acquire(adaptive, 1);
+
+        // Throughput dropped with five workers, so the limit is lowered while five are still running
+        adaptive.adjust(50.0, 0.5, 5.0);
+        assertThat(adaptive.getLimit()).isEqualTo(4);
+
+        // Measured with five workers, says nothing about four
+        adaptive.adjust(200.0, 0.5, 5.0);
+        assertThat(adaptive.getLimit()).isEqualTo(4);
+
+        // Partly measured with five workers
+        adaptive.release();
+        adaptive.adjust(200.0, 0.5, 4.5);
+        assertThat(adaptive.getLimit()).isEqualTo(4);
+
+        // A whole interval at the new limit, throughput increased, so keep going down
+        adaptive.adjust(200.0, 0.5, 4.0);
+        assertThat(adaptive.getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    public void sampleNotAtLimitIsSkipped() throws InterruptedException {
+        AdaptiveConcurrency adaptive = create(4);
+        acquire(adaptive, 4);
+
+        adaptive.adjust(100.0, 0.5, 2.0);
+        assertThat(adaptive.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    public void limitIsNotRaisedWhenCpuIsSaturated() throws InterruptedException {
+        AdaptiveConcurrency adaptive = create(4);
+        acquire(adaptive, 4);
+
+        adaptive.adjust(100.0, 0.95, 4.0);
+        assertThat(adaptive.getLimit()).isEqualTo(4);
+    }
+
+}
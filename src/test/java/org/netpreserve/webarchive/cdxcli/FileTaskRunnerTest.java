@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for FileTaskRunner.
+ */
+public class FileTaskRunnerTest {
+
+    private static final List<String> INPUTS = Arrays.asList("a", "b", "c", "d", "e", "f");
+
+    @Test
+    public void failedFileDoesNotStopTheOthers() {
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        FileTaskRunner runner = new FileTaskRunner(3, false);
+
+        assertThatThrownBy(() -> runner.run(INPUTS, (input) -> {
+            if (input.equals("c")) {
+                throw new IOException("broken");
+            }
+            done.add(input);
+        })).isInstanceOf(UncheckedIOException.class).hasMessageContaining("1 of 6");
+
+        assertThat(done).containsOnly("a", "b", "d", "e", "f");
+    }
+
+    @Test
+    public void errorInPoolThreadIsRethrown() {
+        FileTaskRunner runner = new FileTaskRunner(3, false);
+
+        assertThatThrownBy(() -> runner.run(INPUTS, (input) -> {
+            if (input.equals("d")) {
+                throw new StackOverflowError("deep");
+            }
+        })).isInstanceOf(StackOverflowError.class).hasMessage("deep");
+    }
+
+    @Test
+    public void errorInCallingThreadIsRethrown() {
+        FileTaskRunner runner = new FileTaskRunner(1, false);
+
+        assertThatThrownBy(() -> runner.run(INPUTS, (input) -> {
+            throw new AssertionError("failed");
+        })).isInstanceOf(AssertionError.class).hasMessage("failed");
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Times a piece of work for the benchmarks in this package.
+ * <p>
+ * The benchmarks are run by hand from their main methods, they are not part of the unit tests. E.g.:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.netpreserve.webarchive.cdxcli.cmdextract.TimestampCacheBenchmark
+ * </pre>
+ * The work is run a number of times to let the JIT compile it before the measured rounds. The median time and the
+ * median number of bytes allocated by the measuring thread over the measured rounds are reported.
+ */
+final class Benchmark {
+
+    /**
+     * Work to measure.
+     */
+    interface Task {
+
+        /**
+         * Do the work once.
+         * <p>
+         * @return a value computed from the work, so that the JIT can not leave the work out
+         * @throws Exception is thrown if the work failed
+         */
+        long run() throws Exception;
+
+    }
+
+    /**
+     * The result of measuring a task.
+     */
+    static final class Result {
+
+        final long nanos;
+
+        final long allocatedBytes;
+
+        Result(long nanos, long allocatedBytes) {
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+    }
+
+    /**
+     * Written by every round so that the values returned by tasks are used.
+     */
+    static volatile long sink;
+
+    private Benchmark() {
+    }
+
+    /**
+     * Measure a task.
+     * <p>
+     * @param warmups the number of unmeasured rounds
+     * @param rounds the number of measured rounds
+     * @param task the task
+     * @return the median time and allocation of the measured rounds. The allocation is -1 if the JVM can not count
+     * allocated bytes.
+     * @throws Exception is thrown if the task failed
+     */
+    static Result measure(int warmups, int rounds, Task task) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            sink += task.run();
+        }
+        long[] nanos = new long[rounds];
+        long[] allocated = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            sink += task.run();
+            nanos[i] = System.nanoTime() - start;
+            allocated[i] = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+        }
+        return new Result(median(nanos), median(allocated));
+    }
+
+    /**
+     * Print a result.
+     * <p>
+     * @param out the stream to print to
+     * @param name the name of the measured task
+     * @param result the result
+     * @param units the number of units, e.g. records, handled by one round
+     * @param unitName the name of a unit
+     */
+    static void report(PrintStream out, String name, Result result, long units, String unitName) {
+        out.printf("%-24s %10.2f ms %10.1f %s/s", name, result.nanos / 1e6, units * 1e9 / result.nanos, unitName);
+        if (result.allocatedBytes >= 0) {
+            out.printf(" %14d bytes allocated %10.1f bytes/%s", result.allocatedBytes,
+                    (double) result.allocatedBytes / units, unitName);
+        }
+        out.println();
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread so far.
+     * <p>
+     * @return the number of bytes or -1 if the JVM can not count them
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+import org.junit.Test;
+import org.netpreserve.commons.cdx.FieldName;
+import org.netpreserve.commons.cdx.cdxrecord.CdxLineFormat;
+import org.netpreserve.commons.cdx.cdxrecord.UnconnectedCdxRecord;
+import org.netpreserve.commons.cdx.json.NumberValue;
+import org.netpreserve.commons.cdx.json.StringValue;
+import org.netpreserve.commons.cdx.json.TimestampValue;
+import org.netpreserve.commons.cdx.json.UriValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that failures of the writer thread reach the producers.
+ */
+public class ConcurrentOutputTest {
+
+    /**
+     * Enough records to fill the queue of pending chunks many times over.
+     */
+    private static final int MAX_RECORDS = 10 * ConcurrentOutput.MAX_PENDING_CHUNKS * ConcurrentOutput.CHUNK_SIZE;
+
+    @Test
+    public void runtimeExceptionFromWriterIsThrownFromWriteAndClose() throws IOException {
+        IllegalStateException writerFailure = new IllegalStateException("writer failed");
+        ConcurrentOutput out = new ConcurrentOutput(new FailingWriter(writerFailure), CdxLineFormat.CDX11LINE);
+        UnconnectedCdxRecord record = record();
+
+        try {
+            for (int i = 0; i < MAX_RECORDS; i++) {
+                out.write(record);
+            }
+            fail("Writer failure was not thrown from write");
+        } catch (IllegalStateException ex) {
+            assertThat(ex).isSameAs(writerFailure);
+        }
+
+        try {
+            out.close();
+            fail("Writer failure was not thrown from close");
+        } catch (IllegalStateException ex) {
+            assertThat(ex).isSameAs(writerFailure);
+        }
+    }
+
+    @Test
+    public void ioExceptionFromWriterIsThrownFromWriteAndClose() {
+        IOException writerFailure = new IOException("disk full");
+        ConcurrentOutput out = new ConcurrentOutput(new FailingWriter(writerFailure), CdxLineFormat.CDX11LINE);
+        UnconnectedCdxRecord record = record();
+
+        try {
+            for (int i = 0; i < MAX_RECORDS; i++) {
+                out.write(record);
+            }
+            fail("Writer failure was not thrown from write");
+        } catch (UncheckedIOException ex) {
+            assertThat(ex.getCause()).isSameAs(writerFailure);
+        }
+
+        try {
+            out.close();
+            fail("Writer failure was not thrown from close");
+        } catch (IOException ex) {
+            assertThat(ex).isSameAs(writerFailure);
+        }
+    }
+
+    private static UnconnectedCdxRecord record() {
+        UnconnectedCdxRecord record = new UnconnectedCdxRecord();
+        record.set(FieldName.FILENAME, StringValue.valueOf("test.warc"));
+        record.set(FieldName.TIMESTAMP, TimestampValue.valueOf("2016-01-02T03:04:05Z"));
+        record.set(FieldName.ORIGINAL_URI, UriValue.valueOf("http://www.example.com/"));
+        record.set(FieldName.RECORD_TYPE, StringValue.valueOf("response"));
+        record.set(FieldName.OFFSET, NumberValue.valueOf(0L));
+        record.set(FieldName.CONTENT_TYPE, StringValue.valueOf("text/html"));
+        record.set(FieldName.CONTENT_LENGTH, NumberValue.valueOf(100L));
+        record.set(FieldName.PAYLOAD_LENGTH, NumberValue.valueOf(50L));
+        return record;
+    }
+
+    /**
+     * A writer which fails on every write.
+     */
+    private static final class FailingWriter extends Writer {
+
+        private final Exception failure;
+
+        FailingWriter(Exception failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw (RuntimeException) failure;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
+import org.netpreserve.webarchive.cdxcli.MainParameters;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for resuming a sorted extraction from a checkpoint.
+ */
+public class ExtractionCheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String one;
+
+    private String two;
+
+    private String three;
+
+    @Before
+    public void createFiles() throws IOException {
+        one = warc("a", "one.warc", 30);
+        two = warc("a", "two.warc", 40);
+        three = warc("b", "three.warc", 20);
+    }
+
+    @Test
+    public void resumeAfterKillGivesSameOutputAsUninterruptedRun() throws Exception {
+        Path expected = folder.getRoot().toPath().resolve("expected.cdxj");
+        command(expected, one, two, three).exec(new MainParameters());
+
+        Path outFile = folder.getRoot().toPath().resolve("out.cdxj");
+        CommandExtract killed = command(outFile, one, two, three);
+        killed.checkpointInterval = 1;
+        killed.formats = Arrays.asList(killed.format);
+        killed.inputs = Arrays.asList(one, two, three);
+        assertThat(killed.prepareCheckpoint(outFile)).containsExactly(one, two, three);
+
+        ParallelSortingOutput out = (ParallelSortingOutput) killed.createOutput(outFile,
+                new CdxRecordFormatter(killed.format));
+        killed.extract(new File(one), out);
+        killed.checkpoint.fileDone(one, out);
+        // The records of the file in progress reach the runs of the checkpoint as well
+        killed.extract(new File(two), out);
+        out.flushAll();
+        killed.checkpoint.save();
+        // The process dies here: nothing is closed and the checkpoint is left as it is
+        killed.cdxExtractor.shutdown();
+
+        CommandExtract resumed = command(outFile, one, two, three);
+        resumed.resume = true;
+        resumed.exec(new MainParameters());
+
+        assertThat(resumed.inputs).containsOnly(two, three);
+        assertThat(Files.readAllLines(outFile)).isEqualTo(Files.readAllLines(expected));
+        assertThat(outFile.resolveSibling(outFile.getFileName() + ExtractionCheckpoint.SUFFIX)).doesNotExist();
+    }
+
+    @Test
+    public void inputsWithSameNameAreRejected() throws IOException {
+        String sameName = warc("b", "one.warc", 10);
+        Path outFile = folder.getRoot().toPath().resolve("out.cdxj");
+        CommandExtract command = command(outFile, one, sameName);
+        command.checkpointInterval = 1;
+        command.inputs = Arrays.asList(one, sameName);
+
+        assertThatThrownBy(() -> command.prepareCheckpoint(outFile)).isInstanceOf(IOException.class)
+                .hasMessageContaining("same file name");
+        assertThat(outFile.resolveSibling(outFile.getFileName() + ExtractionCheckpoint.SUFFIX)).doesNotExist();
+    }
+
+    private CommandExtract command(Path outFile, String... inputs) {
+        CommandExtract command = new CommandExtract();
+        command.inputFileNames = new ArrayList<>(Arrays.asList(inputs));
+        command.outputFileName = outFile.toString();
+        command.sort = true;
+        command.concatenate = true;
+        command.threads = 2;
+        command.sortMemory = 16L * 1024 * 1024;
+        return command;
+    }
+
+    private String warc(String dir, String name, int count) throws IOException {
+        File parent = new File(folder.getRoot(), dir);
+        parent.mkdirs();
+        return TestWarcFiles.writeWarc(new File(parent, name), TestWarcFiles.records(count)).getPath();
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Compares reading many tiny gzip members with and without the inflater and buffers kept by the thread.
+ * <p>
+ * The corpus is a WARC file with one gzip member per record, held in memory so that only inflating is measured.
+ * Without pooling, every member is read by a new reader with its own inflater and buffers, like JWAT's GzipReader
+ * creates them for every entry. The thread's resources are held by another open reader meanwhile, so the per member
+ * readers can not use them.
+ * <p>
+ * The allocated bytes only count the Java heap. The native memory of an inflater is not included.
+ * <p>
+ * Arguments: [number of response records, default 10000]
+ */
+public final class GzipMemberBenchmark {
+
+    private GzipMemberBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        File warc = File.createTempFile("gzip-member-benchmark", ".warc.gz");
+        byte[] file;
+        try {
+            TestWarcFiles.writeWarcGz(warc, TestWarcFiles.records(count));
+            file = Files.readAllBytes(warc.toPath());
+        } finally {
+            Files.delete(warc.toPath());
+        }
+        long[] members = members(file);
+        System.out.printf("%d bytes, %d members%n", file.length, members.length / 2);
+
+        Benchmark.report(System.out, "pooled", Benchmark.measure(10, 10, () -> readPooled(file)),
+                members.length / 2, "member");
+        Benchmark.report(System.out, "not pooled", Benchmark.measure(10, 10, () -> readNotPooled(file, members)),
+                members.length / 2, "member");
+    }
+
+    private static long readPooled(byte[] file) throws IOException {
+        byte[] buf = new byte[8192];
+        long total = 0;
+        try (GzipMemberReader reader = new GzipMemberReader(new ByteArrayInputStream(file), 0L);) {
+            while (reader.nextMember()) {
+                total += drain(reader.getInputStream(), buf);
+            }
+        }
+        return total;
+    }
+
+    private static long readNotPooled(byte[] file, long[] members) throws IOException {
+        byte[] buf = new byte[8192];
+        long total = 0;
+        try (GzipMemberReader holder = new GzipMemberReader(new ByteArrayInputStream(new byte[0]), 0L);) {
+            for (int i = 0; i < members.length; i += 2) {
+                int start = (int) members[i];
+                InputStream member = new ByteArrayInputStream(file, start, (int) members[i + 1]);
+                try (GzipMemberReader reader = new GzipMemberReader(member, start);) {
+                    if (reader.nextMember()) {
+                        total += drain(reader.getInputStream(), buf);
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Find the members of a file.
+     * <p>
+     * @param file the file
+     * @return the start offset and compressed length of each member, one after the other
+     * @throws IOException is thrown if the file is not gzip compressed
+     */
+    private static long[] members(byte[] file) throws IOException {
+        long[] members = new long[1024];
+        int n = 0;
+        try (GzipMemberReader reader = new GzipMemberReader(new ByteArrayInputStream(file), 0L);) {
+            while (reader.nextMember()) {
+                if (n == members.length) {
+                    members = Arrays.copyOf(members, 2 * n);
+                }
+                members[n++] = reader.getStartOffset();
+                reader.closeMember();
+                members[n++] = reader.getConsumed();
+            }
+        }
+        return Arrays.copyOf(members, n);
+    }
+
+    private static long drain(InputStream in, byte[] buf) throws IOException {
+        long total = 0;
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            total += n;
+        }
+        in.close();
+        return total;
+    }
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests that members read by the reader are the same as the ones read by {@link GZIPInputStream}.
+ */
+public class GzipMemberReaderTest {
+
+    private static final int FHCRC = 0x02;
+
+    private static final int FEXTRA = 0x04;
+
+    private static final int FNAME = 0x08;
+
+    private static final int FCOMMENT = 0x10;
+
+    @Test
+    public void membersAreSameAsGzipInputStream() throws IOException {
+        List<byte[]> members = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 50; i++) {
+            // Sizes around the reader's buffer size make members span buffer refills
+            byte[] data = new byte[random.nextInt(3) == 0 ? random.nextInt(200000) : random.nextInt(1000)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : 'a' + j % 7);
+            }
+            members.add(TestWarcFiles.gzip(data));
+        }
+        byte[] file = concat(members);
+
+        List<byte[]> read = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        List<Long> consumed = new ArrayList<>();
+        try (GzipMemberReader reader = new GzipMemberReader(new ByteArrayInputStream(file), 1000L);) {
+            while (reader.nextMember()) {
+                offsets.add(reader.getStartOffset());
+                read.add(readAll(reader.getInputStream()));
+                consumed.add(reader.getConsumed());
+            }
+        }
+
+        assertThat(read).hasSize(members.size());
+        long offset = 1000L;
+        for (int i = 0; i < members.size(); i++) {
+            assertThat(offsets.get(i)).isEqualTo(offset);
+            assertThat(consumed.get(i)).isEqualTo((long) members.get(i).length);
+            assertThat(read.get(i)).isEqualTo(gunzip(members.get(i)));
+            offset += members.get(i).length;
+        }
+        assertThat(concat(read)).isEqualTo(gunzip(file));
+    }
+
+    @Test
+    public void optionalHeaderFieldsAreSkipped() throws IOException {
+        byte[] data = "optional header fields".getBytes("US-ASCII");
+        for (int flags : new int[]{FEXTRA, FNAME, FCOMMENT, FHCRC, FEXTRA | FNAME | FCOMMENT | FHCRC}) {
+            byte[] member = member(data, flags);
+            assertThat(gunzip(member)).isEqualTo(data);
+            try (GzipMemberReader reader = new GzipMemberReader(new ByteArrayInputStream(member), 0L);) {
+                assertThat(reader.nextMember()).isTrue();
+                assertThat(readAll(reader.getInputStream())).isEqualTo(data);
+                assertThat(reader.getConsumed()).isEqualTo((long) member.length);
+                assertThat(reader.nextMember()).isFalse();
+            }
+        }
+    }
+
+    @Test
+    public void unreadPartOfMemberIsSkipped() throws IOException {
+        byte[] first = new byte[100000];
+        new Random(2).nextBytes(first);
+        byte[] second = "second".getBytes("US-ASCII");
+        byte[] file = concat(TestWarcFiles.gzip(first), TestWarcFiles.gzip(second));
+
+        try (GzipMemberReader reader = new GzipMemberReader(new ByteArrayInputStream(file), 0L);) {
+            assertThat(reader.nextMember()).isTrue();
+            assertThat(reader.getInputStream().read()).isEqualTo(first[0] & 0xff);
+            assertThat(reader.nextMember()).isTrue();
+            assertThat(reader.getStartOffset()).isEqualTo((long) TestWarcFiles.gzip(first).length);
+            assertThat(readAll(reader.getInputStream())).isEqualTo(second);
+        }
+    }
+
+    @Test
+    public void trailingGarbageIsIgnored() throws IOException {
+        byte[] data = "data".getBytes("US-ASCII");
+        for (byte[] garbage : new byte[][]{{0x1f}, {0x1f, (byte) 0x8b}, {0, 0, 0, 0}, new byte[100]}) {
+            byte[] file = concat(TestWarcFiles.gzip(data), TestWarcFiles.gzip(data), garbage);
+            int count = 0;
+            try (GzipMemberReader reader = new GzipMemberReader(new ByteArrayInputStream(file), 0L);) {
+                reader.setReportErrors(false);
+                while (reader.nextMember()) {
+                    assertThat(readAll(reader.getInputStream())).isEqualTo(data);
+                    count++;
+                }
+                assertThat(reader.nextMember()).isFalse();
+            }
+            assertThat(count).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void invalidFirstMemberFails() throws IOException {
+        try (GzipMemberReader reader = new GzipMemberReader(new ByteArrayInputStream(new byte[100]), 0L);) {
+            assertThatThrownBy(() -> reader.nextMember()).isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    public void nestedReadersOnOneThread() throws IOException {
+        byte[] a = "first reader".getBytes("US-ASCII");
+        byte[] b = "second reader".getBytes("US-ASCII");
+        byte[] fileA = concat(TestWarcFiles.gzip(a), TestWarcFiles.gzip(a));
+        byte[] fileB = concat(TestWarcFiles.gzip(b), TestWarcFiles.gzip(b));
+
+        try (GzipMemberReader readerA = new GzipMemberReader(new ByteArrayInputStream(fileA), 0L);) {
+            assertThat(readerA.nextMember()).isTrue();
+            try (GzipMemberReader readerB = new GzipMemberReader(new ByteArrayInputStream(fileB), 0L);) {
+                while (readerB.nextMember()) {
+                    assertThat(readAll(readerB.getInputStream())).isEqualTo(b);
+                }
+            }
+            assertThat(readAll(readerA.getInputStream())).isEqualTo(a);
+            assertThat(readerA.nextMember()).isTrue();
+            assertThat(readAll(readerA.getInputStream())).isEqualTo(a);
+        }
+
+        // The thread's resources are free again
+        try (GzipMemberReader reader = new GzipMemberReader(new ByteArrayInputStream(fileB), 0L);) {
+            assertThat(reader.nextMember()).isTrue();
+            assertThat(readAll(reader.getInputStream())).isEqualTo(b);
+        }
+    }
+
+    /**
+     * Create a gzip member with optional header fields.
+     */
+    private static byte[] member(byte[] data, int flags) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x1f);
+        out.write(0x8b);
+        out.write(8);
+        out.write(flags);
+        for (int i = 0; i < 6; i++) {
+            out.write(0);
+        }
+        if ((flags & FEXTRA) != 0) {
+            out.write(3);
+            out.write(0);
+            out.write(1);
+            out.write(2);
+            out.write(3);
+        }
+        if ((flags & FNAME) != 0) {
+            writeZeroTerminated(out, "name.warc");
+        }
+        if ((flags & FCOMMENT) != 0) {
+            writeZeroTerminated(out, "comment");
+        }
+        if ((flags & FHCRC) != 0) {
+            CRC32 headerCrc = new CRC32();
+            headerCrc.update(out.toByteArray());
+            out.write((int) headerCrc.getValue());
+            out.write((int) headerCrc.getValue() >> 8);
+        }
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buf = new byte[1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        deflater.end();
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        writeInt(out, crc.getValue());
+        writeInt(out, data.length);
+        return out.toByteArray();
+    }
+
+    private static void writeZeroTerminated(ByteArrayOutputStream out, String value) {
+        for (char c : value.toCharArray()) {
+            out.write(c);
+        }
+        out.write(0);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (value >> (8 * i)));
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        return readAll(new GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(List<byte[]> parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        return concat(Arrays.asList(parts));
+    }
+
+}
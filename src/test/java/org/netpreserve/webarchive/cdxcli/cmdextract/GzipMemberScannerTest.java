@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.jwat.archive.FileIdent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netpreserve.commons.cdx.cdxrecord.CdxLineFormat;
+import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for finding split points in compressed files.
+ */
+public class GzipMemberScannerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void splitPointsAreMemberStarts() throws IOException {
+        List<Long> memberStarts = new ArrayList<>();
+        File warc = writeWarcWithEmbeddedGzip(folder.newFile("test.warc.gz"), memberStarts);
+
+        List<Long> expected = new ArrayList<>(memberStarts);
+        expected.add(warc.length());
+        // A range size of one byte makes every member start a split point
+        assertThat(GzipMemberScanner.findSplitPoints(warc, 1)).isEqualTo(expected);
+    }
+
+    @Test
+    public void splitPointsAreAtLeastRangeSizeApart() throws IOException {
+        List<Long> memberStarts = new ArrayList<>();
+        File warc = writeWarcWithEmbeddedGzip(folder.newFile("test.warc.gz"), memberStarts);
+
+        List<Long> points = GzipMemberScanner.findSplitPoints(warc, 2000);
+        assertThat(points.get(0)).isEqualTo(0L);
+        assertThat(points.get(points.size() - 1)).isEqualTo(warc.length());
+        for (int i = 1; i < points.size() - 1; i++) {
+            assertThat(memberStarts).contains(points.get(i));
+            assertThat(points.get(i) - points.get(i - 1)).isGreaterThanOrEqualTo(2000L);
+        }
+    }
+
+    @Test
+    public void trailingGarbageEndsLastRange() throws IOException {
+        List<Long> memberStarts = new ArrayList<>();
+        File warc = writeWarcWithEmbeddedGzip(folder.newFile("test.warc.gz"), memberStarts);
+        long end = warc.length();
+        try (OutputStream out = Files.newOutputStream(warc.toPath(), StandardOpenOption.APPEND);) {
+            out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        }
+
+        List<Long> points = GzipMemberScanner.findSplitPoints(warc, 1);
+        assertThat(points.subList(0, points.size() - 1)).isEqualTo(memberStarts);
+        assertThat(points.get(points.size() - 1)).isEqualTo(end + 12);
+    }
+
+    @Test
+    public void splitExtractionIsSameAsSerial() throws IOException {
+        File warc = writeWarcWithEmbeddedGzip(folder.newFile("test.warc.gz"), new ArrayList<>());
+        CdxRecordFormatter formatter = new CdxRecordFormatter(CdxLineFormat.CDX11LINE);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (SerialOutput out = new SerialOutput(new OutputStreamWriter(expected, StandardCharsets.UTF_8),
+                formatter);) {
+            new CdxExtractor().process(warc, FileIdent.ident(warc), out);
+        }
+
+        CdxExtractor extractor = new CdxExtractor();
+        extractor.setSplitting(4, 1000);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (SerialOutput out = new SerialOutput(new OutputStreamWriter(actual, StandardCharsets.UTF_8),
+                formatter);) {
+            extractor.process(warc, FileIdent.ident(warc), out);
+        } finally {
+            extractor.shutdown();
+        }
+
+        assertThat(actual.toByteArray()).isEqualTo(expected.toByteArray());
+    }
+
+    /**
+     * Write a compressed WARC file where one record holds a compressed WARC file.
+     * <p>
+     * That record is compressed without compression, so the members of the embedded file appear verbatim in the
+     * outer file.
+     * <p>
+     * @param file the file to write
+     * @param memberStarts receives the offsets of the members in the outer file
+     * @return the file
+     * @throws IOException is thrown if the file could not be written
+     */
+    private static File writeWarcWithEmbeddedGzip(File file, List<Long> memberStarts) throws IOException {
+        List<byte[]> embedded = TestWarcFiles.records(20);
+        ByteArrayOutputStream embeddedFile = new ByteArrayOutputStream();
+        for (byte[] record : embedded) {
+            embeddedFile.write(TestWarcFiles.gzip(record));
+        }
+
+        List<byte[]> records = TestWarcFiles.records(30);
+        byte[] container = TestWarcFiles.resource("urn:uuid:00000000-0000-0000-0005-000000000000",
+                "http://example.com/archive.warc.gz", "application/gzip", embeddedFile.toByteArray());
+
+        long offset = 0;
+        try (OutputStream out = Files.newOutputStream(file.toPath());) {
+            for (int i = 0; i < records.size(); i++) {
+                if (i == records.size() / 2) {
+                    memberStarts.add(offset);
+                    byte[] member = storedGzip(container);
+                    out.write(member);
+                    offset += member.length;
+                }
+                memberStarts.add(offset);
+                byte[] member = TestWarcFiles.gzip(records.get(i));
+                out.write(member);
+                offset += member.length;
+            }
+        }
+        return file;
+    }
+
+    private static byte[] storedGzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(Deflater.NO_COMPRESSION);
+            }
+        };) {
+            gz.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for finding the inputs to extract incrementally.
+ */
+public class IncrementalExtractTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String a;
+
+    private String b;
+
+    private String c;
+
+    private String other;
+
+    private Path outFile;
+
+    @Before
+    public void createFiles() throws IOException {
+        a = file("a", "x.warc");
+        b = file("b", "x.warc");
+        c = file("c", "x.warc");
+        other = file("a", "y.warc");
+        outFile = folder.newFile("out.cdx").toPath();
+    }
+
+    @Test
+    public void allInputsAreNewWithoutOutput() throws IOException {
+        Files.delete(outFile);
+        CommandExtract command = command(a, other);
+        assertThat(command.findChanged(outFile)).containsExactly(a, other);
+    }
+
+    @Test
+    public void unchangedInputsAreSkipped() throws IOException {
+        record(a, b, other);
+        modify(other);
+
+        CommandExtract command = command(a, b, other);
+        assertThat(command.findChanged(outFile)).containsExactly(other);
+    }
+
+    @Test
+    public void inputsWithSameNameAsChangedInputAreExtractedAgain() throws IOException {
+        record(a, b, other);
+        modify(a);
+
+        CommandExtract command = command(a, b, other);
+        assertThat(command.findChanged(outFile)).containsExactly(a, b);
+    }
+
+    @Test
+    public void changedInputWithSameNameAsRemovedInputFails() throws IOException {
+        record(a, c);
+        modify(a);
+
+        CommandExtract command = command(a);
+        assertThatThrownBy(() -> command.findChanged(outFile)).isInstanceOf(IOException.class)
+                .hasMessageContaining(new File(c).getAbsolutePath());
+    }
+
+    private CommandExtract command(String... inputs) {
+        CommandExtract command = new CommandExtract();
+        command.inputs = Arrays.asList(inputs);
+        return command;
+    }
+
+    private void record(String... files) throws IOException {
+        ProcessedFiles manifest = new ProcessedFiles(ProcessedFiles.manifestFor(outFile), false);
+        for (String file : files) {
+            manifest.record(file);
+        }
+        manifest.save();
+    }
+
+    private String file(String dir, String name) throws IOException {
+        File parent = new File(folder.getRoot(), dir);
+        parent.mkdirs();
+        File file = new File(parent, name);
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        return file.getPath();
+    }
+
+    private static void modify(String file) throws IOException {
+        Files.write(new File(file).toPath(), new byte[]{4}, StandardOpenOption.APPEND);
+    }
+
+}
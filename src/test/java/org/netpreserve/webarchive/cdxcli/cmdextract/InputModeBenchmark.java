@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jwat.archive.FileIdent;
+import org.netpreserve.commons.cdx.CdxRecord;
+
+/**
+ * Compares the throughput of the input modes on a large uncompressed WARC file.
+ * <p>
+ * For each mode the file is read through the stream opened by the extractor: once reading every byte, and once
+ * reading the first KiB of each record and skipping the rest, like fast mode skips payloads. Then it is indexed with
+ * and without fast mode. Records are counted, not written, so that only reading and parsing is measured. The file is
+ * read from the page cache after the warm-up rounds unless it is larger than the free memory.
+ * <p>
+ * Arguments: [file size in MiB, default 1024] [read, skip, extract or all, default all]
+ */
+public final class InputModeBenchmark {
+
+    private static final int[] BLOCK_SIZES = {512, 4 * 1024, 32 * 1024, 256 * 1024};
+
+    private InputModeBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+        String what = args.length > 1 ? args[1] : "all";
+
+        File warc = File.createTempFile("input-mode-benchmark", ".warc");
+        try {
+            int[] records = writeWarc(warc, size, new Random(1));
+            System.out.printf("%s: %d bytes, %d records%n", warc, warc.length(), records.length);
+            for (InputMode mode : InputMode.values()) {
+                if (what.equals("all") || what.equals("read")) {
+                    Benchmark.report(System.out, mode + " read", Benchmark.measure(2, 5, () -> read(warc, mode)),
+                            warc.length() >> 20, "MiB");
+                }
+                if (what.equals("all") || what.equals("skip")) {
+                    Benchmark.report(System.out, mode + " skip",
+                            Benchmark.measure(2, 5, () -> skip(warc, mode, records)), warc.length() >> 20, "MiB");
+                }
+                if (what.equals("all") || what.equals("extract")) {
+                    for (boolean fast : new boolean[]{false, true}) {
+                        Benchmark.report(System.out, mode + (fast ? " extract --fast" : " extract"),
+                                Benchmark.measure(2, 5, () -> extract(warc, mode, fast)), warc.length() >> 20, "MiB");
+                    }
+                }
+            }
+        } finally {
+            Files.delete(warc.toPath());
+        }
+    }
+
+    private static long read(File warc, InputMode mode) throws IOException {
+        CdxExtractor extractor = new CdxExtractor();
+        extractor.setInputMode(mode);
+        byte[] buf = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream in = extractor.openUncompressed(warc);) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    private static long skip(File warc, InputMode mode, int[] records) throws IOException {
+        CdxExtractor extractor = new CdxExtractor();
+        extractor.setInputMode(mode);
+        extractor.setFast(true);
+        byte[] buf = new byte[1024];
+        long total = 0;
+        try (InputStream in = extractor.openUncompressed(warc);) {
+            for (int length : records) {
+                int n = in.read(buf, 0, Math.min(buf.length, length));
+                total += n;
+                long left = length - n;
+                while (left > 0) {
+                    left -= in.skip(left);
+                }
+            }
+        }
+        return total;
+    }
+
+    private static long extract(File warc, InputMode mode, boolean fast) throws IOException {
+        CdxExtractor extractor = new CdxExtractor();
+        extractor.setInputMode(mode);
+        extractor.setFast(fast);
+        CountingOutput out = new CountingOutput();
+        try {
+            extractor.process(warc, FileIdent.ident(warc), out);
+        } finally {
+            extractor.shutdown();
+        }
+        return out.records;
+    }
+
+    /**
+     * Write a WARC file of response records with blocks of mixed sizes.
+     * <p>
+     * @param file the file to write
+     * @param size the minimum size of the file
+     * @param random the source of the block sizes and contents
+     * @return the lengths of the records written
+     * @throws IOException is thrown if the file could not be written
+     */
+    private static int[] writeWarc(File file, long size, Random random) throws IOException {
+        byte[][] blocks = new byte[BLOCK_SIZES.length][];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = new byte[BLOCK_SIZES[i]];
+            random.nextBytes(blocks[i]);
+        }
+        int records = 0;
+        int[] lengths = new int[1024];
+        long written = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1024 * 1024);) {
+            while (written < size) {
+                byte[] record = TestWarcFiles.resource(
+                        String.format("urn:uuid:00000000-0000-0000-0000-%012d", records),
+                        "http://www.example.com/page?id=" + records, "application/octet-stream",
+                        blocks[random.nextInt(blocks.length)]);
+                out.write(record);
+                written += record.length;
+                if (records == lengths.length) {
+                    lengths = Arrays.copyOf(lengths, 2 * records);
+                }
+                lengths[records++] = record.length;
+            }
+        }
+        return Arrays.copyOf(lengths, records);
+    }
+
+    /**
+     * Output which only counts records.
+     */
+    private static final class CountingOutput implements FieldsOutput {
+
+        private long records;
+
+        @Override
+        public boolean writeFields(RecordFields fields) {
+            records++;
+            return true;
+        }
+
+        @Override
+        public void write(CdxRecord record) {
+            records++;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
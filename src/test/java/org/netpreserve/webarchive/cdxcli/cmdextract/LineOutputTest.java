@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.jwat.archive.FileIdent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netpreserve.commons.cdx.CdxFormat;
+import org.netpreserve.commons.cdx.CdxRecord;
+import org.netpreserve.commons.cdx.cdxrecord.CdxLineFormat;
+import org.netpreserve.commons.cdx.cdxrecord.CdxjLineFormat;
+import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
+import org.netpreserve.webarchive.cdxcli.sort.ExternalSorter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that lines written directly from record fields are the same as the ones written by the formatter.
+ */
+public class LineOutputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cdx11FromWarcIsSameAsFormatter() throws IOException {
+        File warc = TestWarcFiles.writeWarc(folder.newFile("test.warc"), TestWarcFiles.records(50));
+        assertSameOutput(warc, CdxLineFormat.CDX11LINE);
+    }
+
+    @Test
+    public void cdx9FromWarcIsSameAsFormatter() throws IOException {
+        File warc = TestWarcFiles.writeWarc(folder.newFile("test.warc"), TestWarcFiles.records(50));
+        assertSameOutput(warc, CdxLineFormat.CDX09LINE);
+    }
+
+    @Test
+    public void cdx11FromCompressedWarcIsSameAsFormatter() throws IOException {
+        File warc = TestWarcFiles.writeWarcGz(folder.newFile("test.warc.gz"), TestWarcFiles.records(50));
+        assertSameOutput(warc, CdxLineFormat.CDX11LINE);
+    }
+
+    @Test
+    public void cdxjFromWarcIsSameAsFormatter() throws IOException {
+        File warc = TestWarcFiles.writeWarc(folder.newFile("test.warc"), TestWarcFiles.records(50));
+        assertSameOutput(warc, CdxjLineFormat.DEFAULT_CDXJLINE);
+    }
+
+    @Test
+    public void cdxjFromCompressedWarcIsSameAsFormatter() throws IOException {
+        File warc = TestWarcFiles.writeWarcGz(folder.newFile("test.warc.gz"), TestWarcFiles.records(50));
+        assertSameOutput(warc, CdxjLineFormat.DEFAULT_CDXJLINE);
+    }
+
+    @Test
+    public void concurrentOutputFromFieldsIsSameAsFromRecords() throws IOException {
+        File warc = TestWarcFiles.writeWarc(folder.newFile("test.warc"), TestWarcFiles.records(50));
+        for (CdxFormat format : new CdxFormat[]{CdxLineFormat.CDX11LINE, CdxjLineFormat.DEFAULT_CDXJLINE}) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            extract(warc, recordsOnly(new ConcurrentOutput(
+                    new OutputStreamWriter(expected, StandardCharsets.UTF_8), format)));
+
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            extract(warc, new ConcurrentOutput(new OutputStreamWriter(actual, StandardCharsets.UTF_8), format));
+
+            assertSameLines(actual, expected);
+        }
+    }
+
+    @Test
+    public void sortingOutputFromFieldsIsSameAsFromRecords() throws IOException {
+        File warc = TestWarcFiles.writeWarc(folder.newFile("test.warc"), TestWarcFiles.records(50));
+        for (CdxFormat format : new CdxFormat[]{CdxLineFormat.CDX11LINE, CdxjLineFormat.DEFAULT_CDXJLINE}) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            extract(warc, recordsOnly(sortingOutput(expected, format)));
+
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            extract(warc, sortingOutput(actual, format));
+
+            assertSameLines(actual, expected);
+        }
+    }
+
+    @Test
+    public void recordsNotFromFieldsAreFormatted() throws IOException {
+        File warc = TestWarcFiles.writeWarc(folder.newFile("test.warc"), TestWarcFiles.records(10));
+        CdxExtractor extractor = new CdxExtractor();
+        CdxRecordFormatter formatter = new CdxRecordFormatter(CdxLineFormat.CDX11LINE);
+
+        // The pipeline passes CDX records to the output
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (SerialOutput out = new SerialOutput(new OutputStreamWriter(expected, StandardCharsets.UTF_8),
+                formatter);) {
+            extractor.process(warc, FileIdent.ident(warc), out);
+        }
+        extractor.setPipelined(true);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (LineOutput out = new LineOutput(actual, CdxLineFormat.CDX11LINE, formatter);) {
+            extractor.process(warc, FileIdent.ident(warc), out);
+        } finally {
+            extractor.shutdown();
+        }
+
+        assertThat(actual.toByteArray()).isEqualTo(expected.toByteArray());
+    }
+
+    private void assertSameOutput(File warc, CdxFormat format) throws IOException {
+        CdxExtractor extractor = new CdxExtractor();
+        CdxRecordFormatter formatter = new CdxRecordFormatter(format);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (SerialOutput out = new SerialOutput(new OutputStreamWriter(expected, StandardCharsets.UTF_8),
+                formatter);) {
+            extractor.process(warc, FileIdent.ident(warc), out);
+        }
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (LineOutput out = new LineOutput(actual, format, formatter);) {
+            extractor.process(warc, FileIdent.ident(warc), out);
+        }
+
+        assertSameLines(actual, expected);
+    }
+
+    private static void assertSameLines(ByteArrayOutputStream actual, ByteArrayOutputStream expected) {
+        String text = new String(actual.toByteArray(), StandardCharsets.UTF_8);
+        // warcinfo records are not indexed, the others are
+        assertThat(text.split("\n")).hasSize(TestWarcFiles.records(50).size() - 1);
+        assertThat(text).isEqualTo(new String(expected.toByteArray(), StandardCharsets.UTF_8));
+        assertThat(actual.toByteArray()).isEqualTo(expected.toByteArray());
+    }
+
+    private static void extract(File warc, Output out) throws IOException {
+        CdxExtractor extractor = new CdxExtractor();
+        try (Output o = out;) {
+            extractor.process(warc, FileIdent.ident(warc), o);
+        }
+    }
+
+    private static ParallelSortingOutput sortingOutput(ByteArrayOutputStream bytes, CdxFormat format) {
+        return new ParallelSortingOutput(new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8)),
+                format, ExternalSorter.withMemoryLimit(16L * 1024 * 1024, 1));
+    }
+
+    /**
+     * Hide the fields support of an output so that the extractor writes CDX records to it.
+     * <p>
+     * @param out the output to wrap
+     * @return an output which only takes CDX records
+     */
+    private static Output recordsOnly(Output out) {
+        return new Output() {
+            @Override
+            public void write(CdxRecord record) {
+                out.write(record);
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+
+        };
+    }
+
+}
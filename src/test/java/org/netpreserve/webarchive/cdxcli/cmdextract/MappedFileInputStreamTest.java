@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jwat.archive.FileIdent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netpreserve.commons.cdx.cdxrecord.CdxLineFormat;
+import org.netpreserve.commons.cdx.formatter.CdxRecordFormatter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that the memory mapped stream and the input modes read the same bytes as a plain file stream.
+ */
+public class MappedFileInputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsSameBytesAsFileStream() throws IOException {
+        File file = folder.newFile("data");
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        AtomicLong count = new AtomicLong();
+        Random ops = new Random(7);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        long skipped = 0;
+        // A small window makes reads and skips cross window boundaries
+        try (InputStream reference = new FileInputStream(file);
+                InputStream mapped = new MappedFileInputStream(file, count, 4096);) {
+            while (true) {
+                int op = ops.nextInt(3);
+                int len = ops.nextInt(10000);
+                if (op == 0) {
+                    int b = reference.read();
+                    assertThat(mapped.read()).isEqualTo(b);
+                    if (b == -1) {
+                        break;
+                    }
+                    expected.write(b);
+                    actual.write(b);
+                } else if (op == 1) {
+                    byte[] buf = new byte[len];
+                    int n = readFully(reference, buf, expected);
+                    assertThat(readFully(mapped, new byte[len], actual)).isEqualTo(n);
+                    if (n < len) {
+                        break;
+                    }
+                } else {
+                    // FileInputStream may skip past the end of the file, so skip by reading
+                    long n = readFully(reference, new byte[len], new ByteArrayOutputStream());
+                    assertThat(mapped.skip(len)).isEqualTo(n);
+                    skipped += n;
+                }
+                assertThat(mapped.available()).isEqualTo(reference.available());
+            }
+            assertThat(mapped.read()).isEqualTo(-1);
+            assertThat(mapped.read(new byte[10], 0, 10)).isEqualTo(-1);
+        }
+
+        assertThat(actual.toByteArray()).isEqualTo(expected.toByteArray());
+        assertThat(count.get()).isEqualTo(data.length - skipped);
+    }
+
+    @Test
+    public void emptyFileIsAtEnd() throws IOException {
+        File file = folder.newFile("empty");
+        try (InputStream mapped = new MappedFileInputStream(file, new AtomicLong());) {
+            assertThat(mapped.read()).isEqualTo(-1);
+            assertThat(mapped.read(new byte[10], 0, 10)).isEqualTo(-1);
+            assertThat(mapped.skip(10)).isEqualTo(0L);
+        }
+    }
+
+    @Test
+    public void inputModesHaveNames() {
+        for (InputMode mode : InputMode.values()) {
+            assertThat(InputMode.forName(mode.toString())).isSameAs(mode);
+        }
+        assertThat(InputMode.forName("unknown")).isNull();
+    }
+
+    @Test
+    public void inputModesExtractSameRecords() throws IOException {
+        File warc = TestWarcFiles.writeWarc(folder.newFile("test.warc"), TestWarcFiles.records(50));
+        byte[] expected = extract(warc, InputMode.STREAM, false);
+        for (InputMode mode : InputMode.values()) {
+            assertThat(extract(warc, mode, false)).isEqualTo(expected);
+            assertThat(extract(warc, mode, true)).isEqualTo(expected);
+        }
+    }
+
+    private static byte[] extract(File warc, InputMode mode, boolean fast) throws IOException {
+        CdxExtractor extractor = new CdxExtractor();
+        extractor.setInputMode(mode);
+        extractor.setFast(fast);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (SerialOutput out = new SerialOutput(new OutputStreamWriter(bytes, StandardCharsets.UTF_8),
+                new CdxRecordFormatter(CdxLineFormat.CDX11LINE));) {
+            extractor.process(warc, FileIdent.ident(warc), out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int readFully(InputStream in, byte[] buf, ByteArrayOutputStream copy) throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            int n = in.read(buf, total, buf.length - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        copy.write(buf, 0, total);
+        return total;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Creates small WARC files for tests.
+ */
+final class TestWarcFiles {
+
+    private TestWarcFiles() {
+    }
+
+    /**
+     * Create the records of a WARC file covering the kinds of records the extractor treats differently.
+     * <p>
+     * @param count the number of response records
+     * @return the records, each one a complete WARC record
+     */
+    static List<byte[]> records(int count) {
+        List<byte[]> records = new ArrayList<>();
+        records.add(record("warcinfo", "urn:uuid:00000000-0000-0000-0000-000000000000", null,
+                "application/warc-fields", "software: test\r\n"));
+        for (int i = 0; i < count; i++) {
+            String uri = i % 3 == 0 ? "http://example.com/caf\u00e9/" + i : "http://www.example.com/page?id=" + i;
+            String status = i % 5 == 0 ? "404 Not Found" : "200 OK";
+            String body = "<html>" + i + "</html>";
+            records.add(record("response", "urn:uuid:00000000-0000-0000-0001-" + String.format("%012d", i), uri,
+                    "application/http; msgtype=response",
+                    "HTTP/1.1 " + status + "\r\nContent-Type: text/html\r\nContent-Length: "
+                    + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body));
+            if (i % 4 == 0) {
+                records.add(record("request", "urn:uuid:00000000-0000-0000-0002-" + String.format("%012d", i), uri,
+                        "application/http; msgtype=request", "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n"));
+            }
+        }
+        records.add(record("resource", "urn:uuid:00000000-0000-0000-0003-000000000000", "dns:example.com",
+                "text/dns", "20160102030405\nexample.com. 300 IN A 10.0.0.1\n"));
+        records.add(revisit("urn:uuid:00000000-0000-0000-0004-000000000000", "http://www.example.com/page?id=1",
+                "urn:uuid:00000000-0000-0000-0001-000000000001"));
+        return records;
+    }
+
+    /**
+     * Write records to an uncompressed WARC file.
+     * <p>
+     * @param file the file to write
+     * @param records the records
+     * @return the file
+     * @throws IOException is thrown if the file could not be written
+     */
+    static File writeWarc(File file, List<byte[]> records) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file.toPath());) {
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Write records to a compressed WARC file with one gzip member per record.
+     * <p>
+     * @param file the file to write
+     * @param records the records
+     * @return the file
+     * @throws IOException is thrown if the file could not be written
+     */
+    static File writeWarcGz(File file, List<byte[]> records) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file.toPath());) {
+            for (byte[] record : records) {
+                out.write(gzip(record));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Compress bytes into one gzip member.
+     * <p>
+     * @param data the bytes to compress
+     * @return the gzip member
+     * @throws IOException is never thrown
+     */
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(bytes);) {
+            gz.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Create a resource record with a binary block.
+     * <p>
+     * @param id the record id
+     * @param uri the target uri
+     * @param contentType the content type of the block
+     * @param block the block
+     * @return the record
+     */
+    static byte[] resource(String id, String uri, String contentType, byte[] block) {
+        StringBuilder header = new StringBuilder();
+        header.append("WARC/1.0\r\n");
+        header.append("WARC-Type: resource\r\n");
+        header.append("WARC-Record-ID: <").append(id).append(">\r\n");
+        header.append("WARC-Date: 2016-01-02T03:04:05Z\r\n");
+        header.append("WARC-Target-URI: ").append(uri).append("\r\n");
+        return finish(header, contentType, block);
+    }
+
+    private static byte[] record(String type, String id, String uri, String contentType, String block) {
+        StringBuilder header = new StringBuilder();
+        header.append("WARC/1.0\r\n");
+        header.append("WARC-Type: ").append(type).append("\r\n");
+        header.append("WARC-Record-ID: <").append(id).append(">\r\n");
+        header.append("WARC-Date: 2016-01-02T03:04:05Z\r\n");
+        if (uri != null) {
+            header.append("WARC-Target-URI: ").append(uri).append("\r\n");
+        }
+        return finish(header, contentType, block.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] revisit(String id, String uri, String refersTo) {
+        StringBuilder header = new StringBuilder();
+        header.append("WARC/1.0\r\n");
+        header.append("WARC-Type: revisit\r\n");
+        header.append("WARC-Record-ID: <").append(id).append(">\r\n");
+        header.append("WARC-Date: 2016-01-03T03:04:05Z\r\n");
+        header.append("WARC-Target-URI: ").append(uri).append("\r\n");
+        header.append("WARC-Refers-To: <").append(refersTo).append(">\r\n");
+        header.append("WARC-Refers-To-Target-URI: ").append(uri).append("\r\n");
+        header.append("WARC-Refers-To-Date: 2016-01-02T03:04:05Z\r\n");
+        header.append("WARC-Profile: http://netpreserve.org/warc/1.0/revisit/identical-payload-digest\r\n");
+        header.append("WARC-Payload-Digest: sha1:AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA\r\n");
+        return finish(header, "application/http; msgtype=response",
+                "HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] finish(StringBuilder header, String contentType, byte[] blockBytes) {
+        header.append("Content-Type: ").append(contentType).append("\r\n");
+        header.append("Content-Length: ").append(blockBytes.length).append("\r\n");
+        header.append("\r\n");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+        bytes.write(headerBytes, 0, headerBytes.length);
+        bytes.write(blockBytes, 0, blockBytes.length);
+        bytes.write('\r');
+        bytes.write('\n');
+        bytes.write('\r');
+        bytes.write('\n');
+        return bytes.toByteArray();
+    }
+
+}
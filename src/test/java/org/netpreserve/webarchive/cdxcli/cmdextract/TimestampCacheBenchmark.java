@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.time.Instant;
+import java.util.Random;
+
+import org.netpreserve.commons.cdx.json.TimestampValue;
+
+/**
+ * Compares parsing every record date with {@link TimestampCache}.
+ * <p>
+ * The dates are like the WARC-Date headers of a crawl: the records of a capture, e.g. request, response and metadata,
+ * share a date, and captures follow each other within a few seconds. Every date is a new string, like the ones read
+ * from record headers.
+ * <p>
+ * Arguments: [number of records, default 1000000]
+ */
+public final class TimestampCacheBenchmark {
+
+    private TimestampCacheBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String[] dates = dates(count, new Random(1));
+        System.out.printf("%d records, %d date changes%n", count, changes(dates));
+
+        Benchmark.Result parsed = Benchmark.measure(5, 10, () -> {
+            long hash = 0;
+            for (String date : dates) {
+                hash += System.identityHashCode(TimestampValue.valueOf(date));
+            }
+            return hash;
+        });
+        Benchmark.report(System.out, "TimestampValue.valueOf", parsed, count, "record");
+
+        Benchmark.Result cached = Benchmark.measure(5, 10, () -> {
+            TimestampCache cache = new TimestampCache();
+            long hash = 0;
+            for (String date : dates) {
+                hash += System.identityHashCode(cache.get(date));
+            }
+            return hash;
+        });
+        Benchmark.report(System.out, "TimestampCache", cached, count, "record");
+    }
+
+    /**
+     * Create the dates of a stream of records.
+     * <p>
+     * @param count the number of records
+     * @param random the source of the number of records per capture and the time between captures
+     * @return the dates
+     */
+    static String[] dates(int count, Random random) {
+        String[] dates = new String[count];
+        long second = Instant.parse("2016-01-02T03:04:05Z").getEpochSecond();
+        int i = 0;
+        while (i < count) {
+            // Two to four records per capture, the next capture in the same second or up to two seconds later
+            int records = 2 + random.nextInt(3);
+            for (int j = 0; j < records && i < count; j++) {
+                dates[i++] = Instant.ofEpochSecond(second).toString();
+            }
+            second += random.nextInt(3);
+        }
+        return dates;
+    }
+
+    private static int changes(String[] dates) {
+        int changes = 0;
+        for (int i = 0; i < dates.length; i++) {
+            if (i == 0 || !dates[i].equals(dates[i - 1])) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.cmdextract;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.netpreserve.commons.cdx.json.TimestampValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests that cached dates are the same as dates parsed for every record.
+ */
+public class TimestampCacheTest {
+
+    private static final String[] DATES = {
+        "2016-01-02T03:04:05Z",
+        "2016-01-02T03:04:05Z",
+        "20160102030405",
+        "20160102030405",
+        "2016-01-02T03:04:06Z",
+        "2016-01-02T03:04:05Z",
+        "19991231235959"
+    };
+
+    @Test
+    public void cachedValuesAreSameAsParsed() {
+        TimestampCache cache = new TimestampCache();
+        for (String date : DATES) {
+            assertThat(cache.get(date).toString()).isEqualTo(TimestampValue.valueOf(date).toString());
+        }
+    }
+
+    @Test
+    public void repeatedDateIsParsedOnce() {
+        TimestampCache cache = new TimestampCache();
+        TimestampValue first = cache.get(DATES[0]);
+        assertThat(cache.get(DATES[1])).isSameAs(first);
+        assertThat(cache.get(DATES[2])).isNotSameAs(first);
+    }
+
+    @Test
+    public void nullDateIsNotCached() {
+        TimestampCache cache = new TimestampCache();
+        TimestampValue value = cache.get(DATES[0]);
+        assertThat(String.valueOf(cache.get(null))).isEqualTo(String.valueOf(TimestampValue.valueOf(null)));
+        assertThat(cache.get(DATES[0])).isSameAs(value);
+    }
+
+    @Test
+    public void threadsHaveTheirOwnEntry() throws InterruptedException {
+        TimestampCache cache = new TimestampCache();
+        TimestampValue value = cache.get(DATES[0]);
+
+        AtomicReference<TimestampValue> other = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            cache.get(DATES[4]);
+            other.set(cache.get(DATES[0]));
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(other.get()).isNotSameAs(value);
+        assertThat(other.get().toString()).isEqualTo(value.toString());
+        assertThat(cache.get(DATES[0])).isSameAs(value);
+    }
+
+}
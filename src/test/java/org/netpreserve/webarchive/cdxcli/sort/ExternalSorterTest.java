@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.sort;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the external sorter.
+ */
+public class ExternalSorterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void fanInIsSizedFromReaderMemory() {
+        ExternalSorter sorter = ExternalSorter.withMemoryLimit(10L * ExternalSorter.RUN_READER_MEMORY, 1);
+        assertThat(sorter.getMergeFanIn()).isEqualTo(10);
+
+        sorter.setCompressRuns(true);
+        assertThat(sorter.getMergeFanIn()).isEqualTo((int) (10L * ExternalSorter.RUN_READER_MEMORY
+                / (ExternalSorter.RUN_READER_MEMORY + ExternalSorter.INFLATER_MEMORY)));
+
+        assertThat(ExternalSorter.withMemoryLimit(1, 1).getMergeFanIn()).isEqualTo(2);
+        assertThat(ExternalSorter.withLineLimit(7, 100).getMergeFanIn()).isEqualTo(7);
+    }
+
+    @Test
+    public void mergePassesGiveSortedLines() throws IOException {
+        assertSorted(false);
+    }
+
+    @Test
+    public void compressedMergePassesGiveSortedLines() throws IOException {
+        assertSorted(true);
+    }
+
+    @Test
+    public void releasedBufferCanBeUsedAgain() throws IOException {
+        ExternalSorter sorter = new ExternalSorter(folder.getRoot().toPath(), 2, 100, Long.MAX_VALUE);
+        RunBuffer buffer = sorter.newRunBuffer();
+        buffer.add("b");
+        assertThatThrownBy(() -> buffer.release()).isInstanceOf(IllegalStateException.class);
+        buffer.flush();
+        buffer.release();
+        buffer.add("a");
+        buffer.flush();
+        buffer.release();
+
+        StringWriter out = new StringWriter();
+        sorter.merge(out);
+        assertThat(out.toString()).isEqualTo("a\nb\n");
+    }
+
+    @Test
+    public void samplesAreBoundedAndKeepTheKeyDistribution() throws IOException {
+        // Runs of ten lines with every line sampled would keep all 20000 keys without a bound
+        ExternalSorter sorter = new ExternalSorter(folder.getRoot().toPath(), 2, 10, Long.MAX_VALUE);
+        sorter.setSampling(10, 200);
+
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(5));
+        RunBuffer buffer = sorter.newRunBuffer();
+        for (int key : keys) {
+            buffer.add(String.format("%05d line", key));
+        }
+        buffer.flush();
+
+        assertThat(sorter.getSampleCount()).isBetween(1, 200);
+        List<String> splitPoints = sorter.estimateSplitPoints(4);
+        assertThat(splitPoints).hasSize(3);
+        for (int i = 0; i < 3; i++) {
+            assertThat(Integer.parseInt(splitPoints.get(i))).isBetween(5000 * (i + 1) - 500, 5000 * (i + 1) + 500);
+        }
+        sorter.cleanup();
+    }
+
+    private void assertSorted(boolean compress) throws IOException {
+        // A fan-in of three and runs of ten lines need several merge passes
+        ExternalSorter sorter = new ExternalSorter(folder.getRoot().toPath(), 3, 10, Long.MAX_VALUE);
+        sorter.setCompressRuns(compress);
+
+        Random random = new Random(3);
+        String[] chars = {"a", "b", "z", "~", "\u00e9", "\uffe0", "\ud83d\ude00"};
+        List<String> lines = new ArrayList<>();
+        RunBuffer buffer = sorter.newRunBuffer();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder line = new StringBuilder();
+            for (int j = random.nextInt(8); j >= 0; j--) {
+                line.append(chars[random.nextInt(chars.length)]);
+            }
+            lines.add(line.toString());
+            buffer.add(line);
+        }
+        buffer.flush();
+        buffer.release();
+
+        StringWriter out = new StringWriter();
+        sorter.merge(out);
+        sorter.cleanup();
+
+        byte[][] expected = new byte[lines.size()][];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = lines.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(expected, ExternalSorterTest::compareUnsigned);
+        StringBuilder expectedOut = new StringBuilder();
+        for (byte[] line : expected) {
+            expectedOut.append(new String(line, StandardCharsets.UTF_8)).append('\n');
+        }
+        assertThat(out.toString()).isEqualTo(expectedOut.toString());
+        assertThat(folder.getRoot().list()).isEmpty();
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.sort;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests that split points are compared in the same order as the sorter sorts lines.
+ * <p>
+ * U+FFE0 is encoded before U+1F600 in UTF-8, but is after it in UTF-16, so String.compareTo orders them differently.
+ */
+public class PartitionedWriterTest {
+
+    private static final String BMP = "\uffe0";
+
+    private static final String SUPPLEMENTARY = "\ud83d\ude00";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compareUtf8IsByteOrder() {
+        String[] keys = {"", "a", "a b", "ab", "\u00e9", "\u0800", BMP, SUPPLEMENTARY, SUPPLEMENTARY + "a"};
+        for (String a : keys) {
+            for (String b : keys) {
+                byte[] bytesA = a.getBytes(StandardCharsets.UTF_8);
+                byte[] bytesB = b.getBytes(StandardCharsets.UTF_8);
+                int expected = Integer.signum(RunBuffer.compareBytes(bytesA, 0, bytesA.length, bytesB, 0,
+                        bytesB.length));
+                assertThat(Integer.signum(RunBuffer.compareUtf8(a, b))).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void splitPointsAreReadInByteOrder() throws IOException {
+        Path file = folder.newFile("splits").toPath();
+        Files.write(file, Arrays.asList("a", BMP, SUPPLEMENTARY), StandardCharsets.UTF_8);
+        assertThat(PartitionedWriter.readSplitPoints(file)).containsExactly("a", BMP, SUPPLEMENTARY);
+
+        Files.write(file, Arrays.asList("a", SUPPLEMENTARY, BMP), StandardCharsets.UTF_8);
+        assertThatThrownBy(() -> PartitionedWriter.readSplitPoints(file)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void linesAreRoutedInByteOrder() throws IOException {
+        Path outFile = folder.getRoot().toPath().resolve("out.cdx");
+        ExternalSorter sorter = new ExternalSorter(folder.newFolder().toPath(), 2, 100, Long.MAX_VALUE);
+        PartitionedWriter out = PartitionedWriter.forSorter(outFile, "header", 2, Arrays.asList(SUPPLEMENTARY),
+                sorter);
+        try (ExternalSortingWriter sortingOut = new ExternalSortingWriter(out, sorter);) {
+            sortingOut.write(SUPPLEMENTARY + " 3\n" + "a 1\n" + "\ud83d\ude01 4\n" + BMP + " 2\n");
+        }
+
+        assertThat(lines(out.partitionFile(0))).containsExactly("header", "a 1", BMP + " 2");
+        assertThat(lines(out.partitionFile(1))).containsExactly("header", SUPPLEMENTARY + " 3", "\ud83d\ude01 4");
+    }
+
+    @Test
+    public void estimatedSplitPointsAreInByteOrder() throws IOException {
+        ExternalSorter sorter = new ExternalSorter(folder.getRoot().toPath(), 2, 1000, Long.MAX_VALUE);
+        sorter.setSampling(PartitionedWriter.SAMPLES_PER_RUN);
+        RunBuffer buffer = sorter.newRunBuffer();
+        for (String key : new String[]{SUPPLEMENTARY, BMP, "a"}) {
+            for (int i = 0; i < 100; i++) {
+                buffer.add(key + " " + i);
+            }
+        }
+        buffer.flush();
+
+        assertThat(sorter.estimateSplitPoints(3)).containsExactly(BMP, SUPPLEMENTARY);
+        sorter.cleanup();
+    }
+
+    private static List<String> lines(Path file) throws IOException {
+        return Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 The International Internet Preservation Consortium.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.netpreserve.webarchive.cdxcli.zipnum;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for ZipNumWriter.
+ */
+public class ZipNumWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void blocksInflateToTheWrittenLines() throws IOException {
+        Path out = folder.getRoot().toPath().resolve("index");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // Non-ASCII characters, including a surrogate pair, are encoded as UTF-8
+            lines.add(String.format("com,example)/caf\u00e9/%04d 20160102030405 http://example.com/\ud83d\ude00 %d",
+                    i, i));
+        }
+
+        try (ZipNumWriter writer = new ZipNumWriter(out, 30, 3);) {
+            for (String line : lines) {
+                // Split writes, so that lines and surrogate pairs span several calls
+                int mid = line.indexOf('\ud83d') + 1;
+                writer.write(line.substring(0, mid));
+                writer.write(line.substring(mid).toCharArray());
+                writer.write('\n');
+            }
+        }
+
+        List<String> summary = Files.readAllLines(out.resolveSibling("index.idx"), StandardCharsets.UTF_8);
+        assertThat(summary).hasSize(34);
+        assertThat(Files.readAllLines(out.resolveSibling("index.loc"), StandardCharsets.UTF_8)).hasSize(3);
+
+        List<String> read = new ArrayList<>();
+        for (String entry : summary) {
+            String[] fields = entry.split("\t");
+            byte[] shard = Files.readAllBytes(out.resolveSibling(fields[1] + ".gz"));
+            int offset = Integer.parseInt(fields[2]);
+            int length = Integer.parseInt(fields[3]);
+            List<String> block = inflate(Arrays.copyOfRange(shard, offset, offset + length));
+            assertThat(block.get(0)).startsWith(fields[0] + " ");
+            read.addAll(block);
+        }
+        assertThat(read).isEqualTo(lines);
+    }
+
+    @Test
+    public void keyIsTheTextBeforeTheSecondSpace() {
+        byte[] line = "com,example)/ 20160102030405 http://example.com/".getBytes(StandardCharsets.UTF_8);
+        assertThat(ZipNumWriter.key(line, line.length)).isEqualTo("com,example)/ 20160102030405");
+    }
+
+    private static List<String> inflate(byte[] block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(block));) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                bytes.write(buf, 0, n);
+            }
+        }
+        return Arrays.asList(new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+    }
+
+}